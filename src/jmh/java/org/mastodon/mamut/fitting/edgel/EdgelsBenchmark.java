@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.edgel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.algorithm.edge.Edgel;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Benchmarks of the edgel filters and transforms in {@link Edgels}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class EdgelsBenchmark
+{
+	@Param( { "1000", "10000", "50000" } )
+	public int numEdgels;
+
+	private List< Edgel > edgels;
+
+	private List< Edgel > towardsCenter;
+
+	private double[] center;
+
+	private AffineTransform3D transform;
+
+	@Setup
+	public void setup()
+	{
+		final SyntheticEdgels data = new SyntheticEdgels( numEdgels, 42 );
+		edgels = data.getEdgels();
+		center = data.getCenter();
+		towardsCenter = Edgels.filterEdgelsByDirection( edgels, center );
+		transform = new AffineTransform3D();
+		transform.scale( 0.4, 0.4, 2 );
+		transform.rotate( 2, 0.3 );
+		transform.translate( 10, 20, 30 );
+	}
+
+	@Benchmark
+	public ArrayList< Edgel > filterEdgelsByDirection()
+	{
+		return Edgels.filterEdgelsByDirection( edgels, center );
+	}
+
+	@Benchmark
+	public ArrayList< Edgel > filterEdgelsByOcclusion()
+	{
+		return Edgels.filterEdgelsByOcclusion( towardsCenter, center, 5 * Math.PI / 180.0, 1.1 );
+	}
+
+	@Benchmark
+	public ArrayList< Edgel > filterEdgelsByOcclusionBinned()
+	{
+		return Edgels.filterEdgelsByOcclusionBinned( towardsCenter, center, 5 * Math.PI / 180.0, 1.1 );
+	}
+
+	@Benchmark
+	public EdgelBuffer limitEdgels()
+	{
+		final EdgelBuffer buffer = EdgelBuffer.of( towardsCenter );
+		Edgels.limitEdgels( buffer, center, 500 );
+		return buffer;
+	}
+
+	@Benchmark
+	public EdgelBuffer transformAndFilterByDirection()
+	{
+		final EdgelBuffer buffer = new EdgelBuffer( edgels.size() );
+		Edgels.transformAndFilterByDirection( edgels, transform, center, buffer );
+		return buffer;
+	}
+
+	@Benchmark
+	public ArrayList< Edgel > transformEdgels()
+	{
+		return Edgels.transformEdgels( edgels, transform );
+	}
+}
@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.edgel;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.mastodon.mamut.fitting.edgel.SampleEllipsoidEdgel.EdgelDistanceCost;
+import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.algorithm.edge.Edgel;
+
+/**
+ * Benchmarks of the RANSAC cost function and of
+ * {@link SampleEllipsoidEdgel#sample}, with the default fitting parameters.
+ * Sampling is seeded, so every invocation does the same work.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class SampleEllipsoidEdgelBenchmark
+{
+	@Param( { "1000", "10000", "50000" } )
+	public int numEdgels;
+
+	private List< Edgel > edgels;
+
+	private EdgelBuffer buffer;
+
+	private double[] center;
+
+	private Ellipsoid ellipsoid;
+
+	private EdgelDistanceCost cost;
+
+	private EdgelBuffer shuffled;
+
+	private double bound;
+
+	@Setup
+	public void setup()
+	{
+		final SyntheticEdgels data = new SyntheticEdgels( numEdgels, 42 );
+		center = data.getCenter();
+		edgels = Edgels.filterEdgelsByDirection( data.getEdgels(), center );
+		buffer = EdgelBuffer.of( edgels );
+		ellipsoid = data.getEllipsoid();
+		cost = new EdgelDistanceCost( 3, 5, 30 * Math.PI / 180.0 );
+		shuffled = SampleEllipsoidEdgel.shuffle( buffer );
+		// as if a candidate with half the cost had been found already
+		bound = cost.compute( ellipsoid, buffer ) / 2;
+	}
+
+	@Benchmark
+	public double edgelDistanceCost()
+	{
+		return cost.compute( ellipsoid, edgels );
+	}
+
+	@Benchmark
+	public double edgelDistanceCostBuffer()
+	{
+		return cost.compute( ellipsoid, buffer );
+	}
+
+	@Benchmark
+	public double edgelDistanceCostBounded()
+	{
+		return cost.computeBounded( ellipsoid, shuffled, bound );
+	}
+
+	@Benchmark
+	public Ellipsoid sample()
+	{
+		return SampleEllipsoidEdgel.sample( edgels, center, 1000, 100, 3, 5, 30 * Math.PI / 180.0, 10,
+				() -> false, null, new SplittableRandom( 42 ) );
+	}
+
+	@Benchmark
+	public Ellipsoid samplePreemptive()
+	{
+		return SampleEllipsoidEdgel.sample( buffer, center, 1000, 100, 3, 5, 30 * Math.PI / 180.0, 10,
+				() -> false, null, new SplittableRandom( 42 ), new RansacOptions().setPreemptive( true ) );
+	}
+
+	@Benchmark
+	public Ellipsoid sampleAdaptive()
+	{
+		return SampleEllipsoidEdgel.sample( buffer, center, 1000, 100, 3, 5, 30 * Math.PI / 180.0, 10,
+				() -> false, null, new SplittableRandom( 42 ), new RansacOptions().setAdaptive( true ) );
+	}
+
+	@Benchmark
+	public Ellipsoid sampleProgressive()
+	{
+		return SampleEllipsoidEdgel.sample( buffer, center, 1000, 100, 3, 5, 30 * Math.PI / 180.0, 10,
+				() -> false, null, new SplittableRandom( 42 ), new RansacOptions().setProgressive( true ) );
+	}
+}
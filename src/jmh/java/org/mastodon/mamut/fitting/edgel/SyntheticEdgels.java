@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.edgel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+
+import net.imglib2.algorithm.edge.Edgel;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Generates edgels on the surface of a random ellipsoid, similar to the
+ * ellipsoids rendered by {@code ArtificialData}, with position and gradient
+ * noise and a fraction of outliers.
+ */
+public class SyntheticEdgels
+{
+	private static final double MIN_RADIUS = 8;
+
+	private static final double MAX_RADIUS = 16;
+
+	private static final double POSITION_NOISE = 0.5;
+
+	private static final double GRADIENT_NOISE = 0.1;
+
+	private static final double OUTLIER_FRACTION = 0.2;
+
+	private final Ellipsoid ellipsoid;
+
+	private final List< Edgel > edgels;
+
+	/**
+	 * @param numEdgels
+	 *            the number of edgels, including outliers.
+	 * @param seed
+	 *            seed of the random generator.
+	 */
+	public SyntheticEdgels( final int numEdgels, final long seed )
+	{
+		final Random random = new Random( seed );
+		final double[] center = { 50 + random.nextDouble(), 50 + random.nextDouble(), 50 + random.nextDouble() };
+
+		// surface point = center + A * u for unit vectors u
+		final AffineTransform3D a = new AffineTransform3D();
+		a.scale( uniform( random, MIN_RADIUS, MAX_RADIUS ), uniform( random, MIN_RADIUS, MAX_RADIUS ), uniform( random, MIN_RADIUS, MAX_RADIUS ) );
+		a.rotate( 0, uniform( random, 0, 2 * Math.PI ) );
+		a.rotate( 1, uniform( random, 0, 2 * Math.PI ) );
+		a.rotate( 2, uniform( random, 0, 2 * Math.PI ) );
+		final double[][] covariance = new double[ 3 ][ 3 ];
+		for ( int i = 0; i < 3; i++ )
+			for ( int j = 0; j < 3; j++ )
+				for ( int k = 0; k < 3; k++ )
+					covariance[ i ][ j ] += a.get( i, k ) * a.get( j, k );
+		ellipsoid = new Ellipsoid( center, covariance, null, null, null );
+
+		// normals are A^-T * u
+		final AffineTransform3D aInverse = a.inverse();
+
+		edgels = new ArrayList<>( numEdgels );
+		final double[] u = new double[ 3 ];
+		final double[] position = new double[ 3 ];
+		final double[] gradient = new double[ 3 ];
+		final int numOutliers = ( int ) ( OUTLIER_FRACTION * numEdgels );
+		for ( int e = 0; e < numEdgels - numOutliers; e++ )
+		{
+			randomUnitVector( random, u );
+			for ( int i = 0; i < 3; i++ )
+			{
+				position[ i ] = center[ i ] + POSITION_NOISE * random.nextGaussian();
+				gradient[ i ] = 0;
+				for ( int k = 0; k < 3; k++ )
+				{
+					position[ i ] += a.get( i, k ) * u[ k ];
+					// gradient points inwards, against the normal
+					gradient[ i ] -= aInverse.get( k, i ) * u[ k ];
+				}
+			}
+			normalize( gradient );
+			for ( int i = 0; i < 3; i++ )
+				gradient[ i ] += GRADIENT_NOISE * random.nextGaussian();
+			normalize( gradient );
+			edgels.add( new Edgel( position, gradient, uniform( random, 10, 100 ) ) );
+		}
+		for ( int e = 0; e < numOutliers; e++ )
+		{
+			for ( int i = 0; i < 3; i++ )
+				position[ i ] = center[ i ] + uniform( random, -1.5, 1.5 ) * MAX_RADIUS;
+			randomUnitVector( random, gradient );
+			edgels.add( new Edgel( position, gradient, uniform( random, 10, 100 ) ) );
+		}
+	}
+
+	public Ellipsoid getEllipsoid()
+	{
+		return ellipsoid;
+	}
+
+	public double[] getCenter()
+	{
+		return ellipsoid.getCenter();
+	}
+
+	public List< Edgel > getEdgels()
+	{
+		return edgels;
+	}
+
+	private static double uniform( final Random random, final double min, final double max )
+	{
+		return min + random.nextDouble() * ( max - min );
+	}
+
+	private static void randomUnitVector( final Random random, final double[] v )
+	{
+		for ( int i = 0; i < 3; i++ )
+			v[ i ] = random.nextGaussian();
+		normalize( v );
+	}
+
+	private static void normalize( final double[] v )
+	{
+		final double norm = Math.sqrt( v[ 0 ] * v[ 0 ] + v[ 1 ] * v[ 1 ] + v[ 2 ] * v[ 2 ] );
+		for ( int i = 0; i < 3; i++ )
+			v[ i ] /= norm;
+	}
+}
@@ -0,0 +1,145 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.ellipsoid;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.mastodon.mamut.fitting.edgel.SyntheticEdgels;
+import org.mastodon.mamut.fitting.ellipsoid.DistPointHyperEllipsoid.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.imglib2.algorithm.edge.Edgel;
+
+/**
+ * Benchmarks of the ellipsoid fit and of the point to ellipsoid distance.
+ * <p>
+ * {@link #yuryPetrovSample()} fits the 9 points of a RANSAC sample,
+ * {@link #yuryPetrovAll()} fits all surface points as in the refinement. The
+ * {@code Flat} variants use the allocation-free solver.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class FitEllipsoidBenchmark
+{
+	@Param( { "1000", "10000", "50000" } )
+	public int numEdgels;
+
+	private List< Edgel > edgels;
+
+	private double[][] samplePoints;
+
+	private double[][] allPoints;
+
+	private double[] flatSamplePoints;
+
+	private double[] flatAllPoints;
+
+	private final double[] scratch = new double[ FitEllipsoid.SCRATCH_LENGTH ];
+
+	private final double[] center = new double[ 3 ];
+
+	private final double[][] precision = new double[ 3 ][ 3 ];
+
+	private Ellipsoid ellipsoid;
+
+	@Setup
+	public void setup()
+	{
+		final SyntheticEdgels data = new SyntheticEdgels( numEdgels, 42 );
+		edgels = data.getEdgels();
+		ellipsoid = data.getEllipsoid();
+		// the first 80% of the edgels lie on the surface
+		allPoints = new double[ ( int ) ( 0.8 * numEdgels ) ][ 3 ];
+		for ( int i = 0; i < allPoints.length; i++ )
+			edgels.get( i ).localize( allPoints[ i ] );
+		samplePoints = new double[ 9 ][];
+		for ( int i = 0; i < samplePoints.length; i++ )
+			samplePoints[ i ] = allPoints[ i * allPoints.length / samplePoints.length ];
+		flatSamplePoints = flatten( samplePoints );
+		flatAllPoints = flatten( allPoints );
+	}
+
+	@Benchmark
+	public Ellipsoid yuryPetrovSample()
+	{
+		return FitEllipsoid.yuryPetrov( samplePoints );
+	}
+
+	@Benchmark
+	public Ellipsoid yuryPetrovAll()
+	{
+		return FitEllipsoid.yuryPetrov( allPoints );
+	}
+
+	@Benchmark
+	public boolean yuryPetrovSampleFlat()
+	{
+		return FitEllipsoid.yuryPetrov( flatSamplePoints, samplePoints.length, scratch, center, precision );
+	}
+
+	@Benchmark
+	public boolean yuryPetrovAllFlat()
+	{
+		return FitEllipsoid.yuryPetrov( flatAllPoints, allPoints.length, scratch, center, precision );
+	}
+
+	@Benchmark
+	public void distPointHyperEllipsoid( final Blackhole blackhole )
+	{
+		for ( final Edgel edgel : edgels )
+		{
+			final Result result = DistPointHyperEllipsoid.distPointHyperEllipsoid( edgel, ellipsoid );
+			blackhole.consume( result.distance );
+		}
+	}
+
+	private static double[] flatten( final double[][] points )
+	{
+		final double[] flat = new double[ 3 * points.length ];
+		for ( int i = 0; i < points.length; i++ )
+			System.arraycopy( points[ i ], 0, flat, 3 * i, 3 );
+		return flat;
+	}
+}
@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefObjectMap;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.VertexPositionListener;
+
+/**
+ * Records which spots need to be fitted again.
+ * <p>
+ * For every fitted spot, the tracker remembers the settings the fit was made
+ * with. A spot is dirty if it was never fitted, if it was moved or (re)added
+ * since it was fitted, or if it was fitted with different settings, see
+ * {@link FitEllipsoidSettings#equals(Object)}.
+ * <p>
+ * Moving a spot while committing a fit also fires a position event. Spots
+ * must therefore be marked as fitted only after the fit was committed.
+ */
+public class DirtySpotTracker implements GraphListener< Spot, Link >, VertexPositionListener< Spot >
+{
+	private final ModelGraph graph;
+
+	private final RefObjectMap< Spot, FitEllipsoidSettings > fittedWith;
+
+	public DirtySpotTracker( final ModelGraph graph )
+	{
+		this.graph = graph;
+		this.fittedWith = RefCollections.createRefObjectMap( graph.vertices() );
+	}
+
+	/**
+	 * Starts listening to changes of the graph.
+	 */
+	public void install()
+	{
+		graph.addGraphListener( this );
+		graph.addVertexPositionListener( this );
+	}
+
+	/**
+	 * Stops listening to changes of the graph.
+	 */
+	public void uninstall()
+	{
+		graph.removeGraphListener( this );
+		graph.removeVertexPositionListener( this );
+	}
+
+	/**
+	 * Records that the given {@code spots} were fitted with the given
+	 * {@code settings}.
+	 */
+	public synchronized void markFitted( final List< Spot > spots, final FitEllipsoidSettings settings )
+	{
+		final FitEllipsoidSettings copy = settings.copy();
+		for ( final Spot spot : spots )
+			fittedWith.put( spot, copy );
+	}
+
+	/**
+	 * @return true if the given {@code spot} needs to be fitted with the given
+	 *         {@code settings}.
+	 */
+	public synchronized boolean isDirty( final Spot spot, final FitEllipsoidSettings settings )
+	{
+		final FitEllipsoidSettings fitted = fittedWith.get( spot );
+		return fitted == null || !fitted.equals( settings );
+	}
+
+	/**
+	 * Returns those of the given {@code spots} that need to be fitted with the
+	 * given {@code settings}.
+	 */
+	public synchronized List< Spot > filterDirty( final List< Spot > spots, final FitEllipsoidSettings settings )
+	{
+		final List< Spot > dirty = new ArrayList<>();
+		for ( final Spot spot : spots )
+			if ( isDirty( spot, settings ) )
+				dirty.add( spot );
+		return dirty;
+	}
+
+	@Override
+	public synchronized void graphRebuilt()
+	{
+		fittedWith.clear();
+	}
+
+	@Override
+	public synchronized void vertexAdded( final Spot spot )
+	{
+		// NB: the pool index of a removed spot may be reused.
+		fittedWith.remove( spot );
+	}
+
+	@Override
+	public synchronized void vertexRemoved( final Spot spot )
+	{
+		fittedWith.remove( spot );
+	}
+
+	@Override
+	public void edgeAdded( final Link link )
+	{
+		// links do not affect the fit
+	}
+
+	@Override
+	public void edgeRemoved( final Link link )
+	{
+		// links do not affect the fit
+	}
+
+	@Override
+	public synchronized void vertexPositionChanged( final Spot spot )
+	{
+		fittedWith.remove( spot );
+	}
+}
@@ -31,27 +31,50 @@ package org.mastodon.mamut.fitting;
 import static org.mastodon.app.ui.ViewMenuBuilder.item;
 import static org.mastodon.app.ui.ViewMenuBuilder.menu;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.function.BooleanSupplier;
 
 import javax.annotation.Nonnull;
+import javax.swing.SwingUtilities;
 
-import org.apache.commons.lang3.time.StopWatch;
 import org.mastodon.app.ui.ViewMenuBuilder;
 import org.mastodon.collection.RefSet;
+import org.mastodon.graph.GraphIdBimap;
 import org.mastodon.mamut.KeyConfigScopes;
 import org.mastodon.mamut.ProjectModel;
+import org.mastodon.mamut.fitting.cache.BlurredBlockCache;
+import org.mastodon.mamut.fitting.cache.FitResultCache;
+import org.mastodon.mamut.fitting.edgel.EdgelBuffer;
 import org.mastodon.mamut.fitting.edgel.Edgels;
+import org.mastodon.mamut.fitting.edgel.GaussianDerivativeEdgelDetector;
 import org.mastodon.mamut.fitting.edgel.NoEllipsoidFoundException;
+import org.mastodon.mamut.fitting.edgel.RadialShell;
+import org.mastodon.mamut.fitting.edgel.RansacOptions;
+import org.mastodon.mamut.fitting.edgel.SamplingStatistics;
 import org.mastodon.mamut.fitting.edgel.SampleEllipsoidEdgel;
 import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+import org.mastodon.mamut.fitting.report.FitReportWriter;
+import org.mastodon.mamut.fitting.report.SpotFitRecord;
+import org.mastodon.mamut.fitting.timing.FitStage;
+import org.mastodon.mamut.fitting.timing.FitTimings;
+import org.mastodon.mamut.fitting.timing.StageTimer;
+import org.mastodon.mamut.fitting.timing.StageTimers;
 import org.mastodon.mamut.fitting.ui.EdgelsOverlay;
 import org.mastodon.mamut.fitting.ui.EllipsoidOverlay;
+import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.plugin.MamutPlugin;
 import org.mastodon.ui.keymap.KeyConfigContexts;
@@ -64,7 +87,6 @@ import org.scijava.ui.behaviour.util.Actions;
 import org.scijava.ui.behaviour.util.RunnableAction;
 
 import bdv.tools.brightness.ConverterSetup;
-import bdv.util.Affine3DHelpers;
 import bdv.util.Bdv;
 import bdv.util.BdvFunctions;
 import bdv.util.BdvStackSource;
@@ -81,7 +103,6 @@ import net.imglib2.converter.RealTypeConverters;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.parallel.Parallelization;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -94,13 +115,36 @@ public class FitEllipsoidPlugin extends AbstractContextual implements MamutPlugi
 {
 	private static final String FIT_SELECTED_VERTICES = "[ellipsoid fitting] fit selected vertices";
 
+	private static final String REFIT_CHANGED_VERTICES = "[ellipsoid fitting] refit changed vertices";
+
+	private static final String TOGGLE_LIVE_FITTING = "[ellipsoid fitting] toggle live fitting";
+
+	private static final String CANCEL_FITTING = "[ellipsoid fitting] cancel fitting";
+
+	private static final String UNDO = "[ellipsoid fitting] undo";
+
+	private static final String REDO = "[ellipsoid fitting] redo";
+
 	private static final String[] FIT_SELECTED_VERTICES_KEYS = new String[] { "meta F", "alt F" };
 
+	private static final String[] REFIT_CHANGED_VERTICES_KEYS = new String[] { "not mapped" };
+
+	private static final String[] TOGGLE_LIVE_FITTING_KEYS = new String[] { "not mapped" };
+
+	private static final String[] CANCEL_FITTING_KEYS = new String[] { "not mapped" };
+
+	private static final String[] UNDO_KEYS = new String[] { "not mapped" };
+
+	private static final String[] REDO_KEYS = new String[] { "not mapped" };
+
 	private static Map< String, String > menuTexts = new HashMap<>();
 
 	static
 	{
 		menuTexts.put( FIT_SELECTED_VERTICES, "Ellipsoid fitting" );
+		menuTexts.put( REFIT_CHANGED_VERTICES, "Ellipsoid fitting of changed spots" );
+		menuTexts.put( TOGGLE_LIVE_FITTING, "Toggle live ellipsoid fitting" );
+		menuTexts.put( CANCEL_FITTING, "Cancel ellipsoid fitting" );
 	}
 
 	/*
@@ -120,28 +164,196 @@ public class FitEllipsoidPlugin extends AbstractContextual implements MamutPlugi
 			descriptions.add(
 					FIT_SELECTED_VERTICES,
 					FIT_SELECTED_VERTICES_KEYS,
-					"Fit the currently selected spots to ellipsoids that best wrap bright pixels in the first source." );
+					"Fit the currently selected spots to ellipsoids that best wrap bright pixels in the first source. "
+							+ "Runs in the background, repeated requests while fitting are ignored." );
+			descriptions.add(
+					REFIT_CHANGED_VERTICES,
+					REFIT_CHANGED_VERTICES_KEYS,
+					"Fit those of the currently selected spots that were moved or added since they were last fitted, "
+							+ "that were never fitted, or that were fitted with different parameters." );
+			descriptions.add(
+					TOGGLE_LIVE_FITTING,
+					TOGGLE_LIVE_FITTING_KEYS,
+					"Toggle live fitting. When on, spots are refitted in the background shortly after they are moved or added." );
+			descriptions.add(
+					CANCEL_FITTING,
+					CANCEL_FITTING_KEYS,
+					"Cancel the running ellipsoid fitting. Spots fitted so far keep their ellipsoids." );
+			descriptions.add(
+					UNDO,
+					UNDO_KEYS,
+					"Undo the last changes without triggering live fitting. "
+							+ "Map this in place of the standard undo to keep the redo history while live fitting is on." );
+			descriptions.add(
+					REDO,
+					REDO_KEYS,
+					"Redo the last undone changes without triggering live fitting." );
 		}
 	}
 
+	private static final FitProgressListener LOG_PROGRESS = new FitProgressListener()
+	{
+		@Override
+		public void progress( final FitProgress progress )
+		{
+			System.out.println( progress );
+		}
+
+		@Override
+		public void finished( final FitProgress progress, final boolean canceled )
+		{
+			if ( canceled )
+				System.out.println( "Ellipsoid fitting canceled. " + progress );
+		}
+	};
+
 	private final AbstractNamedAction fitSelectedVerticesAction;
 
+	private final AbstractNamedAction refitChangedVerticesAction;
+
+	private final AbstractNamedAction toggleLiveFittingAction;
+
+	private final AbstractNamedAction cancelFittingAction;
+
+	private final AbstractNamedAction undoAction;
+
+	private final AbstractNamedAction redoAction;
+
+	private final FitJobRunner jobRunner = new FitJobRunner();
+
 	private MinimalProjectModel minimalProjectModel;
 
+	private SpotEditStamps editStamps;
+
+	private DirtySpotTracker dirtySpotTracker;
+
+	private LiveAutoFit liveAutoFit;
+
+	private FitResultCache projectResultCache;
+
+	private File reportFile;
+
+	private final FitEllipsoidSettings settings = new FitEllipsoidSettings();
+
+	private FitProgressListener progressListener = LOG_PROGRESS;
+
 	public FitEllipsoidPlugin()
 	{
-		fitSelectedVerticesAction = new RunnableAction( FIT_SELECTED_VERTICES, this::fitSelectedVertices );
+		fitSelectedVerticesAction = new RunnableAction( FIT_SELECTED_VERTICES, this::fitSelectedVerticesInBackground );
+		refitChangedVerticesAction = new RunnableAction( REFIT_CHANGED_VERTICES, this::refitChangedVerticesInBackground );
+		toggleLiveFittingAction = new RunnableAction( TOGGLE_LIVE_FITTING, () -> setLiveFitting( !isLiveFitting() ) );
+		cancelFittingAction = new RunnableAction( CANCEL_FITTING, jobRunner::cancel );
+		undoAction = new RunnableAction( UNDO, this::undo );
+		redoAction = new RunnableAction( REDO, this::redo );
 	}
 
 	@Override
 	public void setAppPluginModel( final ProjectModel projectModel )
 	{
-		this.minimalProjectModel = new MinimalProjectModel( projectModel );
+		setMinimalProjectModel( new MinimalProjectModel( projectModel ) );
 	}
 
 	void setMinimalProjectModel( final MinimalProjectModel minimalProjectModel )
 	{
+		final boolean liveFitting = isLiveFitting();
+		setLiveFitting( false );
+		if ( dirtySpotTracker != null )
+			dirtySpotTracker.uninstall();
+		if ( editStamps != null )
+			editStamps.uninstall();
 		this.minimalProjectModel = minimalProjectModel;
+		this.projectResultCache = null;
+		this.editStamps = new SpotEditStamps( minimalProjectModel.getModel().getGraph() );
+		editStamps.install();
+		this.dirtySpotTracker = new DirtySpotTracker( minimalProjectModel.getModel().getGraph() );
+		dirtySpotTracker.install();
+		setLiveFitting( liveFitting );
+	}
+
+	/**
+	 * Turns live fitting on or off. When on, spots are refitted in the
+	 * background 100 ms after they were last
+	 * moved or added, using the current {@link #getSettings()}.
+	 */
+	public synchronized void setLiveFitting( final boolean enabled )
+	{
+		if ( enabled == isLiveFitting() )
+			return;
+		if ( enabled )
+		{
+			final BlurredBlockCache blockCache = settings.getBlockCacheBytes() > 0
+					? new BlurredBlockCache( BLOCK_SIZE, settings.getBlockCacheBytes() )
+					: null;
+			liveAutoFit = new LiveAutoFit( minimalProjectModel.getModel(), editStamps, dirtySpotTracker, settings,
+					( spot, fitSettings, isCanceled ) -> fitSpot( Cast.unchecked( getSource() ), spot, fitSettings, blockCache, isCanceled ),
+					LIVE_FITTING_DELAY_MILLIS );
+			liveAutoFit.install();
+		}
+		else
+		{
+			liveAutoFit.uninstall();
+			liveAutoFit = null;
+		}
+	}
+
+	public synchronized boolean isLiveFitting()
+	{
+		return liveAutoFit != null;
+	}
+
+	/**
+	 * Undoes the last changes of the model. Unlike the standard undo, the
+	 * replayed edits do not trigger live fitting, which would record new
+	 * edits and clear the redo history.
+	 */
+	public void undo()
+	{
+		replay( minimalProjectModel.getModel()::undo );
+	}
+
+	/**
+	 * Redoes the last undone changes of the model, without triggering live
+	 * fitting. See {@link #undo()}.
+	 */
+	public void redo()
+	{
+		replay( minimalProjectModel.getModel()::redo );
+	}
+
+	private synchronized void replay( final Runnable undoOrRedo )
+	{
+		if ( liveAutoFit != null )
+			liveAutoFit.replay( undoOrRedo );
+		else
+			undoOrRedo.run();
+	}
+
+	/**
+	 * Returns the parameters used for fitting. Changes apply to subsequent
+	 * fitting runs.
+	 */
+	public FitEllipsoidSettings getSettings()
+	{
+		return settings;
+	}
+
+	/**
+	 * Sets the file that each fitting run writes its report to, with one row
+	 * per spot. Files ending with {@code .csv} are written as CSV, others as
+	 * JSON. {@code null}, the default, disables the report.
+	 */
+	public void setReportFile( final File reportFile )
+	{
+		this.reportFile = reportFile;
+	}
+
+	/**
+	 * Sets the listener that receives progress updates of fitting runs. By
+	 * default, progress is logged to {@code System.out}.
+	 */
+	public void setProgressListener( final FitProgressListener progressListener )
+	{
+		this.progressListener = progressListener;
 	}
 
 	@Override
@@ -151,7 +363,10 @@ public class FitEllipsoidPlugin extends AbstractContextual implements MamutPlugi
 				menu( "Plugins",
 						menu( "Spots management",
 								menu( "Transform spots",
-										item( FIT_SELECTED_VERTICES ) ) ) ) );
+										item( FIT_SELECTED_VERTICES ),
+										item( REFIT_CHANGED_VERTICES ),
+										item( TOGGLE_LIVE_FITTING ),
+										item( CANCEL_FITTING ) ) ) ) );
 	}
 
 	@Override
@@ -164,102 +379,359 @@ public class FitEllipsoidPlugin extends AbstractContextual implements MamutPlugi
 	public void installGlobalActions( final Actions actions )
 	{
 		actions.namedAction( fitSelectedVerticesAction, FIT_SELECTED_VERTICES_KEYS );
+		actions.namedAction( refitChangedVerticesAction, REFIT_CHANGED_VERTICES_KEYS );
+		actions.namedAction( toggleLiveFittingAction, TOGGLE_LIVE_FITTING_KEYS );
+		actions.namedAction( cancelFittingAction, CANCEL_FITTING_KEYS );
+		actions.namedAction( undoAction, UNDO_KEYS );
+		actions.namedAction( redoAction, REDO_KEYS );
 	}
 
-	public void fitSelectedVertices()
+	/**
+	 * Fits the selected spots in the calling thread and returns when all of
+	 * them are done.
+	 *
+	 * @return the time spent per stage.
+	 */
+	public FitTimings fitSelectedVertices()
+	{
+		return fitSelectedVertices( progressListener, () -> false );
+	}
+
+	/**
+	 * Fits the selected spots on a background thread. Does nothing if a
+	 * background fitting run is still in progress.
+	 */
+	public void fitSelectedVerticesInBackground()
+	{
+		final FitProgressListener listener = progressListener;
+		if ( !jobRunner.submit( isCanceled -> fitSelectedVertices( listener, isCanceled ) ) )
+			System.out.println( "Ellipsoid fitting is already running." );
+	}
+
+	/**
+	 * Fits the selected spots that changed since they were last fitted, in the
+	 * calling thread. See {@link #refitChangedVertices(FitProgressListener, BooleanSupplier)}.
+	 *
+	 * @return the time spent per stage.
+	 */
+	public FitTimings refitChangedVertices()
+	{
+		return refitChangedVertices( progressListener, () -> false );
+	}
+
+	/**
+	 * Fits the selected spots that changed since they were last fitted, on a
+	 * background thread. Does nothing if a background fitting run is still in
+	 * progress.
+	 */
+	public void refitChangedVerticesInBackground()
+	{
+		final FitProgressListener listener = progressListener;
+		if ( !jobRunner.submit( isCanceled -> refitChangedVertices( listener, isCanceled ) ) )
+			System.out.println( "Ellipsoid fitting is already running." );
+	}
+
+	/**
+	 * Requests cancellation of the background fitting run, if any.
+	 */
+	public void cancelFitting()
+	{
+		jobRunner.cancel();
+	}
+
+	/**
+	 * Fits the selected spots in the calling thread.
+	 *
+	 * @param listener
+	 *            receives progress updates.
+	 * @param isCanceled
+	 *            checked between spots and while sampling. Once it returns
+	 *            true, no further spots are fitted. Spots fitted so far keep
+	 *            their ellipsoids.
+	 * @return the time spent per stage.
+	 */
+	public FitTimings fitSelectedVertices( final FitProgressListener listener, final BooleanSupplier isCanceled )
+	{
+		final RefSet< Spot > vertices = minimalProjectModel.getSelectionModel().getSelectedVertices();
+		if ( vertices.isEmpty() )
+			System.err.println( "no vertex selected" );
+		// NB: RefSet is not thread-safe for iteration.
+		return process( Cast.unchecked( getSource() ), asArrayList( vertices ), listener, isCanceled );
+	}
+
+	/**
+	 * Fits the selected spots that were moved or added since they were last
+	 * fitted, that were never fitted, or that were last fitted with settings
+	 * different from the current {@link #getSettings()}. Other selected spots
+	 * are skipped.
+	 *
+	 * @param listener
+	 *            receives progress updates.
+	 * @param isCanceled
+	 *            checked between spots and while sampling.
+	 * @return the time spent per stage.
+	 */
+	public FitTimings refitChangedVertices( final FitProgressListener listener, final BooleanSupplier isCanceled )
+	{
+		final RefSet< Spot > vertices = minimalProjectModel.getSelectionModel().getSelectedVertices();
+		final List< Spot > dirty = dirtySpotTracker.filterDirty( asArrayList( vertices ), settings );
+		System.out.println( "Refitting " + dirty.size() + " of " + vertices.size() + " selected spots." );
+		return process( Cast.unchecked( getSource() ), dirty, listener, isCanceled );
+	}
+
+	private SourceAndConverter< ? > getSource()
 	{
 		// TODO: parameters to select which source to act on
 		final int sourceIndex = 0;
 		final SourceAndConverter< ? > source = minimalProjectModel.getSharedBdvData().getSources().get( sourceIndex );
 		if ( !( source.getSpimSource().getType() instanceof RealType ) )
 			throw new IllegalArgumentException( "Expected RealType image source" );
-		process( Cast.unchecked( source ) );
+		return source;
 	}
 
-	private static final boolean TRACE = false;
+	private static final boolean DEBUG_UI = false;
 
-	private static final boolean DEBUG = false;
+	private static final int BLOCK_SIZE = 32;
 
-	private static final boolean DEBUG_UI = false;
+	private static final long LIVE_FITTING_DELAY_MILLIS = 100;
 
 	@SuppressWarnings( "unused" )
-	private < T extends RealType< T > > void process( final SourceAndConverter< T > source )
+	private < T extends RealType< T > > FitTimings process( final SourceAndConverter< T > source, final List< Spot > threadSafeVertices,
+			final FitProgressListener listener, final BooleanSupplier isCanceled )
 	{
-		final RefSet< Spot > vertices = minimalProjectModel.getSelectionModel().getSelectedVertices();
-		if ( vertices.isEmpty() )
-			System.err.println( "no vertex selected" );
+		final StageTimers timers = new StageTimers();
 
-		// init watch and counters
-		final AtomicInteger found = new AtomicInteger( 0 );
-		final AtomicInteger notFound = new AtomicInteger( 0 );
-		final StopWatch watch = new StopWatch();
-		watch.start();
+		// parallelize over vertices, grouped by timepoint
+		final FitEllipsoidSettings fitSettings = settings.copy();
+		final ProgressReporter progress = new ProgressReporter( listener, threadSafeVertices.size() );
+		final ReentrantReadWriteLock lock = minimalProjectModel.getModel().getGraph().getLock();
+		final ReentrantReadWriteLock.WriteLock writeLock = lock.writeLock();
+		final BlurredBlockCache blockCache = fitSettings.getBlockCacheBytes() > 0
+				? new BlurredBlockCache( BLOCK_SIZE, fitSettings.getBlockCacheBytes() )
+				: null;
 
-		// parallelize over vertices
-		final ArrayList< Spot > threadSafeVertices = asArrayList( vertices );
-		// NB: RefSet is not thread-safe for iteration.
-		final int totalTasks = vertices.size();
-		final ReentrantReadWriteLock.WriteLock writeLock = minimalProjectModel.getModel().getGraph().getLock().writeLock();
+		final FitResults results;
+		lock.readLock().lock();
+		try
+		{
+			results = new FitResults( threadSafeVertices, editStamps );
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
 
-		Parallelization.getTaskExecutor().forEach( threadSafeVertices, spot -> {
-			// loop over vertices in parallel using multiple threads
+		final FitResultCache resultCache = getResultCache( fitSettings );
+		final GraphIdBimap< Spot, Link > idBimap = minimalProjectModel.getModel().getGraphIdBimap();
+		final String sourceName = source.getSpimSource().getName();
+		final long settingsDigest = fitSettings.digest();
+		final AtomicInteger cacheHits = new AtomicInteger();
+		final FitReportWriter report = openReport();
+		final AtomicBoolean reportFailed = new AtomicBoolean();
 
-			try
-			{
-				final long t1 = System.currentTimeMillis();
-				final Ellipsoid ellipsoid = fitEllipsoid( spot, source );
-				final long runtime = System.currentTimeMillis() - t1;
-				writeLock.lock();
+		progress.started();
+		try
+		{
+			TimepointScheduler.forEachSpot( threadSafeVertices, source.getSpimSource(), fitSettings.getTimepointWindow(), ( spot, frames ) -> {
+				// loop over vertices in parallel using multiple threads
+
+				if ( isCanceled.getAsBoolean() )
+					return;
+
+				final int spotId = idBimap.getVertexId( spot );
+				final double[] center = spot.positionAsDoubleArray();
+				final double[][] covariance = new double[ 3 ][ 3 ];
+				spot.getCovariance( covariance );
+				final SpotFitRecord record = report == null ? null : new SpotFitRecord( spotId, spot.getLabel(), spot.getTimepoint() );
+				if ( resultCache != null )
+				{
+					final Ellipsoid cached = resultCache.get( spotId, spot.getTimepoint(), center, covariance, sourceName, settingsDigest );
+					if ( cached != null )
+					{
+						results.set( spot, cached );
+						cacheHits.incrementAndGet();
+						progress.found();
+						if ( record != null )
+						{
+							record.setOutcome( SpotFitRecord.Outcome.CACHED, null );
+							writeReport( report, record, reportFailed );
+						}
+						return;
+					}
+				}
+
+				final StageTimer timer = timers.get();
+				timer.beginSpot();
+				SpotFitRecord.Outcome outcome = SpotFitRecord.Outcome.FITTED;
+				String reason = null;
 				try
 				{
-					spot.setPosition( ellipsoid );
-					spot.setCovariance( ellipsoid.getCovariance() );
+					final Ellipsoid ellipsoid = fitEllipsoid( spot, frames, source, fitSettings, blockCache, isCanceled, record );
+					results.set( spot, ellipsoid );
+					if ( resultCache != null )
+						resultCache.put( spotId, spot.getTimepoint(), center, covariance, sourceName, settingsDigest, ellipsoid );
+					progress.found();
+				}
+				catch ( final NoEllipsoidFoundException e )
+				{
+					results.setNotFound( spot );
+					progress.notFound();
+					outcome = SpotFitRecord.Outcome.NOT_FOUND;
+					reason = e.getMessage();
+				}
+				catch ( final CancellationException e )
+				{
+					// the run was canceled while sampling, leave the spot unchanged
+					outcome = SpotFitRecord.Outcome.CANCELED;
+				}
+				catch ( final Exception e )
+				{
+					progress.notFound();
+					System.err.println( "Error while fitting ellipsoid for spot: " + spot.getLabel() );
+					e.printStackTrace();
+					outcome = SpotFitRecord.Outcome.ERROR;
+					reason = e.toString();
 				}
 				finally
 				{
-					writeLock.unlock();
+					timer.endSpot();
 				}
-				found.getAndIncrement();
-				if ( TRACE )
-					System.out.println( "Computed ellipsoid in " + runtime + "ms. Ellipsoid: " + ellipsoid );
-			}
-			catch ( final NoEllipsoidFoundException e )
-			{
-				notFound.getAndIncrement();
-				if ( DEBUG )
+				if ( record != null )
 				{
-					System.out.println( "No ellipsoid found. spot: " + spot.getLabel() );
-					System.out.println( "Reason: " + e.getMessage() );
+					record.setOutcome( outcome, reason );
+					record.setTimes( timer );
+					writeReport( report, record, reportFailed );
 				}
-			}
-			catch ( final Exception e )
+			}, window -> {
+				// NB: hold the lock until the spots are marked, so that no edit slips in between
+				writeLock.lock();
+				try
+				{
+					results.commit( window, writeLock );
+					// NB: after commit, which marks the moved spots dirty
+					dirtySpotTracker.markFitted( window.stream().filter( results::isDone ).collect( Collectors.toList() ), fitSettings );
+				}
+				finally
+				{
+					writeLock.unlock();
+				}
+			} );
+		}
+		finally
+		{
+			closeReport( report );
+		}
+
+		final FitTimings timings = timers.summarize();
+		final FitProgress summary = progress.snapshot();
+		final int found = summary.getFound();
+		final int processed = summary.getProcessed();
+		System.out.println( "found: " + found + " ("
+				+ Math.round( ( double ) found / processed * 100d )
+				+ "%), not found: " + summary.getNotFound() + " ("
+				+ Math.round( ( double ) summary.getNotFound() / processed * 100d )
+				+ "%)." );
+		System.out.println( timings );
+		if ( resultCache != null )
+		{
+			System.out.println( "reused from cache: " + cacheHits.get() );
+			saveResultCache( resultCache );
+		}
+		progress.finished( isCanceled.getAsBoolean() );
+
+		// set undo point if at least one spot was fitted
+		// NB: on the EDT, where edits and their undo points happen
+		if ( found > 0 )
+			SwingUtilities.invokeLater( minimalProjectModel.getModel()::setUndoPoint );
+		return timings;
+	}
+
+	/**
+	 * Opens the writer of the report file, or returns {@code null} if there
+	 * is no report file or it can't be opened. Package-private so that tests
+	 * can substitute the writer.
+	 */
+	FitReportWriter openReport()
+	{
+		final File file = reportFile;
+		if ( file == null )
+			return null;
+		try
+		{
+			return FitReportWriter.open( file );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not write fit report to: " + file );
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the {@code record} to the {@code report}, unless writing failed
+	 * before. The report is only a diagnostic, so a failure stops the report,
+	 * but not the run.
+	 */
+	private static void writeReport( final FitReportWriter report, final SpotFitRecord record, final AtomicBoolean reportFailed )
+	{
+		if ( reportFailed.get() )
+			return;
+		try
+		{
+			report.write( record );
+		}
+		catch ( final UncheckedIOException e )
+		{
+			if ( reportFailed.compareAndSet( false, true ) )
 			{
-				notFound.getAndIncrement();
-				System.err.println( "Error while fitting ellipsoid for spot: " + spot.getLabel() );
+				System.err.println( "Could not write fit report, no more spots are reported." );
 				e.printStackTrace();
 			}
+		}
+	}
 
-			final int outputRate = 1000;
-			if ( DEBUG && ( found.get() + notFound.get() ) % outputRate == 0 )
-				System.out.println( "Computed " + ( found.get() + notFound.get() ) + " of " + totalTasks
-						+ " ellipsoids ("
-						+ Math.round( ( found.get() + notFound.get() ) / ( double ) totalTasks * 100d )
-						+ "%). Total time: "
-						+ watch.formatTime() );
-
-		} );
+	private static void closeReport( final FitReportWriter report )
+	{
+		if ( report == null )
+			return;
+		try
+		{
+			report.close();
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not finish fit report." );
+			e.printStackTrace();
+		}
+	}
 
-		System.out.println( "found: " + found.get() + " ("
-				+ Math.round( ( double ) found.get() / ( found.get() + notFound.get() ) * 100d )
-				+ "%), not found: " + notFound.get() + " ("
-				+ Math.round( ( double ) notFound.get() / ( found.get() + notFound.get() ) * 100d )
-				+ "%), total time: " + watch.formatTime()
-				+ ", time per spot: " + ( int ) ( ( double ) watch.getTime() / ( found.get() + notFound.get() ) )
-				+ "ms." );
+	/**
+	 * Returns the cache of fit results of the project, or {@code null} if
+	 * {@link FitEllipsoidSettings#isUseResultCache()} is off in the given
+	 * {@code fitSettings} or the project was not saved yet.
+	 */
+	private synchronized FitResultCache getResultCache( final FitEllipsoidSettings fitSettings )
+	{
+		final File projectRoot = minimalProjectModel.getProjectRoot();
+		if ( !fitSettings.isUseResultCache() || projectRoot == null )
+			return null;
+		if ( projectResultCache == null )
+			projectResultCache = FitResultCache.load( FitResultCache.sidecarFile( projectRoot ) );
+		return projectResultCache;
+	}
 
-		// set undo point if at least one spot was fitted
-		if ( found.get() > 0 )
-			minimalProjectModel.getModel().setUndoPoint();
+	private static void saveResultCache( final FitResultCache resultCache )
+	{
+		try
+		{
+			resultCache.save();
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not save ellipsoid fit cache." );
+			e.printStackTrace();
+		}
 	}
 
 	private static ArrayList< Spot > asArrayList( final RefSet< Spot > vertices )
@@ -274,80 +746,288 @@ public class FitEllipsoidPlugin extends AbstractContextual implements MamutPlugi
 		return list;
 	}
 
+	/**
+	 * Fits an ellipsoid for the given spot, resolving the frames of its
+	 * timepoint.
+	 */
+	private < T extends RealType< T > > Ellipsoid fitSpot( final SourceAndConverter< T > source, final Spot spot,
+			final FitEllipsoidSettings fitSettings, final BlurredBlockCache blockCache, final BooleanSupplier isCanceled )
+	{
+		final TimepointFrames< T > frames = TimepointFrames.resolve( source.getSpimSource(), spot.getTimepoint() );
+		return fitEllipsoid( spot, frames, source, fitSettings, blockCache, isCanceled, null );
+	}
+
 	/**
 	 * Fit an ellipsoid for the given spot.
 	 *
+	 * @param frames
+	 *            the frames of the spot's timepoint. Full resolution is used,
+	 *            unless {@link FitEllipsoidSettings#isUseMipmapLevels()} is
+	 *            set.
+	 * @param fitSettings
+	 *            the parameters of the run, not changed while fitting.
+	 * @param blockCache
+	 *            cache of blurred image blocks, or {@code null} to blur the
+	 *            crop of the spot directly.
+	 * @param isCanceled
+	 *            checked while sampling.
+	 * @param record
+	 *            receives edgel counts and sampling statistics, may be
+	 *            {@code null}.
 	 * @throws NoEllipsoidFoundException
 	 *             if the ellipsoid fitting algorithm simple does not yield a
 	 *             result.
 	 * @throws RuntimeException
 	 *             if there are other problems, e.g. the image source is not
 	 *             present or the image is not a {@link RealType}.
+	 * @throws CancellationException
+	 *             if {@code isCanceled} returns true while sampling.
 	 */
 	@Nonnull
-	private < T extends RealType< T > > Ellipsoid fitEllipsoid( final Spot spot, final SourceAndConverter< T > source )
+	private < T extends RealType< T > > Ellipsoid fitEllipsoid( final Spot spot, final TimepointFrames< T > frames, final SourceAndConverter< T > source,
+			final FitEllipsoidSettings fitSettings, final BlurredBlockCache blockCache, final BooleanSupplier isCanceled, final SpotFitRecord record )
 	{
-		// TODO: parameters -----------------
-		final double smoothSigma = 2;
+		final boolean coarseToFine = fitSettings.isCoarseToFine();
+		final int level = fitSettings.isUseMipmapLevels() || coarseToFine
+				? ResolutionLevels.selectLevel( frames, Math.sqrt( spot.getBoundingSphereRadiusSquared() ), fitSettings.getMinRadiusInVoxels() )
+				: 0;
+		final int numSamples = fitSettings.getNumSamples();
+		final int numCandidates = fitSettings.getNumCandidates();
+		final double outsideCutoffDistance = fitSettings.getOutsideCutoffDistance();
+		final double insideCutoffDistance = fitSettings.getInsideCutoffDistance();
+		final double angleCutoffDistance = fitSettings.getAngleCutoffDistance();
+		final double maxCenterDistance = fitSettings.getMaxCenterDistance();
 
-		final double minGradientMagnitude = 10;
+		if ( record != null )
+			record.setLevel( level );
+		final SamplingStatistics statistics = record == null ? null : record.getSampling();
+		final SplittableRandom random = fitSettings.isDeterministic()
+				? new SplittableRandom( spotSeed( fitSettings.getSeed(), minimalProjectModel.getModel().getGraphIdBimap().getVertexId( spot ) ) )
+				: new SplittableRandom();
+		final RansacOptions options = new RansacOptions()
+				.setPreemptive( fitSettings.isPreemptive() )
+				.setAdaptive( fitSettings.isAdaptiveSampling() )
+				.setConfidence( fitSettings.getSamplingConfidence() )
+				.setProgressive( fitSettings.isProgressiveSampling() );
 
-		final double maxAngle = 5 * Math.PI / 180.0;
-		final double maxFactor = 1.1;
+		final SourceFrame< T > frame = frames.get( level );
+		final double[] fullScale = frames.get( 0 ).getScale();
+		final EdgelBuffer filteredEdgels = filteredEdgels( spot, frame, fullScale, fitSettings, blockCache, null, record );
 
-		final int numSamples = 1000;
-		final int numCandidates = 100;
-		final double outsideCutoffDistance = 3;
-		final double insideCutoffDistance = 5;
-		final double angleCutoffDistance = 30 * Math.PI / 180.0;
-		final double maxCenterDistance = 10;
-		// ----------------------------------
-
-		final int timepoint = spot.getTimepoint();
-		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
-		source.getSpimSource().getSourceTransform( timepoint, 0, sourceToGlobal );
-		final RandomAccessibleInterval< T > frame = source.getSpimSource().getSource( timepoint, 0 );
-
-		if ( frame == null )
-			throw new RuntimeException( "No image data for spot: " + spot.getLabel() + " timepoint: " + timepoint );
-
-		final RandomAccessibleInterval< T > cropped = cropSpot( sourceToGlobal, frame, spot );
+		final double[] centerInGlobalCoordinates = spot.positionAsDoubleArray();
+		final Ellipsoid ellipsoid;
+		if ( coarseToFine && level > 0 )
+		{
+			final SourceFrame< T > fullFrame = frames.get( 0 );
+			ellipsoid = SampleEllipsoidEdgel.sampleCoarseToFine(
+					filteredEdgels,
+					coarse -> filteredEdgels( spot, fullFrame, fullScale, fitSettings, blockCache, coarse, record ),
+					centerInGlobalCoordinates,
+					numSamples,
+					numCandidates,
+					fitSettings.getNumRefineSamples(),
+					fitSettings.getNumRefineCandidates(),
+					fitSettings.getShellWidth(),
+					outsideCutoffDistance,
+					insideCutoffDistance,
+					angleCutoffDistance,
+					maxCenterDistance,
+					isCanceled,
+					statistics,
+					random,
+					options );
+		}
+		else
+		{
+			ellipsoid = SampleEllipsoidEdgel.sample(
+					filteredEdgels,
+					centerInGlobalCoordinates,
+					numSamples,
+					numCandidates,
+					outsideCutoffDistance,
+					insideCutoffDistance,
+					angleCutoffDistance,
+					maxCenterDistance,
+					isCanceled,
+					statistics,
+					random,
+					options );
+		}
 
-		final RandomAccessibleInterval< FloatType > converted = RealTypeConverters.convert( cropped, new FloatType() );
+		if ( DEBUG_UI )
+			showBdvDebugWindow( source, outsideCutoffDistance, insideCutoffDistance, angleCutoffDistance, frame.getSourceToGlobal(),
+					blurredCrop( cropSpot( frame, spot ), frame, fullScale, fitSettings, blockCache ), filteredEdgels, ellipsoid );
+		return ellipsoid;
+	}
 
-		final RandomAccessibleInterval< FloatType > input = gaussianBlur( smoothSigma, extractScale( sourceToGlobal ), converted );
+	/**
+	 * Derives the seed of a spot from the seed of the run, as the
+	 * {@code spotId}-th output of a SplitMix64 generator.
+	 */
+	private static long spotSeed( final long seed, final int spotId )
+	{
+		long z = seed + ( spotId + 1L ) * 0x9e3779b97f4a7c15L;
+		z = ( z ^ ( z >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+		z = ( z ^ ( z >>> 27 ) ) * 0x94d049bb133111ebL;
+		return z ^ ( z >>> 31 );
+	}
 
-		final ArrayList< Edgel > gEdgels = getAllEgels( minGradientMagnitude, sourceToGlobal, input );
+	/**
+	 * Blurs the {@code cropped} image of the given {@code frame} with the
+	 * smoothing sigma, adapted to the frame's resolution level.
+	 */
+	private < T extends RealType< T > > RandomAccessibleInterval< FloatType > blurredCrop( final RandomAccessibleInterval< T > cropped,
+			final SourceFrame< T > frame, final double[] fullScale, final FitEllipsoidSettings fitSettings, final BlurredBlockCache blockCache )
+	{
+		final double[] smoothSigmas = ResolutionLevels.smoothingSigmas( fitSettings.getSmoothSigma(), fullScale, frame.getScale() );
+		final StageTimer timer = StageTimer.current();
+		final RandomAccessibleInterval< FloatType > blurred;
+		if ( blockCache != null && isBlurred( smoothSigmas ) )
+		{
+			blurred = blockCache.getBlurred( frame, smoothSigmas, cropped );
+		}
+		else
+		{
+			final RandomAccessibleInterval< FloatType > converted = toFloatArray( cropped );
+			timer.lap( FitStage.CONVERT );
+			blurred = gaussianBlur( smoothSigmas, converted );
+		}
+		timer.lap( FitStage.BLUR );
+		return blurred;
+	}
 
+	/**
+	 * Detects edgels in the crop of the spot from the given {@code frame},
+	 * transforms them to global coordinates and filters them by direction and
+	 * occlusion. If {@code near} is not {@code null}, edgels are only detected
+	 * in a shell around its surface, which includes all edgels within
+	 * {@link FitEllipsoidSettings#getShellWidth()}. Adds the edgel counts to
+	 * {@code record}, if not {@code null}.
+	 */
+	private < T extends RealType< T > > EdgelBuffer filteredEdgels( final Spot spot, final SourceFrame< T > frame, final double[] fullScale,
+			final FitEllipsoidSettings fitSettings, final BlurredBlockCache blockCache, final Ellipsoid near, final SpotFitRecord record )
+	{
+		final double minGradientMagnitude = ResolutionLevels.gradientThreshold( fitSettings.getMinGradientMagnitude(), fullScale, frame.getScale() );
+		final double[] smoothSigmas = ResolutionLevels.smoothingSigmas( fitSettings.getSmoothSigma(), fullScale, frame.getScale() );
 		final double[] centerInGlobalCoordinates = spot.positionAsDoubleArray();
-		final ArrayList< Edgel > filteredEdgels = Edgels.filterEdgelsByOcclusion(
-				Edgels.filterEdgelsByDirection( gEdgels, centerInGlobalCoordinates ), centerInGlobalCoordinates,
-				maxAngle, maxFactor );
+		final StageTimer timer = StageTimer.current();
+		RandomAccessibleInterval< T > cropped = cropSpot( frame, spot );
+		final RadialShell shell;
+		if ( near == null )
+		{
+			shell = shell( spot, frame, cropped, fitSettings );
+		}
+		else
+		{
+			cropped = cropNear( cropped, frame, near, fitSettings.getShellWidth(), smoothSigmas );
+			shell = shellNear( near, frame, cropped, fitSettings.getShellWidth() );
+		}
+		timer.lap( FitStage.CROP );
+		final EdgelBuffer filteredEdgels;
+		final int numEdgels;
+		if ( fitSettings.isGaussianDerivatives() )
+		{
+			filteredEdgels = new EdgelBuffer();
+			new GaussianDerivativeEdgelDetector( smoothSigmas ).detect( cropped, minGradientMagnitude, shell, filteredEdgels );
+			numEdgels = filteredEdgels.size();
+			Edgels.transformAndFilterByDirection( filteredEdgels, zeroMinSourceToGlobal( frame.getSourceToGlobal(), cropped ), centerInGlobalCoordinates );
+		}
+		else
+		{
+			final RandomAccessibleInterval< FloatType > input = blurredCrop( cropped, frame, fullScale, fitSettings, blockCache );
+			final ArrayList< Edgel > lEdgels = getAllEgels( minGradientMagnitude, input );
+			if ( shell != null )
+				lEdgels.removeIf( e -> !shell.contains( e.getDoublePosition( 0 ), e.getDoublePosition( 1 ), e.getDoublePosition( 2 ) ) );
+			timer.lap( FitStage.EDGELS );
+			numEdgels = lEdgels.size();
+			// transform to global coordinates and filter by direction in one pass
+			filteredEdgels = new EdgelBuffer( lEdgels.size() );
+			Edgels.transformAndFilterByDirection( lEdgels, zeroMinSourceToGlobal( frame.getSourceToGlobal(), input ), centerInGlobalCoordinates, filteredEdgels );
+		}
+		timer.lap( FitStage.FILTER_DIRECTION );
+		Edgels.filterEdgelsByOcclusionBinned( filteredEdgels, centerInGlobalCoordinates, fitSettings.getMaxAngle(), fitSettings.getMaxFactor() );
+		timer.lap( FitStage.FILTER_OCCLUSION );
+		if ( fitSettings.getMaxEdgels() > 0 )
+		{
+			Edgels.limitEdgels( filteredEdgels, centerInGlobalCoordinates, fitSettings.getMaxEdgels() );
+			timer.lap( FitStage.BUDGET );
+		}
+		if ( record != null )
+			record.addEdgels( numEdgels, filteredEdgels.size() );
+		return filteredEdgels;
+	}
 
-		final Ellipsoid ellipsoid = SampleEllipsoidEdgel.sample(
-				filteredEdgels,
-				centerInGlobalCoordinates,
-				numSamples,
-				numCandidates,
-				outsideCutoffDistance,
-				insideCutoffDistance,
-				angleCutoffDistance,
-				maxCenterDistance );
+	/**
+	 * Returns the shell around the spot in which edgels are detected, in voxel
+	 * coordinates relative to the min corner of the {@code crop}, or
+	 * {@code null} if {@link FitEllipsoidSettings#isRestrictToShell()} is not
+	 * set.
+	 */
+	private static RadialShell shell( final Spot spot, final SourceFrame< ? > frame, final Interval crop, final FitEllipsoidSettings fitSettings )
+	{
+		if ( !fitSettings.isRestrictToShell() )
+			return null;
+		final double[] center = new double[ 3 ];
+		frame.getSourceToGlobal().applyInverse( center, spot.positionAsDoubleArray() );
+		for ( int d = 0; d < 3; ++d )
+			center[ d ] -= crop.min( d );
+		final double radius = Math.sqrt( spot.getBoundingSphereRadiusSquared() );
+		return new RadialShell( center, frame.getScale(), fitSettings.getShellInnerFraction() * radius, fitSettings.getShellOuterFraction() * radius );
+	}
 
-		if ( DEBUG_UI )
-			showBdvDebugWindow( source, outsideCutoffDistance, insideCutoffDistance, angleCutoffDistance, sourceToGlobal, input, filteredEdgels, ellipsoid );
-		return ellipsoid;
+	/**
+	 * Returns the shell within {@code width} of the surface of the given
+	 * {@code ellipsoid}, rounded outwards to a shell around its center, in
+	 * voxel coordinates relative to the min corner of the {@code crop}.
+	 */
+	private static RadialShell shellNear( final Ellipsoid ellipsoid, final SourceFrame< ? > frame, final Interval crop, final double width )
+	{
+		final double[] center = new double[ 3 ];
+		frame.getSourceToGlobal().applyInverse( center, ellipsoid.getCenter() );
+		for ( int d = 0; d < 3; ++d )
+			center[ d ] -= crop.min( d );
+		final double[] radii = ellipsoid.getRadii();
+		final double minRadius = Math.min( radii[ 0 ], Math.min( radii[ 1 ], radii[ 2 ] ) );
+		final double maxRadius = Math.max( radii[ 0 ], Math.max( radii[ 1 ], radii[ 2 ] ) );
+		return new RadialShell( center, frame.getScale(), Math.max( 0, minRadius - width ), maxRadius + width );
+	}
+
+	/**
+	 * Restricts the {@code cropped} image of the spot to the bounding box of
+	 * the shell within {@code width} of the surface of the given
+	 * {@code ellipsoid}, plus a margin for the smoothing kernel. Returns
+	 * {@code cropped} if they don't overlap.
+	 */
+	private static < T extends RealType< T > > RandomAccessibleInterval< T > cropNear( final RandomAccessibleInterval< T > cropped,
+			final SourceFrame< T > frame, final Ellipsoid ellipsoid, final double width, final double[] smoothSigmas )
+	{
+		final double[] center = new double[ 3 ];
+		frame.getSourceToGlobal().applyInverse( center, ellipsoid.getCenter() );
+		final double[] radii = ellipsoid.getRadii();
+		final double radius = Math.max( radii[ 0 ], Math.max( radii[ 1 ], radii[ 2 ] ) ) + width;
+		final double[] scale = frame.getScale();
+		final long[] lMin = new long[ 3 ];
+		final long[] lMax = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double halfsize = radius / scale[ d ] + Math.ceil( 3 * smoothSigmas[ d ] ) + 2;
+			lMin[ d ] = ( long ) Math.floor( center[ d ] - halfsize );
+			lMax[ d ] = ( long ) Math.ceil( center[ d ] + halfsize );
+		}
+		final Interval interval = Intervals.intersect( FinalInterval.wrap( lMin, lMax ), cropped );
+		return Intervals.isEmpty( interval ) ? cropped : Views.interval( cropped, interval );
 	}
 
-	private static < T extends RealType< T > > RandomAccessibleInterval< T > cropSpot( final AffineTransform3D sourceToGlobal,
-			final RandomAccessibleInterval< T > frame, final Spot spot )
+	private static < T extends RealType< T > > RandomAccessibleInterval< T > cropSpot( final SourceFrame< T > frame, final Spot spot )
 	{
+		if ( frame.getImage() == null )
+			throw new RuntimeException( "No image data for spot: " + spot.getLabel() + " timepoint: " + frame.getTimepoint() );
 		final double[] centerInGlobalCoordinates = spot.positionAsDoubleArray();
 		final double radius = Math.sqrt( spot.getBoundingSphereRadiusSquared() );
 		final double[] centerInLocalCoordinates = new double[ 3 ];
-		sourceToGlobal.applyInverse( centerInLocalCoordinates, centerInGlobalCoordinates );
+		frame.getSourceToGlobal().applyInverse( centerInLocalCoordinates, centerInGlobalCoordinates );
 
-		final double[] scale = extractScale( sourceToGlobal );
+		final double[] scale = frame.getScale();
 
 		final long[] lMin = new long[ 3 ];
 		final long[] lMax = new long[ 3 ];
@@ -360,21 +1040,38 @@ public class FitEllipsoidPlugin extends AbstractContextual implements MamutPlugi
 		}
 
 		Interval interval = FinalInterval.wrap( lMin, lMax );
-		interval = Intervals.intersect( interval, frame );
+		interval = Intervals.intersect( interval, frame.getImage() );
+
+		return Views.interval( frame.getImage(), interval );
+	}
 
-		return Views.interval( frame, interval );
+	/**
+	 * Copies the {@code cropped} voxels into a float array image with the
+	 * same interval.
+	 */
+	private static RandomAccessibleInterval< FloatType > toFloatArray( final RandomAccessibleInterval< ? extends RealType< ? > > cropped )
+	{
+		final RandomAccessibleInterval< FloatType > converted = Views.translate( ArrayImgs.floats( cropped.dimensionsAsLongArray() ),
+				cropped.minAsLongArray() );
+		RealTypeConverters.copyFromTo( cropped, converted );
+		return converted;
 	}
 
-	private static RandomAccessibleInterval< FloatType > gaussianBlur( final double sigma, final double[] scale, final RandomAccessibleInterval< FloatType > input )
+	private static boolean isBlurred( final double[] sigmas )
 	{
-		if ( sigma <= 0.0 )
+		for ( final double sigma : sigmas )
+			if ( sigma > 0 )
+				return true;
+		return false;
+	}
+
+	private static RandomAccessibleInterval< FloatType > gaussianBlur( final double[] sigmas, final RandomAccessibleInterval< FloatType > input )
+	{
+		if ( !isBlurred( sigmas ) )
 			return input;
 		final long[] size = input.dimensionsAsLongArray();
 		final long[] min = input.minAsLongArray();
 		final RandomAccessibleInterval< FloatType > img = ArrayImgs.floats( size );
-		final double[] sigmas = new double[ 3 ];
-		for ( int d = 0; d < 3; ++d )
-			sigmas[ d ] = sigma / scale[ d ];
 		try
 		{
 			Gauss3.gauss( sigmas, Views.extendMirrorSingle( Views.zeroMin( input ) ), img );
@@ -386,29 +1083,34 @@ public class FitEllipsoidPlugin extends AbstractContextual implements MamutPlugi
 		return Views.translate( img, min );
 	}
 
-	private static ArrayList< Edgel > getAllEgels( final double minGradientMagnitude, final AffineTransform3D sourceToGlobal, final RandomAccessibleInterval< FloatType > input )
+	/**
+	 * Detects edgels in the {@code input}, in coordinates relative to its min
+	 * corner.
+	 */
+	private static ArrayList< Edgel > getAllEgels( final double minGradientMagnitude, final RandomAccessibleInterval< FloatType > input )
 	{
-		final ArrayList< Edgel > lEdgels = SubpixelEdgelDetection.getEdgels( Views.zeroMin( input ),
+		return SubpixelEdgelDetection.getEdgels( Views.zeroMin( input ),
 				new ArrayImgFactory<>( new FloatType() ), minGradientMagnitude );
+	}
+
+	/**
+	 * Returns the transform from coordinates relative to the min corner of
+	 * {@code input} to global coordinates.
+	 */
+	private static AffineTransform3D zeroMinSourceToGlobal( final AffineTransform3D sourceToGlobal, final Interval input )
+	{
 		final AffineTransform3D zeroMinSourceToGlobal = sourceToGlobal.copy();
 		final AffineTransform3D shiftToMin = new AffineTransform3D();
 		final long[] lMin = input.minAsLongArray();
 		shiftToMin.translate( lMin[ 0 ], lMin[ 1 ], lMin[ 2 ] );
 		zeroMinSourceToGlobal.concatenate( shiftToMin );
-		return Edgels.transformEdgels( lEdgels, zeroMinSourceToGlobal );
-	}
-
-	private static double[] extractScale( final AffineTransform3D sourceToGlobal )
-	{
-		final double[] scale = new double[ 3 ];
-		for ( int d = 0; d < 3; ++d )
-			scale[ d ] = Affine3DHelpers.extractScale( sourceToGlobal, d );
-		return scale;
+		return zeroMinSourceToGlobal;
 	}
 
 	private void showBdvDebugWindow( final SourceAndConverter< ? > source, final double outsideCutoffDistance, final double insideCutoffDistance, final double angleCutoffDistance,
-			final AffineTransform3D sourceToGlobal, final RandomAccessibleInterval< FloatType > input, final ArrayList< Edgel > filteredEdgels, final Ellipsoid ellipsoid )
+			final AffineTransform3D sourceToGlobal, final RandomAccessibleInterval< FloatType > input, final EdgelBuffer edgels, final Ellipsoid ellipsoid )
 	{
+		final ArrayList< Edgel > filteredEdgels = edgels.toList();
 		final BdvStackSource< FloatType > inputSource =
 				BdvFunctions.show( input, "FloatType input", Bdv.options().sourceTransform( sourceToGlobal ) );
 		final ConverterSetups setups = minimalProjectModel.getSharedBdvData().getConverterSetups();
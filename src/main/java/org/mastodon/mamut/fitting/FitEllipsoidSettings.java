@@ -0,0 +1,672 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Parameters of the ellipsoid fitting.
+ * <p>
+ * Distances and the smoothing sigma are given in global coordinates, angles
+ * in radians.
+ */
+public class FitEllipsoidSettings
+{
+	private double smoothSigma = 2;
+
+	private double minGradientMagnitude = 10;
+
+	private double maxAngle = 5 * Math.PI / 180.0;
+
+	private double maxFactor = 1.1;
+
+	private int numSamples = 1000;
+
+	private int numCandidates = 100;
+
+	private double outsideCutoffDistance = 3;
+
+	private double insideCutoffDistance = 5;
+
+	private double angleCutoffDistance = 30 * Math.PI / 180.0;
+
+	private double maxCenterDistance = 10;
+
+	private int timepointWindow = 2;
+
+	private long blockCacheBytes = 0;
+
+	private boolean useMipmapLevels = false;
+
+	private double minRadiusInVoxels = 10;
+
+	private boolean coarseToFine = false;
+
+	private double shellWidth = 3;
+
+	private int numRefineSamples = 100;
+
+	private int numRefineCandidates = 10;
+
+	private boolean useResultCache = false;
+
+	private boolean gaussianDerivatives = false;
+
+	private boolean restrictToShell = false;
+
+	private double shellInnerFraction = 0.5;
+
+	private double shellOuterFraction = 1.5;
+
+	private int maxEdgels = 0;
+
+	private boolean preemptive = false;
+
+	private boolean adaptiveSampling = false;
+
+	private double samplingConfidence = 0.99;
+
+	private boolean progressiveSampling = false;
+
+	private boolean deterministic = false;
+
+	private long seed = 0;
+
+	/**
+	 * Sigma of the Gaussian blur applied to the image before edgel detection.
+	 */
+	public double getSmoothSigma()
+	{
+		return smoothSigma;
+	}
+
+	public FitEllipsoidSettings setSmoothSigma( final double smoothSigma )
+	{
+		this.smoothSigma = smoothSigma;
+		return this;
+	}
+
+	/**
+	 * Edgels with a smaller gradient magnitude are ignored.
+	 */
+	public double getMinGradientMagnitude()
+	{
+		return minGradientMagnitude;
+	}
+
+	public FitEllipsoidSettings setMinGradientMagnitude( final double minGradientMagnitude )
+	{
+		this.minGradientMagnitude = minGradientMagnitude;
+		return this;
+	}
+
+	/**
+	 * Max angle used by
+	 * {@link org.mastodon.mamut.fitting.edgel.Edgels#filterEdgelsByOcclusionBinned(org.mastodon.mamut.fitting.edgel.EdgelBuffer, double[], double, double)}.
+	 */
+	public double getMaxAngle()
+	{
+		return maxAngle;
+	}
+
+	public FitEllipsoidSettings setMaxAngle( final double maxAngle )
+	{
+		this.maxAngle = maxAngle;
+		return this;
+	}
+
+	/**
+	 * Max factor used by
+	 * {@link org.mastodon.mamut.fitting.edgel.Edgels#filterEdgelsByOcclusionBinned(org.mastodon.mamut.fitting.edgel.EdgelBuffer, double[], double, double)}.
+	 */
+	public double getMaxFactor()
+	{
+		return maxFactor;
+	}
+
+	public FitEllipsoidSettings setMaxFactor( final double maxFactor )
+	{
+		this.maxFactor = maxFactor;
+		return this;
+	}
+
+	/**
+	 * Max number of random samples drawn by the RANSAC.
+	 */
+	public int getNumSamples()
+	{
+		return numSamples;
+	}
+
+	public FitEllipsoidSettings setNumSamples( final int numSamples )
+	{
+		this.numSamples = numSamples;
+		return this;
+	}
+
+	/**
+	 * Max number of valid candidate ellipsoids evaluated by the RANSAC.
+	 */
+	public int getNumCandidates()
+	{
+		return numCandidates;
+	}
+
+	public FitEllipsoidSettings setNumCandidates( final int numCandidates )
+	{
+		this.numCandidates = numCandidates;
+		return this;
+	}
+
+	public double getOutsideCutoffDistance()
+	{
+		return outsideCutoffDistance;
+	}
+
+	public FitEllipsoidSettings setOutsideCutoffDistance( final double outsideCutoffDistance )
+	{
+		this.outsideCutoffDistance = outsideCutoffDistance;
+		return this;
+	}
+
+	public double getInsideCutoffDistance()
+	{
+		return insideCutoffDistance;
+	}
+
+	public FitEllipsoidSettings setInsideCutoffDistance( final double insideCutoffDistance )
+	{
+		this.insideCutoffDistance = insideCutoffDistance;
+		return this;
+	}
+
+	public double getAngleCutoffDistance()
+	{
+		return angleCutoffDistance;
+	}
+
+	public FitEllipsoidSettings setAngleCutoffDistance( final double angleCutoffDistance )
+	{
+		this.angleCutoffDistance = angleCutoffDistance;
+		return this;
+	}
+
+	/**
+	 * Candidate ellipsoids whose center is further away from the spot center
+	 * are rejected.
+	 */
+	public double getMaxCenterDistance()
+	{
+		return maxCenterDistance;
+	}
+
+	public FitEllipsoidSettings setMaxCenterDistance( final double maxCenterDistance )
+	{
+		this.maxCenterDistance = maxCenterDistance;
+		return this;
+	}
+
+	/**
+	 * Number of timepoints that are processed concurrently. Spots are grouped
+	 * by timepoint and only the frames of this many timepoints are accessed at
+	 * the same time.
+	 */
+	public int getTimepointWindow()
+	{
+		return timepointWindow;
+	}
+
+	public FitEllipsoidSettings setTimepointWindow( final int timepointWindow )
+	{
+		if ( timepointWindow < 1 )
+			throw new IllegalArgumentException( "timepointWindow must be at least 1." );
+		this.timepointWindow = timepointWindow;
+		return this;
+	}
+
+	/**
+	 * Byte budget of the cache of blurred image blocks that is shared by all
+	 * spots of a fitting run. Overlapping crops of densely packed spots reuse
+	 * the cached blocks instead of blurring the same voxels again. {@code 0}
+	 * disables the cache. Not used with {@link #isGaussianDerivatives()},
+	 * which does not blur the crop.
+	 */
+	public long getBlockCacheBytes()
+	{
+		return blockCacheBytes;
+	}
+
+	public FitEllipsoidSettings setBlockCacheBytes( final long blockCacheBytes )
+	{
+		this.blockCacheBytes = blockCacheBytes;
+		return this;
+	}
+
+	/**
+	 * Whether to fit spots at a coarser level of the mipmap pyramid of the
+	 * source, if available. The coarsest level is chosen at which the spot
+	 * radius still spans {@link #getMinRadiusInVoxels()} voxels. Smoothing
+	 * sigma and gradient threshold are adapted to the chosen level.
+	 */
+	public boolean isUseMipmapLevels()
+	{
+		return useMipmapLevels;
+	}
+
+	public FitEllipsoidSettings setUseMipmapLevels( final boolean useMipmapLevels )
+	{
+		this.useMipmapLevels = useMipmapLevels;
+		return this;
+	}
+
+	/**
+	 * Minimal number of voxels that the spot radius must span at the
+	 * resolution level used for fitting. See {@link #isUseMipmapLevels()}.
+	 */
+	public double getMinRadiusInVoxels()
+	{
+		return minRadiusInVoxels;
+	}
+
+	public FitEllipsoidSettings setMinRadiusInVoxels( final double minRadiusInVoxels )
+	{
+		this.minRadiusInVoxels = minRadiusInVoxels;
+		return this;
+	}
+
+	/**
+	 * Whether to fit large spots coarse-to-fine: the RANSAC runs on a coarse
+	 * mipmap level (chosen as for {@link #isUseMipmapLevels()}), and the
+	 * result is refined at full resolution using only the edgels within
+	 * {@link #getShellWidth()} of the coarse ellipsoid.
+	 */
+	public boolean isCoarseToFine()
+	{
+		return coarseToFine;
+	}
+
+	public FitEllipsoidSettings setCoarseToFine( final boolean coarseToFine )
+	{
+		this.coarseToFine = coarseToFine;
+		return this;
+	}
+
+	/**
+	 * Max distance of full resolution edgels to the coarse ellipsoid, in
+	 * coarse-to-fine mode.
+	 */
+	public double getShellWidth()
+	{
+		return shellWidth;
+	}
+
+	public FitEllipsoidSettings setShellWidth( final double shellWidth )
+	{
+		this.shellWidth = shellWidth;
+		return this;
+	}
+
+	/**
+	 * Max number of random samples drawn at full resolution, in coarse-to-fine
+	 * mode.
+	 */
+	public int getNumRefineSamples()
+	{
+		return numRefineSamples;
+	}
+
+	public FitEllipsoidSettings setNumRefineSamples( final int numRefineSamples )
+	{
+		this.numRefineSamples = numRefineSamples;
+		return this;
+	}
+
+	/**
+	 * Max number of valid candidates evaluated at full resolution, in
+	 * coarse-to-fine mode.
+	 */
+	public int getNumRefineCandidates()
+	{
+		return numRefineCandidates;
+	}
+
+	public FitEllipsoidSettings setNumRefineCandidates( final int numRefineCandidates )
+	{
+		this.numRefineCandidates = numRefineCandidates;
+		return this;
+	}
+
+	/**
+	 * Whether to store fitted ellipsoids in a sidecar file next to the project,
+	 * and to reuse them for spots whose inputs did not change. Has no effect
+	 * if the project was not saved yet.
+	 */
+	public boolean isUseResultCache()
+	{
+		return useResultCache;
+	}
+
+	public FitEllipsoidSettings setUseResultCache( final boolean useResultCache )
+	{
+		this.useResultCache = useResultCache;
+		return this;
+	}
+
+	/**
+	 * Whether to detect edgels with derivative-of-Gaussian filters applied
+	 * directly to the crop of a spot, instead of blurring the crop and taking
+	 * finite differences. This is faster and allocates less, the edgels differ
+	 * slightly. The block cache ({@link #getBlockCacheBytes()}) is not used
+	 * for edgel detection then.
+	 */
+	public boolean isGaussianDerivatives()
+	{
+		return gaussianDerivatives;
+	}
+
+	public FitEllipsoidSettings setGaussianDerivatives( final boolean gaussianDerivatives )
+	{
+		this.gaussianDerivatives = gaussianDerivatives;
+		return this;
+	}
+
+	/**
+	 * Whether to detect edgels only in a radial shell around the spot center,
+	 * between {@link #getShellInnerFraction()} and
+	 * {@link #getShellOuterFraction()} times the bounding sphere radius of the
+	 * spot. With {@link #isGaussianDerivatives()}, gradients are only
+	 * computed near that shell, which skips most of the crop for large spots.
+	 */
+	public boolean isRestrictToShell()
+	{
+		return restrictToShell;
+	}
+
+	public FitEllipsoidSettings setRestrictToShell( final boolean restrictToShell )
+	{
+		this.restrictToShell = restrictToShell;
+		return this;
+	}
+
+	/**
+	 * Inner radius of the shell, relative to the bounding sphere radius of the
+	 * spot. See {@link #isRestrictToShell()}.
+	 */
+	public double getShellInnerFraction()
+	{
+		return shellInnerFraction;
+	}
+
+	public FitEllipsoidSettings setShellInnerFraction( final double shellInnerFraction )
+	{
+		this.shellInnerFraction = shellInnerFraction;
+		return this;
+	}
+
+	/**
+	 * Outer radius of the shell, relative to the bounding sphere radius of the
+	 * spot. See {@link #isRestrictToShell()}.
+	 */
+	public double getShellOuterFraction()
+	{
+		return shellOuterFraction;
+	}
+
+	public FitEllipsoidSettings setShellOuterFraction( final double shellOuterFraction )
+	{
+		this.shellOuterFraction = shellOuterFraction;
+		return this;
+	}
+
+	/**
+	 * Max number of edgels passed to the RANSAC per spot. Edgels beyond this
+	 * budget are dropped after the occlusion filter, keeping the strongest
+	 * edgels of each direction around the spot center. {@code 0} keeps all
+	 * edgels.
+	 */
+	public int getMaxEdgels()
+	{
+		return maxEdgels;
+	}
+
+	public FitEllipsoidSettings setMaxEdgels( final int maxEdgels )
+	{
+		if ( maxEdgels < 0 )
+			throw new IllegalArgumentException( "maxEdgels must not be negative." );
+		this.maxEdgels = maxEdgels;
+		return this;
+	}
+
+	/**
+	 * Whether the RANSAC scores its candidates preemptively: all candidates
+	 * are drawn first and scored together on growing blocks of edgels, and
+	 * the worse half is dropped after each block. This bounds the scoring
+	 * time per spot to about {@code log2(numCandidates)} passes over the
+	 * edgels. See
+	 * {@link org.mastodon.mamut.fitting.edgel.RansacOptions#isPreemptive()}.
+	 */
+	public boolean isPreemptive()
+	{
+		return preemptive;
+	}
+
+	public FitEllipsoidSettings setPreemptive( final boolean preemptive )
+	{
+		this.preemptive = preemptive;
+		return this;
+	}
+
+	/**
+	 * Whether the RANSAC stops sampling once the inlier fraction of its best
+	 * candidate shows that an all-inlier sample was drawn with probability
+	 * {@link #getSamplingConfidence()}. {@link #getNumSamples()} and
+	 * {@link #getNumCandidates()} remain upper limits. Clean spots then take
+	 * far fewer samples than noisy ones. Ignored if {@link #isPreemptive()}.
+	 */
+	public boolean isAdaptiveSampling()
+	{
+		return adaptiveSampling;
+	}
+
+	public FitEllipsoidSettings setAdaptiveSampling( final boolean adaptiveSampling )
+	{
+		this.adaptiveSampling = adaptiveSampling;
+		return this;
+	}
+
+	/**
+	 * Confidence at which {@link #isAdaptiveSampling() adaptive sampling}
+	 * stops, between 0 and 1.
+	 */
+	public double getSamplingConfidence()
+	{
+		return samplingConfidence;
+	}
+
+	public FitEllipsoidSettings setSamplingConfidence( final double samplingConfidence )
+	{
+		if ( !( samplingConfidence > 0 && samplingConfidence < 1 ) )
+			throw new IllegalArgumentException( "samplingConfidence must be between 0 and 1." );
+		this.samplingConfidence = samplingConfidence;
+		return this;
+	}
+
+	/**
+	 * Whether the RANSAC draws its first samples from the edgels with the
+	 * largest gradient magnitude, and widens the pool to all edgels over
+	 * {@link #getNumSamples()} samples (PROSAC). Strong edgels are more
+	 * likely to lie on the boundary, so good candidates are found in fewer
+	 * samples.
+	 */
+	public boolean isProgressiveSampling()
+	{
+		return progressiveSampling;
+	}
+
+	public FitEllipsoidSettings setProgressiveSampling( final boolean progressiveSampling )
+	{
+		this.progressiveSampling = progressiveSampling;
+		return this;
+	}
+
+	/**
+	 * Whether the RANSAC draws its samples from a generator seeded per spot,
+	 * derived from {@link #getSeed()} and the spot id. Fits and the amount of
+	 * work done per spot are then reproducible, independent of thread
+	 * scheduling. Otherwise every run is seeded differently.
+	 */
+	public boolean isDeterministic()
+	{
+		return deterministic;
+	}
+
+	public FitEllipsoidSettings setDeterministic( final boolean deterministic )
+	{
+		this.deterministic = deterministic;
+		return this;
+	}
+
+	/**
+	 * Seed of the fitting run, used if {@link #isDeterministic()} is set.
+	 */
+	public long getSeed()
+	{
+		return seed;
+	}
+
+	public FitEllipsoidSettings setSeed( final long seed )
+	{
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Returns a copy of these settings, e.g. to record the parameters a fit was
+	 * made with.
+	 */
+	public FitEllipsoidSettings copy()
+	{
+		final FitEllipsoidSettings copy = new FitEllipsoidSettings();
+		copy.smoothSigma = smoothSigma;
+		copy.minGradientMagnitude = minGradientMagnitude;
+		copy.maxAngle = maxAngle;
+		copy.maxFactor = maxFactor;
+		copy.numSamples = numSamples;
+		copy.numCandidates = numCandidates;
+		copy.outsideCutoffDistance = outsideCutoffDistance;
+		copy.insideCutoffDistance = insideCutoffDistance;
+		copy.angleCutoffDistance = angleCutoffDistance;
+		copy.maxCenterDistance = maxCenterDistance;
+		copy.timepointWindow = timepointWindow;
+		copy.blockCacheBytes = blockCacheBytes;
+		copy.useMipmapLevels = useMipmapLevels;
+		copy.minRadiusInVoxels = minRadiusInVoxels;
+		copy.coarseToFine = coarseToFine;
+		copy.shellWidth = shellWidth;
+		copy.numRefineSamples = numRefineSamples;
+		copy.numRefineCandidates = numRefineCandidates;
+		copy.useResultCache = useResultCache;
+		copy.gaussianDerivatives = gaussianDerivatives;
+		copy.restrictToShell = restrictToShell;
+		copy.shellInnerFraction = shellInnerFraction;
+		copy.shellOuterFraction = shellOuterFraction;
+		copy.maxEdgels = maxEdgels;
+		copy.preemptive = preemptive;
+		copy.adaptiveSampling = adaptiveSampling;
+		copy.samplingConfidence = samplingConfidence;
+		copy.progressiveSampling = progressiveSampling;
+		copy.deterministic = deterministic;
+		copy.seed = seed;
+		return copy;
+	}
+
+	/**
+	 * Two settings are equal if they yield the same fits. Options that only
+	 * affect performance ({@link #getTimepointWindow()},
+	 * {@link #getBlockCacheBytes()}, {@link #isUseResultCache()}) are not
+	 * compared, nor is the {@link #getSeed() seed} unless
+	 * {@link #isDeterministic()} is set.
+	 */
+	@Override
+	public boolean equals( final Object o )
+	{
+		if ( this == o )
+			return true;
+		if ( !( o instanceof FitEllipsoidSettings ) )
+			return false;
+		return Arrays.equals( fitParameters(), ( ( FitEllipsoidSettings ) o ).fitParameters() );
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Arrays.hashCode( fitParameters() );
+	}
+
+	/**
+	 * Returns a digest of the parameters that are compared by
+	 * {@link #equals(Object)}. Unlike {@link #hashCode()}, it is 64 bits wide
+	 * and does not depend on the JVM, so it can be persisted. It is derived
+	 * from the SHA-256 hash of the parameter values in text form.
+	 */
+	public long digest()
+	{
+		final StringBuilder text = new StringBuilder();
+		for ( final Object parameter : fitParameters() )
+			text.append( parameter ).append( ';' );
+		try
+		{
+			final byte[] sha = MessageDigest.getInstance( "SHA-256" ).digest( text.toString().getBytes( StandardCharsets.UTF_8 ) );
+			return ByteBuffer.wrap( sha ).getLong();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			// every Java platform supports SHA-256
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * The parameters that affect the fits, in a fixed order.
+	 */
+	private Object[] fitParameters()
+	{
+		return new Object[] { smoothSigma, minGradientMagnitude, maxAngle, maxFactor, numSamples, numCandidates,
+				outsideCutoffDistance, insideCutoffDistance, angleCutoffDistance, maxCenterDistance,
+				useMipmapLevels, minRadiusInVoxels, coarseToFine, shellWidth, numRefineSamples, numRefineCandidates,
+				gaussianDerivatives, restrictToShell, shellInnerFraction, shellOuterFraction, maxEdgels,
+				preemptive, adaptiveSampling, samplingConfidence, progressiveSampling, deterministic,
+				// the seed has no effect unless the fits are deterministic
+				deterministic ? seed : null };
+	}
+}
@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Runs fitting jobs on a background thread, one at a time.
+ * <p>
+ * Requests that arrive while a job is running are coalesced into the running
+ * job, that is, they are ignored. A running job can be canceled
+ * cooperatively: the job receives a {@link BooleanSupplier} that turns
+ * {@code true} once {@link #cancel()} was called.
+ */
+public class FitJobRunner
+{
+	private final ExecutorService executor = Executors.newSingleThreadExecutor( runnable -> {
+		final Thread thread = new Thread( runnable, "ellipsoid-fitting" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	private Future< ? > current;
+
+	private AtomicBoolean canceled;
+
+	/**
+	 * Starts the given {@code job} in the background, unless another job is
+	 * still running.
+	 *
+	 * @param job
+	 *            the job. It receives a supplier that tells whether the job
+	 *            was canceled.
+	 * @return {@code true} if the job was started, {@code false} if it was
+	 *         coalesced into the running job.
+	 */
+	public synchronized boolean submit( final Consumer< BooleanSupplier > job )
+	{
+		if ( isRunning() )
+			return false;
+		final AtomicBoolean flag = new AtomicBoolean();
+		canceled = flag;
+		current = executor.submit( () -> {
+			try
+			{
+				job.accept( flag::get );
+			}
+			catch ( final RuntimeException e )
+			{
+				e.printStackTrace();
+			}
+		} );
+		return true;
+	}
+
+	/**
+	 * Requests cancellation of the running job, if any.
+	 */
+	public synchronized void cancel()
+	{
+		if ( canceled != null )
+			canceled.set( true );
+	}
+
+	public synchronized boolean isRunning()
+	{
+		return current != null && !current.isDone();
+	}
+}
@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+/**
+ * Snapshot of the progress of a fitting run.
+ */
+public class FitProgress
+{
+	private final int total;
+
+	private final int found;
+
+	private final int notFound;
+
+	private final long elapsedNanos;
+
+	public FitProgress( final int total, final int found, final int notFound, final long elapsedNanos )
+	{
+		this.total = total;
+		this.found = found;
+		this.notFound = notFound;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return the number of spots to fit in this run.
+	 */
+	public int getTotal()
+	{
+		return total;
+	}
+
+	/**
+	 * @return the number of spots processed so far.
+	 */
+	public int getProcessed()
+	{
+		return found + notFound;
+	}
+
+	/**
+	 * @return the number of spots for which an ellipsoid was found.
+	 */
+	public int getFound()
+	{
+		return found;
+	}
+
+	/**
+	 * @return the number of spots for which no ellipsoid was found.
+	 */
+	public int getNotFound()
+	{
+		return notFound;
+	}
+
+	public long getElapsedMillis()
+	{
+		return elapsedNanos / 1_000_000;
+	}
+
+	/**
+	 * @return the average throughput so far.
+	 */
+	public double getSpotsPerSecond()
+	{
+		return elapsedNanos > 0 ? getProcessed() * 1e9 / elapsedNanos : 0;
+	}
+
+	/**
+	 * @return the estimated remaining time in milliseconds, or {@code -1} if
+	 *         no estimate is available yet.
+	 */
+	public long getEtaMillis()
+	{
+		final double spotsPerSecond = getSpotsPerSecond();
+		if ( spotsPerSecond <= 0 )
+			return -1;
+		return Math.round( ( total - getProcessed() ) / spotsPerSecond * 1000 );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Computed " + getProcessed() + " of " + total + " ellipsoids ("
+				+ ( total > 0 ? Math.round( getProcessed() * 100d / total ) : 100 ) + "%), "
+				+ Math.round( getSpotsPerSecond() ) + " spots/s, ETA: "
+				+ ( getEtaMillis() < 0 ? "unknown" : ( getEtaMillis() / 1000 ) + "s" );
+	}
+}
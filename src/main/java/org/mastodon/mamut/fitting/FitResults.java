@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Staging area for fitted ellipsoids.
+ * <p>
+ * Worker threads store their results in primitive arrays indexed by the
+ * internal pool index of the spot, without taking any lock. The results are
+ * then applied to the spots in a single pass that holds the graph write lock,
+ * see {@link #commit(List, Lock)}.
+ * <p>
+ * The {@link SpotEditStamps modification stamps} of the spots are taken when
+ * the staging area is created. Spots that were moved, removed or replaced
+ * since then are skipped by the commit, so that fitting never overwrites an
+ * edit or writes into a freed spot.
+ * <p>
+ * {@link #set(Spot, Ellipsoid)} may be called concurrently for different
+ * spots. {@link #commit(List, Lock)} must only be called after the threads
+ * that set the results have been joined.
+ */
+public class FitResults
+{
+	private static final ThreadLocal< Boolean > COMMITTING = ThreadLocal.withInitial( () -> false );
+
+	private final double[] centers;
+
+	private final double[] covariances;
+
+	private final boolean[] fitted;
+
+	private final boolean[] notFound;
+
+	private final SpotEditStamps editStamps;
+
+	private final int[] stamps;
+
+	/**
+	 * Creates a staging area that can hold results for all the given spots,
+	 * and takes their current modification stamps from {@code editStamps}.
+	 * Should be called holding the graph read lock.
+	 */
+	public FitResults( final List< Spot > spots, final SpotEditStamps editStamps )
+	{
+		final int capacity = maxPoolIndex( spots ) + 1;
+		centers = new double[ 3 * capacity ];
+		covariances = new double[ 6 * capacity ];
+		fitted = new boolean[ capacity ];
+		notFound = new boolean[ capacity ];
+		this.editStamps = editStamps;
+		stamps = new int[ capacity ];
+		for ( final Spot spot : spots )
+			stamps[ spot.getInternalPoolIndex() ] = editStamps.get( spot );
+	}
+
+	/**
+	 * Stores the fitted {@code ellipsoid} for the given {@code spot}.
+	 */
+	public void set( final Spot spot, final Ellipsoid ellipsoid )
+	{
+		final int i = spot.getInternalPoolIndex();
+		final double[] center = ellipsoid.getCenter();
+		final double[][] cov = ellipsoid.getCovariance();
+		System.arraycopy( center, 0, centers, 3 * i, 3 );
+		final int o = 6 * i;
+		covariances[ o ] = cov[ 0 ][ 0 ];
+		covariances[ o + 1 ] = cov[ 0 ][ 1 ];
+		covariances[ o + 2 ] = cov[ 0 ][ 2 ];
+		covariances[ o + 3 ] = cov[ 1 ][ 1 ];
+		covariances[ o + 4 ] = cov[ 1 ][ 2 ];
+		covariances[ o + 5 ] = cov[ 2 ][ 2 ];
+		fitted[ i ] = true;
+	}
+
+	/**
+	 * @return true if a result was stored for the given {@code spot}.
+	 */
+	public boolean isFitted( final Spot spot )
+	{
+		return fitted[ spot.getInternalPoolIndex() ];
+	}
+
+	/**
+	 * Records that no ellipsoid was found for the given {@code spot}.
+	 */
+	public void setNotFound( final Spot spot )
+	{
+		notFound[ spot.getInternalPoolIndex() ] = true;
+	}
+
+	/**
+	 * @return true if fitting the given {@code spot} completed, with or without
+	 *         finding an ellipsoid.
+	 */
+	public boolean isDone( final Spot spot )
+	{
+		final int i = spot.getInternalPoolIndex();
+		return fitted[ i ] || notFound[ i ];
+	}
+
+	/**
+	 * @return true if the calling thread is committing results, that is, if a
+	 *         graph event was caused by fitting rather than by an edit.
+	 */
+	public static boolean isCommitting()
+	{
+		return COMMITTING.get();
+	}
+
+	/**
+	 * Writes center and covariance of the stored results into the given
+	 * {@code spots}, holding {@code writeLock} for the whole pass. Spots
+	 * without a result are left unchanged. Spots that were edited since this
+	 * staging area was created are left unchanged as well, and their results
+	 * are dropped, so that {@link #isDone(Spot)} returns {@code false} for
+	 * them.
+	 *
+	 * @return the number of spots that were changed.
+	 */
+	public int commit( final List< Spot > spots, final Lock writeLock )
+	{
+		final double[] center = new double[ 3 ];
+		final double[][] cov = new double[ 3 ][ 3 ];
+		int count = 0;
+		writeLock.lock();
+		COMMITTING.set( true );
+		try
+		{
+			for ( final Spot spot : spots )
+			{
+				final int i = spot.getInternalPoolIndex();
+				if ( stamps[ i ] != editStamps.get( spot ) )
+				{
+					// NB: the spot was edited, removed or replaced while fitting
+					fitted[ i ] = false;
+					notFound[ i ] = false;
+					continue;
+				}
+				if ( !fitted[ i ] )
+					continue;
+				System.arraycopy( centers, 3 * i, center, 0, 3 );
+				final int o = 6 * i;
+				cov[ 0 ][ 0 ] = covariances[ o ];
+				cov[ 0 ][ 1 ] = cov[ 1 ][ 0 ] = covariances[ o + 1 ];
+				cov[ 0 ][ 2 ] = cov[ 2 ][ 0 ] = covariances[ o + 2 ];
+				cov[ 1 ][ 1 ] = covariances[ o + 3 ];
+				cov[ 1 ][ 2 ] = cov[ 2 ][ 1 ] = covariances[ o + 4 ];
+				cov[ 2 ][ 2 ] = covariances[ o + 5 ];
+				spot.setPosition( center );
+				spot.setCovariance( cov );
+				count++;
+			}
+		}
+		finally
+		{
+			COMMITTING.set( false );
+			writeLock.unlock();
+		}
+		return count;
+	}
+
+	private static int maxPoolIndex( final List< Spot > spots )
+	{
+		int max = -1;
+		for ( final Spot spot : spots )
+			max = Math.max( max, spot.getInternalPoolIndex() );
+		return max;
+	}
+}
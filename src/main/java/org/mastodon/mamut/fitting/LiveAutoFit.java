@@ -0,0 +1,346 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BooleanSupplier;
+
+import javax.swing.SwingUtilities;
+
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.fitting.edgel.NoEllipsoidFoundException;
+import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.VertexPositionListener;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+/**
+ * Refits spots automatically when they are moved or added.
+ * <p>
+ * Edits are debounced: a spot is refitted once it was left unchanged for the
+ * given delay. Refits run on a small background pool. A new edit of a spot
+ * cancels its pending or running refit. Position changes caused by committing
+ * fits, see {@link FitResults#isCommitting()}, are ignored, and so are edits
+ * replayed by undo or redo through {@link #replay(Runnable)}.
+ * <p>
+ * A fit is committed only if the spot was not edited while fitting, see
+ * {@link SpotEditStamps}. Committed spots are marked as fitted in the
+ * {@link DirtySpotTracker}.
+ */
+public class LiveAutoFit implements GraphListener< Spot, Link >, VertexPositionListener< Spot >
+{
+	/**
+	 * Fits a single spot.
+	 */
+	public interface SpotFitter
+	{
+		/**
+		 * @throws NoEllipsoidFoundException
+		 *             if no ellipsoid was found.
+		 * @throws CancellationException
+		 *             if {@code isCanceled} returned true while fitting.
+		 */
+		Ellipsoid fit( Spot spot, FitEllipsoidSettings settings, BooleanSupplier isCanceled );
+	}
+
+	private static final int NUM_THREADS = 2;
+
+	private final Model model;
+
+	private final SpotEditStamps editStamps;
+
+	private final DirtySpotTracker dirtySpotTracker;
+
+	private final FitEllipsoidSettings settings;
+
+	private final SpotFitter fitter;
+
+	private final long delayMillis;
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	private volatile boolean replaying = false;
+
+	/**
+	 * Pending or running refits by spot id.
+	 */
+	private final TIntObjectHashMap< Request > requests = new TIntObjectHashMap<>();
+
+	/**
+	 * @param settings
+	 *            the parameters to fit with. Each refit uses a copy of the
+	 *            current values.
+	 */
+	public LiveAutoFit( final Model model, final SpotEditStamps editStamps, final DirtySpotTracker dirtySpotTracker,
+			final FitEllipsoidSettings settings, final SpotFitter fitter, final long delayMillis )
+	{
+		this.model = model;
+		this.editStamps = editStamps;
+		this.dirtySpotTracker = dirtySpotTracker;
+		this.settings = settings;
+		this.fitter = fitter;
+		this.delayMillis = delayMillis;
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ScheduledThreadPoolExecutor( NUM_THREADS, runnable -> {
+			final Thread thread = new Thread( runnable, "ellipsoid-live-fitting-" + threadCount.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		executor.setRemoveOnCancelPolicy( true );
+	}
+
+	/**
+	 * Starts listening to spot edits.
+	 */
+	public void install()
+	{
+		final ModelGraph graph = model.getGraph();
+		graph.addGraphListener( this );
+		graph.addVertexPositionListener( this );
+	}
+
+	/**
+	 * Stops listening to spot edits, cancels all refits and shuts down the
+	 * background pool.
+	 */
+	public void uninstall()
+	{
+		final ModelGraph graph = model.getGraph();
+		graph.removeGraphListener( this );
+		graph.removeVertexPositionListener( this );
+		cancelAll();
+		executor.shutdown();
+	}
+
+	/**
+	 * Runs the given undo or redo of the model. The edits it replays do not
+	 * trigger refits. Refitting them would record new edits and clear the
+	 * redo stack.
+	 */
+	public void replay( final Runnable undoOrRedo )
+	{
+		replaying = true;
+		try
+		{
+			undoOrRedo.run();
+		}
+		finally
+		{
+			replaying = false;
+		}
+	}
+
+	@Override
+	public void vertexPositionChanged( final Spot spot )
+	{
+		if ( !replaying && !FitResults.isCommitting() )
+			schedule( model.getGraphIdBimap().getVertexId( spot ) );
+	}
+
+	@Override
+	public void vertexAdded( final Spot spot )
+	{
+		if ( !replaying )
+			schedule( model.getGraphIdBimap().getVertexId( spot ) );
+	}
+
+	@Override
+	public void vertexRemoved( final Spot spot )
+	{
+		synchronized ( requests )
+		{
+			final Request request = requests.remove( model.getGraphIdBimap().getVertexId( spot ) );
+			if ( request != null )
+				request.cancel();
+		}
+	}
+
+	@Override
+	public void graphRebuilt()
+	{
+		cancelAll();
+	}
+
+	@Override
+	public void edgeAdded( final Link link )
+	{
+		// links do not affect the fit
+	}
+
+	@Override
+	public void edgeRemoved( final Link link )
+	{
+		// links do not affect the fit
+	}
+
+	private void cancelAll()
+	{
+		synchronized ( requests )
+		{
+			requests.forEachValue( request -> {
+				request.cancel();
+				return true;
+			} );
+			requests.clear();
+		}
+	}
+
+	private void schedule( final int spotId )
+	{
+		synchronized ( requests )
+		{
+			if ( executor.isShutdown() )
+				return;
+			final Request previous = requests.get( spotId );
+			if ( previous != null )
+				previous.cancel();
+			final Request request = new Request( spotId );
+			requests.put( spotId, request );
+			request.future = executor.schedule( request, delayMillis, TimeUnit.MILLISECONDS );
+		}
+	}
+
+	private class Request implements Runnable
+	{
+		private final int spotId;
+
+		private volatile boolean canceled = false;
+
+		private ScheduledFuture< ? > future;
+
+		Request( final int spotId )
+		{
+			this.spotId = spotId;
+		}
+
+		void cancel()
+		{
+			canceled = true;
+			if ( future != null )
+				future.cancel( false );
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				refit();
+			}
+			catch ( final CancellationException e )
+			{
+				// leave the spot unchanged
+			}
+			catch ( final RuntimeException e )
+			{
+				System.err.println( "Error while fitting ellipsoid for spot with id: " + spotId );
+				e.printStackTrace();
+			}
+			finally
+			{
+				synchronized ( requests )
+				{
+					if ( requests.get( spotId ) == this )
+						requests.remove( spotId );
+				}
+			}
+		}
+
+		private void refit()
+		{
+			final ModelGraph graph = model.getGraph();
+			final Spot ref = graph.vertexRef();
+			try
+			{
+				final Spot spot;
+				final FitResults results;
+				final Lock readLock = graph.getLock().readLock();
+				readLock.lock();
+				try
+				{
+					spot = model.getGraphIdBimap().getVertex( spotId, ref );
+					// NB: a later edit, removal or reuse of the spot changes its stamp
+					results = new FitResults( Collections.singletonList( spot ), editStamps );
+				}
+				finally
+				{
+					readLock.unlock();
+				}
+				if ( canceled )
+					return;
+
+				final FitEllipsoidSettings fitSettings = settings.copy();
+				try
+				{
+					results.set( spot, fitter.fit( spot, fitSettings, () -> canceled ) );
+				}
+				catch ( final NoEllipsoidFoundException e )
+				{
+					results.setNotFound( spot );
+				}
+
+				final List< Spot > spots = Collections.singletonList( spot );
+				final int count;
+				final Lock writeLock = graph.getLock().writeLock();
+				writeLock.lock();
+				try
+				{
+					if ( canceled )
+						return;
+					count = results.commit( spots, writeLock );
+					// NB: after commit, which marks the moved spot dirty
+					if ( results.isDone( spot ) )
+						dirtySpotTracker.markFitted( spots, fitSettings );
+				}
+				finally
+				{
+					writeLock.unlock();
+				}
+				// NB: on the EDT, where edits and their undo points happen
+				if ( count > 0 )
+					SwingUtilities.invokeLater( model::setUndoPoint );
+			}
+			finally
+			{
+				graph.releaseRef( ref );
+			}
+		}
+	}
+}
@@ -28,6 +28,8 @@
  */
 package org.mastodon.mamut.fitting;
 
+import java.io.File;
+
 import org.mastodon.mamut.ProjectModel;
 import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.Model;
@@ -50,18 +52,30 @@ public class MinimalProjectModel
 
 	private final SelectionModel< Spot, Link > selectionModel;
 
+	private final File projectRoot;
+
 	public MinimalProjectModel(
 			final Model model, final SharedBigDataViewerData sharedBdvData, final SelectionModel< Spot, Link > selectionModel
 	)
+	{
+		this( model, sharedBdvData, selectionModel, null );
+	}
+
+	public MinimalProjectModel(
+			final Model model, final SharedBigDataViewerData sharedBdvData, final SelectionModel< Spot, Link > selectionModel,
+			final File projectRoot
+	)
 	{
 		this.model = model;
 		this.sharedBdvData = sharedBdvData;
 		this.selectionModel = selectionModel;
+		this.projectRoot = projectRoot;
 	}
 
 	public MinimalProjectModel( final ProjectModel projectModel )
 	{
-		this( projectModel.getModel(), projectModel.getSharedBdvData(), projectModel.getSelectionModel() );
+		this( projectModel.getModel(), projectModel.getSharedBdvData(), projectModel.getSelectionModel(),
+				projectModel.getProject().getProjectRoot() );
 	}
 
 	public Model getModel()
@@ -78,4 +92,13 @@ public class MinimalProjectModel
 	{
 		return selectionModel;
 	}
+
+	/**
+	 * @return the project file or folder, or {@code null} if the project was
+	 *         not saved yet.
+	 */
+	public File getProjectRoot()
+	{
+		return projectRoot;
+	}
 }
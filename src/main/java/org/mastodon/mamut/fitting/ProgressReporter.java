@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts fitted spots and forwards throttled progress updates to a
+ * {@link FitProgressListener}. Thread-safe.
+ */
+class ProgressReporter
+{
+	private static final long REPORT_INTERVAL_NANOS = 1_000_000_000L;
+
+	private final FitProgressListener listener;
+
+	private final int total;
+
+	private final long start = System.nanoTime();
+
+	private final AtomicInteger found = new AtomicInteger();
+
+	private final AtomicInteger notFound = new AtomicInteger();
+
+	private final AtomicLong nextReport = new AtomicLong( start + REPORT_INTERVAL_NANOS );
+
+	ProgressReporter( final FitProgressListener listener, final int total )
+	{
+		this.listener = listener;
+		this.total = total;
+	}
+
+	void started()
+	{
+		listener.started( total );
+	}
+
+	void found()
+	{
+		found.incrementAndGet();
+		maybeReport();
+	}
+
+	void notFound()
+	{
+		notFound.incrementAndGet();
+		maybeReport();
+	}
+
+	void finished( final boolean canceled )
+	{
+		listener.finished( snapshot(), canceled );
+	}
+
+	FitProgress snapshot()
+	{
+		return new FitProgress( total, found.get(), notFound.get(), System.nanoTime() - start );
+	}
+
+	private void maybeReport()
+	{
+		final long now = System.nanoTime();
+		final long next = nextReport.get();
+		if ( now >= next && nextReport.compareAndSet( next, now + REPORT_INTERVAL_NANOS ) )
+			listener.progress( snapshot() );
+	}
+}
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+/**
+ * Selection of a resolution level for a spot, and adaption of the
+ * preprocessing parameters to that level.
+ * <p>
+ * The parameters of the ellipsoid fitting are tuned for full resolution.
+ * Coarser levels of a mipmap pyramid are assumed to be obtained by averaging
+ * blocks of voxels, which already smooths the image and increases the
+ * per-voxel intensity differences at edges.
+ */
+public class ResolutionLevels
+{
+	private ResolutionLevels()
+	{
+		// prevent from instantiation
+	}
+
+	/**
+	 * Returns the coarsest resolution level at which a sphere of the given
+	 * {@code radius} still spans at least {@code minRadiusInVoxels} voxels
+	 * along every axis. Returns 0 if no level qualifies.
+	 */
+	public static int selectLevel( final TimepointFrames< ? > frames, final double radius, final double minRadiusInVoxels )
+	{
+		for ( int level = frames.numLevels() - 1; level > 0; level-- )
+		{
+			final SourceFrame< ? > frame = frames.get( level );
+			if ( frame.getImage() == null )
+				continue;
+			double maxScale = 0;
+			for ( final double s : frame.getScale() )
+				maxScale = Math.max( maxScale, s );
+			if ( radius / maxScale >= minRadiusInVoxels )
+				return level;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the per-axis sigmas, in voxels of a level with the given
+	 * {@code scale}, of the Gaussian blur that is needed to achieve an overall
+	 * smoothing with the given {@code sigma} (in global coordinates).
+	 * <p>
+	 * The smoothing already caused by the downsampling is subtracted:
+	 * averaging blocks of {@code f} voxels has the variance of a box filter,
+	 * {@code (f^2 - 1) / 12} full resolution voxels squared.
+	 *
+	 * @param sigma
+	 *            the overall smoothing sigma in global coordinates.
+	 * @param fullScale
+	 *            voxel size of the full resolution level.
+	 * @param scale
+	 *            voxel size of the selected level.
+	 */
+	public static double[] smoothingSigmas( final double sigma, final double[] fullScale, final double[] scale )
+	{
+		final double[] sigmas = new double[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double f = scale[ d ] / fullScale[ d ];
+			final double boxVariance = Math.max( 0, f * f - 1 ) / 12 * fullScale[ d ] * fullScale[ d ];
+			sigmas[ d ] = Math.sqrt( Math.max( 0, sigma * sigma - boxVariance ) ) / scale[ d ];
+		}
+		return sigmas;
+	}
+
+	/**
+	 * Returns the gradient magnitude threshold for a level with the given
+	 * {@code scale}. Gradients are computed per voxel, so an edge that yields
+	 * gradient magnitude {@code g} at full resolution yields about
+	 * {@code f * g} at a level downsampled by factor {@code f}. The mean
+	 * downsampling factor over all axes is used.
+	 */
+	public static double gradientThreshold( final double threshold, final double[] fullScale, final double[] scale )
+	{
+		double sum = 0;
+		for ( int d = 0; d < 3; ++d )
+			sum += scale[ d ] / fullScale[ d ];
+		return threshold * sum / 3;
+	}
+}
@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import bdv.util.Affine3DHelpers;
+import bdv.viewer.Source;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * The image of one timepoint and resolution level of a {@link Source},
+ * together with its source-to-global transform and voxel scale.
+ * <p>
+ * Resolving these once per timepoint avoids repeated lookups for every spot.
+ *
+ * @param <T>
+ *            pixel type
+ */
+public class SourceFrame< T >
+{
+	private final Source< T > source;
+
+	private final int timepoint;
+
+	private final int level;
+
+	private final RandomAccessibleInterval< T > image;
+
+	private final AffineTransform3D sourceToGlobal;
+
+	private final double[] scale;
+
+	private SourceFrame( final Source< T > source, final int timepoint, final int level, final RandomAccessibleInterval< T > image, final AffineTransform3D sourceToGlobal )
+	{
+		this.source = source;
+		this.timepoint = timepoint;
+		this.level = level;
+		this.image = image;
+		this.sourceToGlobal = sourceToGlobal;
+		this.scale = extractScale( sourceToGlobal );
+	}
+
+	/**
+	 * Looks up image and transform of the given {@code source} at the given
+	 * {@code timepoint} and resolution {@code level}.
+	 */
+	public static < T > SourceFrame< T > resolve( final Source< T > source, final int timepoint, final int level )
+	{
+		final AffineTransform3D sourceToGlobal = new AffineTransform3D();
+		source.getSourceTransform( timepoint, level, sourceToGlobal );
+		final RandomAccessibleInterval< T > image = source.isPresent( timepoint ) ? source.getSource( timepoint, level ) : null;
+		return new SourceFrame<>( source, timepoint, level, image, sourceToGlobal );
+	}
+
+	public Source< T > getSource()
+	{
+		return source;
+	}
+
+	public int getTimepoint()
+	{
+		return timepoint;
+	}
+
+	public int getLevel()
+	{
+		return level;
+	}
+
+	/**
+	 * @return the image, or {@code null} if the source has no data at this
+	 *         timepoint.
+	 */
+	public RandomAccessibleInterval< T > getImage()
+	{
+		return image;
+	}
+
+	/**
+	 * @return the source-to-global transform. Must not be modified.
+	 */
+	public AffineTransform3D getSourceToGlobal()
+	{
+		return sourceToGlobal;
+	}
+
+	/**
+	 * @return the voxel size along each axis. Must not be modified.
+	 */
+	public double[] getScale()
+	{
+		return scale;
+	}
+
+	private static double[] extractScale( final AffineTransform3D sourceToGlobal )
+	{
+		final double[] scale = new double[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			scale[ d ] = Affine3DHelpers.extractScale( sourceToGlobal, d );
+		return scale;
+	}
+}
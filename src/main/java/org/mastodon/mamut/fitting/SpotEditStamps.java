@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import java.util.Arrays;
+
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.VertexPositionListener;
+
+/**
+ * Records a modification stamp per spot.
+ * <p>
+ * The stamp of a spot changes whenever the spot is moved, added or removed.
+ * Stamps are kept by internal pool index, so a spot that reuses the pool
+ * index of a removed spot never has the stamp of the removed one. Fitting
+ * runs take the stamps of their spots before fitting and discard the results
+ * of spots whose stamp changed in the meantime, see
+ * {@link FitResults#commit(java.util.List, java.util.concurrent.locks.Lock)}.
+ */
+public class SpotEditStamps implements GraphListener< Spot, Link >, VertexPositionListener< Spot >
+{
+	private final ModelGraph graph;
+
+	private int[] stamps = new int[ 0 ];
+
+	/**
+	 * Stamp of spots that were not edited since the graph was last rebuilt.
+	 */
+	private int baseline = 0;
+
+	private int counter = 0;
+
+	public SpotEditStamps( final ModelGraph graph )
+	{
+		this.graph = graph;
+	}
+
+	/**
+	 * Starts listening to changes of the graph.
+	 */
+	public void install()
+	{
+		graph.addGraphListener( this );
+		graph.addVertexPositionListener( this );
+	}
+
+	/**
+	 * Stops listening to changes of the graph.
+	 */
+	public void uninstall()
+	{
+		graph.removeGraphListener( this );
+		graph.removeVertexPositionListener( this );
+	}
+
+	/**
+	 * @return the current modification stamp of the given {@code spot}.
+	 */
+	public synchronized int get( final Spot spot )
+	{
+		final int i = spot.getInternalPoolIndex();
+		return i < stamps.length ? stamps[ i ] : baseline;
+	}
+
+	private synchronized void touch( final Spot spot )
+	{
+		final int i = spot.getInternalPoolIndex();
+		if ( i >= stamps.length )
+		{
+			final int length = stamps.length;
+			stamps = Arrays.copyOf( stamps, Math.max( i + 1, 2 * length ) );
+			Arrays.fill( stamps, length, stamps.length, baseline );
+		}
+		stamps[ i ] = ++counter;
+	}
+
+	@Override
+	public synchronized void graphRebuilt()
+	{
+		baseline = ++counter;
+		Arrays.fill( stamps, baseline );
+	}
+
+	@Override
+	public void vertexAdded( final Spot spot )
+	{
+		touch( spot );
+	}
+
+	@Override
+	public void vertexRemoved( final Spot spot )
+	{
+		touch( spot );
+	}
+
+	@Override
+	public void edgeAdded( final Link link )
+	{
+		// links do not affect the fit
+	}
+
+	@Override
+	public void edgeRemoved( final Link link )
+	{
+		// links do not affect the fit
+	}
+
+	@Override
+	public void vertexPositionChanged( final Spot spot )
+	{
+		touch( spot );
+	}
+}
@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bdv.viewer.Source;
+
+/**
+ * The {@link SourceFrame}s of all resolution levels of a {@link Source} at one
+ * timepoint.
+ *
+ * @param <T>
+ *            pixel type
+ */
+public class TimepointFrames< T >
+{
+	private final int timepoint;
+
+	private final List< SourceFrame< T > > levels;
+
+	private TimepointFrames( final int timepoint, final List< SourceFrame< T > > levels )
+	{
+		this.timepoint = timepoint;
+		this.levels = levels;
+	}
+
+	/**
+	 * Looks up images and transforms of all resolution levels of the given
+	 * {@code source} at the given {@code timepoint}.
+	 */
+	public static < T > TimepointFrames< T > resolve( final Source< T > source, final int timepoint )
+	{
+		final int numLevels = Math.max( 1, source.getNumMipmapLevels() );
+		final List< SourceFrame< T > > levels = new ArrayList<>( numLevels );
+		for ( int level = 0; level < numLevels; level++ )
+			levels.add( SourceFrame.resolve( source, timepoint, level ) );
+		return new TimepointFrames<>( timepoint, levels );
+	}
+
+	public int getTimepoint()
+	{
+		return timepoint;
+	}
+
+	public int numLevels()
+	{
+		return levels.size();
+	}
+
+	/**
+	 * @return the frame at the given resolution {@code level}, where level 0
+	 *         is the full resolution.
+	 */
+	public SourceFrame< T > get( final int level )
+	{
+		return levels.get( level );
+	}
+}
@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.mastodon.mamut.model.Spot;
+
+import bdv.viewer.Source;
+import net.imglib2.parallel.Parallelization;
+
+/**
+ * Processes spots grouped by timepoint.
+ * <p>
+ * The frames of each timepoint are resolved only once, and the groups are
+ * processed in windows of a few timepoints. Within a window, the spots are
+ * processed in parallel. This keeps the number of frames that are accessed at
+ * the same time small, which is friendly to the BDV cache.
+ */
+public class TimepointScheduler
+{
+	private TimepointScheduler()
+	{
+		// prevent from instantiation
+	}
+
+	/**
+	 * Calls {@code action} for each spot in {@code spots}, together with the
+	 * frames of the spot's timepoint.
+	 *
+	 * @param spots
+	 *            the spots to process. The list must not be modified
+	 *            concurrently.
+	 * @param source
+	 *            the image source.
+	 * @param windowSize
+	 *            the number of timepoints processed concurrently.
+	 * @param action
+	 *            called for each spot, possibly from multiple threads.
+	 */
+	public static < T > void forEachSpot(
+			final List< Spot > spots,
+			final Source< T > source,
+			final int windowSize,
+			final BiConsumer< Spot, TimepointFrames< T > > action )
+	{
+		forEachSpot( spots, source, windowSize, action, window -> {} );
+	}
+
+	/**
+	 * Same as {@link #forEachSpot(List, Source, int, BiConsumer)}, but calls
+	 * {@code windowDone} with the spots of each window, after all of them have
+	 * been processed. {@code windowDone} is called from the calling thread.
+	 */
+	public static < T > void forEachSpot(
+			final List< Spot > spots,
+			final Source< T > source,
+			final int windowSize,
+			final BiConsumer< Spot, TimepointFrames< T > > action,
+			final Consumer< List< Spot > > windowDone )
+	{
+		final List< List< Spot > > groups = new ArrayList<>( groupByTimepoint( spots ).values() );
+		for ( int start = 0; start < groups.size(); start += windowSize )
+		{
+			final List< Task< T > > tasks = new ArrayList<>();
+			final List< Spot > window = new ArrayList<>();
+			final int end = Math.min( start + windowSize, groups.size() );
+			for ( final List< Spot > group : groups.subList( start, end ) )
+			{
+				final TimepointFrames< T > frames = TimepointFrames.resolve( source, group.get( 0 ).getTimepoint() );
+				for ( final Spot spot : group )
+					tasks.add( new Task<>( spot, frames ) );
+				window.addAll( group );
+			}
+			Parallelization.getTaskExecutor().forEach( tasks, task -> action.accept( task.spot, task.frames ) );
+			windowDone.accept( window );
+		}
+	}
+
+	/**
+	 * Groups the given spots by timepoint. The groups are ordered by
+	 * timepoint, and the spots within each group keep their order.
+	 */
+	static Map< Integer, List< Spot > > groupByTimepoint( final List< Spot > spots )
+	{
+		final Map< Integer, List< Spot > > groups = new TreeMap<>();
+		for ( final Spot spot : spots )
+			groups.computeIfAbsent( spot.getTimepoint(), t -> new ArrayList<>() ).add( spot );
+		return groups;
+	}
+
+	private static class Task< T >
+	{
+		private final Spot spot;
+
+		private final TimepointFrames< T > frames;
+
+		private Task( final Spot spot, final TimepointFrames< T > frames )
+		{
+			this.spot = spot;
+			this.frames = frames;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.cache;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+import org.mastodon.mamut.fitting.SourceFrame;
+
+import bdv.viewer.Source;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Cache of Gaussian blurred image blocks, shared by all spots of a fitting
+ * run.
+ * <p>
+ * Frames are divided into cubic blocks on a fixed grid. Blocks are blurred on
+ * first access and reused for every crop that overlaps them, so that densely
+ * packed spots do not blur the same voxels again and again. Blocks are keyed
+ * by source, timepoint, resolution level and sigma. The least recently used
+ * blocks are evicted when the total size exceeds the byte budget.
+ * <p>
+ * The cache is thread-safe. Blurring of a block happens outside the cache
+ * lock, and a block that is requested by several threads at the same time is
+ * computed only once.
+ */
+public class BlurredBlockCache
+{
+	private final int blockSize;
+
+	private final long maxBytes;
+
+	private long bytes = 0;
+
+	private final LinkedHashMap< Key, Block > blocks = new LinkedHashMap<>( 64, 0.75f, true );
+
+	/**
+	 * @param blockSize
+	 *            edge length of the cubic blocks, in voxels.
+	 * @param maxBytes
+	 *            the byte budget of the cache.
+	 */
+	public BlurredBlockCache( final int blockSize, final long maxBytes )
+	{
+		if ( blockSize < 1 )
+			throw new IllegalArgumentException( "blockSize must be at least 1." );
+		this.blockSize = blockSize;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the given {@code interval} of the {@code frame}, blurred with a
+	 * Gaussian of the given {@code sigmas} (in voxels). The result has the
+	 * same bounds as {@code interval}.
+	 * <p>
+	 * In contrast to blurring the crop itself, the blur is computed on the
+	 * full frame, so values near the border of the interval are not affected
+	 * by the boundary of the crop.
+	 */
+	public < T extends RealType< T > > RandomAccessibleInterval< FloatType > getBlurred(
+			final SourceFrame< T > frame,
+			final double[] sigmas,
+			final Interval interval )
+	{
+		final long[] min = interval.minAsLongArray();
+		final long[] max = interval.maxAsLongArray();
+		final long[] size = interval.dimensionsAsLongArray();
+		final float[] data = new float[ ( int ) ( size[ 0 ] * size[ 1 ] * size[ 2 ] ) ];
+
+		final long[] blockMin = new long[ 3 ];
+		final long[] blockMax = new long[ 3 ];
+		final long[] grid = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			blockMin[ d ] = Math.floorDiv( min[ d ], blockSize );
+			blockMax[ d ] = Math.floorDiv( max[ d ], blockSize );
+		}
+		for ( grid[ 2 ] = blockMin[ 2 ]; grid[ 2 ] <= blockMax[ 2 ]; ++grid[ 2 ] )
+			for ( grid[ 1 ] = blockMin[ 1 ]; grid[ 1 ] <= blockMax[ 1 ]; ++grid[ 1 ] )
+				for ( grid[ 0 ] = blockMin[ 0 ]; grid[ 0 ] <= blockMax[ 0 ]; ++grid[ 0 ] )
+				{
+					final Block block = getBlock( frame, sigmas, grid );
+					copy( block, min, max, size, data );
+				}
+
+		return Views.translate( ArrayImgs.floats( data, size ), min );
+	}
+
+	/**
+	 * Removes all blocks from the cache.
+	 */
+	public synchronized void clear()
+	{
+		blocks.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * @return the number of bytes currently held by the cache.
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	private < T extends RealType< T > > Block getBlock( final SourceFrame< T > frame, final double[] sigmas, final long[] grid )
+	{
+		final Key key = new Key( frame.getSource(), frame.getTimepoint(), frame.getLevel(), sigmas, grid );
+		final Block block;
+		synchronized ( this )
+		{
+			block = blocks.computeIfAbsent( key, k -> new Block( frame.getImage(), grid, blockSize ) );
+		}
+		if ( block.compute( frame.getImage(), sigmas ) )
+			account( key, block );
+		return block;
+	}
+
+	private synchronized void account( final Key key, final Block block )
+	{
+		if ( blocks.get( key ) != block )
+			return;
+		block.accounted = true;
+		bytes += block.bytes();
+		final Iterator< Block > it = blocks.values().iterator();
+		while ( bytes > maxBytes && it.hasNext() )
+		{
+			final Block eldest = it.next();
+			if ( eldest.accounted )
+				bytes -= eldest.bytes();
+			it.remove();
+		}
+	}
+
+	private static void copy( final Block block, final long[] min, final long[] max, final long[] size, final float[] data )
+	{
+		final long[] lo = new long[ 3 ];
+		final long[] hi = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			lo[ d ] = Math.max( min[ d ], block.min[ d ] );
+			hi[ d ] = Math.min( max[ d ], block.max[ d ] );
+			if ( lo[ d ] > hi[ d ] )
+				return;
+		}
+		final int length = ( int ) ( hi[ 0 ] - lo[ 0 ] + 1 );
+		for ( long z = lo[ 2 ]; z <= hi[ 2 ]; ++z )
+			for ( long y = lo[ 1 ]; y <= hi[ 1 ]; ++y )
+			{
+				final int src = block.index( lo[ 0 ], y, z );
+				final int dst = ( int ) ( ( lo[ 0 ] - min[ 0 ] ) + size[ 0 ] * ( ( y - min[ 1 ] ) + size[ 1 ] * ( z - min[ 2 ] ) ) );
+				System.arraycopy( block.data, src, data, dst, length );
+			}
+	}
+
+	private static class Block
+	{
+		private final long[] min = new long[ 3 ];
+
+		private final long[] max = new long[ 3 ];
+
+		private final long[] size = new long[ 3 ];
+
+		private volatile float[] data;
+
+		private boolean accounted = false;
+
+		Block( final Interval image, final long[] grid, final int blockSize )
+		{
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = Math.max( grid[ d ] * blockSize, image.min( d ) );
+				max[ d ] = Math.min( grid[ d ] * blockSize + blockSize - 1, image.max( d ) );
+				size[ d ] = Math.max( 0, max[ d ] - min[ d ] + 1 );
+			}
+		}
+
+		/**
+		 * Blurs the block, unless this already happened.
+		 *
+		 * @return true if the block was computed by this call.
+		 */
+		< T extends RealType< T > > boolean compute( final RandomAccessibleInterval< T > image, final double[] sigmas )
+		{
+			if ( data != null )
+				return false;
+			synchronized ( this )
+			{
+				if ( data != null )
+					return false;
+				final float[] blurred = new float[ ( int ) ( size[ 0 ] * size[ 1 ] * size[ 2 ] ) ];
+				if ( blurred.length > 0 )
+				{
+					final RandomAccessibleInterval< FloatType > converted = RealTypeConverters.convert( image, new FloatType() );
+					try
+					{
+						Gauss3.gauss( sigmas, Views.extendMirrorSingle( converted ), Views.translate( ArrayImgs.floats( blurred, size ), min ) );
+					}
+					catch ( final IncompatibleTypeException e )
+					{
+						throw new RuntimeException( e );
+					}
+				}
+				data = blurred;
+				return true;
+			}
+		}
+
+		int index( final long x, final long y, final long z )
+		{
+			return ( int ) ( ( x - min[ 0 ] ) + size[ 0 ] * ( ( y - min[ 1 ] ) + size[ 1 ] * ( z - min[ 2 ] ) ) );
+		}
+
+		long bytes()
+		{
+			return 4L * data.length;
+		}
+	}
+
+	private static class Key
+	{
+		private final Source< ? > source;
+
+		private final int timepoint;
+
+		private final int level;
+
+		private final double[] sigmas;
+
+		private final long[] grid;
+
+		private final int hashCode;
+
+		Key( final Source< ? > source, final int timepoint, final int level, final double[] sigmas, final long[] grid )
+		{
+			this.source = source;
+			this.timepoint = timepoint;
+			this.level = level;
+			this.sigmas = sigmas.clone();
+			this.grid = grid.clone();
+			this.hashCode = Objects.hash( System.identityHashCode( source ), timepoint, level, Arrays.hashCode( sigmas ), Arrays.hashCode( grid ) );
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( this == o )
+				return true;
+			if ( !( o instanceof Key ) )
+				return false;
+			final Key other = ( Key ) o;
+			return source == other.source
+					&& timepoint == other.timepoint
+					&& level == other.level
+					&& Arrays.equals( sigmas, other.sigmas )
+					&& Arrays.equals( grid, other.grid );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+	}
+}
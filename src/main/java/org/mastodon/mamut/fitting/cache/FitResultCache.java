@@ -0,0 +1,361 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mastodon.mamut.fitting.FitEllipsoidSettings;
+import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+
+/**
+ * Persistent cache of fitted ellipsoids, stored in a sidecar file next to the
+ * project.
+ * <p>
+ * Results are keyed by spot id, timepoint, center and covariance (quantized
+ * to {@value #QUANTUM}), source name and a {@link FitEllipsoidSettings#digest()
+ * digest} of the fit parameters. The covariance determines the size of the
+ * crop around the spot, and with it the fit. Fitting changes center and
+ * covariance of a spot. A result is therefore stored under the shape before
+ * and after fitting, so that it is found again whether or not the fit was
+ * applied to the spot.
+ * <p>
+ * Entries that were neither stored nor found during the last
+ * {@value #MAX_UNUSED_SAVES} saves are dropped when saving, so that the
+ * sidecar does not grow without bound as spots are edited.
+ * <p>
+ * Lookups and insertions are thread-safe.
+ */
+public class FitResultCache
+{
+	/**
+	 * Center coordinates and covariance entries closer than this, in global
+	 * coordinates, are considered equal.
+	 */
+	public static final double QUANTUM = 1e-3;
+
+	/**
+	 * Entries that were not used during this many saves are dropped.
+	 */
+	public static final int MAX_UNUSED_SAVES = 10;
+
+	private static final int MAGIC = 0x454c4643; // "ELFC"
+
+	private static final int VERSION = 2;
+
+	private final File file;
+
+	private final Map< Key, Entry > entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Counts the saves of the cache. Entries remember the generation in which
+	 * they were last used.
+	 */
+	private volatile int generation = 0;
+
+	private volatile boolean modified = false;
+
+	private FitResultCache( final File file )
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Returns the sidecar file of the cache for the given project.
+	 */
+	public static File sidecarFile( final File projectRoot )
+	{
+		return new File( projectRoot.getAbsoluteFile().getParentFile(), projectRoot.getName() + ".ellipsoid-fits" );
+	}
+
+	/**
+	 * Loads the cache from the given file. Returns an empty cache if the file
+	 * does not exist or cannot be read.
+	 */
+	public static FitResultCache load( final File file )
+	{
+		final FitResultCache cache = new FitResultCache( file );
+		if ( !file.isFile() )
+			return cache;
+		try (final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ))
+		{
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION )
+			{
+				System.err.println( "Ignoring ellipsoid fit cache with unknown format: " + file );
+				return cache;
+			}
+			cache.generation = in.readInt();
+			final int size = in.readInt();
+			final Map< Key, Entry > shared = new HashMap<>();
+			for ( int i = 0; i < size; i++ )
+			{
+				final Key key = Key.read( in );
+				final double[] values = new double[ 9 ];
+				for ( int d = 0; d < values.length; d++ )
+					values[ d ] = in.readDouble();
+				final int lastUsed = in.readInt();
+				// restore the sharing of entries between pre-fit and fitted keys
+				final Entry entry = shared.computeIfAbsent( key.withShape( values ), k -> new Entry( values, lastUsed ) );
+				entry.lastUsed = Math.max( entry.lastUsed, lastUsed );
+				cache.entries.put( key, entry );
+			}
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not read ellipsoid fit cache: " + file );
+			e.printStackTrace();
+			cache.entries.clear();
+		}
+		return cache;
+	}
+
+	/**
+	 * Drops entries that were not used during the last
+	 * {@value #MAX_UNUSED_SAVES} saves and writes the cache to its file, if it
+	 * was modified since it was loaded or last saved. The file is replaced
+	 * atomically, so that an interrupted write does not corrupt an existing
+	 * cache.
+	 */
+	public synchronized void save() throws IOException
+	{
+		if ( !modified )
+			return;
+		final int current = generation;
+		entries.values().removeIf( entry -> current - entry.lastUsed >= MAX_UNUSED_SAVES );
+		final File tmp = new File( file.getPath() + ".tmp" );
+		try (final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) ))
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( current + 1 );
+			final Map< Key, Entry > snapshot = new HashMap<>( entries );
+			out.writeInt( snapshot.size() );
+			for ( final Map.Entry< Key, Entry > entry : snapshot.entrySet() )
+			{
+				entry.getKey().write( out );
+				for ( final double value : entry.getValue().values )
+					out.writeDouble( value );
+				out.writeInt( entry.getValue().lastUsed );
+			}
+		}
+		Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		generation = current + 1;
+		modified = false;
+	}
+
+	/**
+	 * Returns the cached ellipsoid for a spot, or {@code null} if there is
+	 * none.
+	 *
+	 * @param spotId
+	 *            the id of the spot.
+	 * @param timepoint
+	 *            the timepoint of the spot.
+	 * @param center
+	 *            the current center of the spot.
+	 * @param covariance
+	 *            the current covariance of the spot.
+	 * @param sourceName
+	 *            name of the image source that is fitted.
+	 * @param settingsDigest
+	 *            digest of the fit parameters, see
+	 *            {@link FitEllipsoidSettings#digest()}.
+	 */
+	public Ellipsoid get( final int spotId, final int timepoint, final double[] center, final double[][] covariance,
+			final String sourceName, final long settingsDigest )
+	{
+		final Entry entry = entries.get( new Key( spotId, timepoint, center, covariance, sourceName, settingsDigest ) );
+		if ( entry == null )
+			return null;
+		if ( entry.lastUsed != generation )
+		{
+			entry.lastUsed = generation;
+			modified = true;
+		}
+		final double[] values = entry.values;
+		final double[] fittedCenter = { values[ 0 ], values[ 1 ], values[ 2 ] };
+		final double[][] fittedCovariance = {
+				{ values[ 3 ], values[ 4 ], values[ 5 ] },
+				{ values[ 4 ], values[ 6 ], values[ 7 ] },
+				{ values[ 5 ], values[ 7 ], values[ 8 ] } };
+		return new Ellipsoid( fittedCenter, fittedCovariance, null, null, null );
+	}
+
+	/**
+	 * Stores the {@code ellipsoid} fitted for a spot that had the given
+	 * {@code center} and {@code covariance}. See
+	 * {@link #get(int, int, double[], double[][], String, long)} for the
+	 * parameters.
+	 */
+	public void put( final int spotId, final int timepoint, final double[] center, final double[][] covariance,
+			final String sourceName, final long settingsDigest, final Ellipsoid ellipsoid )
+	{
+		final double[] fittedCenter = ellipsoid.getCenter();
+		final double[][] cov = ellipsoid.getCovariance();
+		final double[] values = {
+				fittedCenter[ 0 ], fittedCenter[ 1 ], fittedCenter[ 2 ],
+				cov[ 0 ][ 0 ], cov[ 0 ][ 1 ], cov[ 0 ][ 2 ],
+				cov[ 1 ][ 1 ], cov[ 1 ][ 2 ],
+				cov[ 2 ][ 2 ] };
+		// both keys share the entry, so that using either keeps both
+		final Entry entry = new Entry( values, generation );
+		entries.put( new Key( spotId, timepoint, center, covariance, sourceName, settingsDigest ), entry );
+		entries.put( new Key( spotId, timepoint, fittedCenter, cov, sourceName, settingsDigest ), entry );
+		modified = true;
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	private static final class Entry
+	{
+		private final double[] values;
+
+		private volatile int lastUsed;
+
+		Entry( final double[] values, final int lastUsed )
+		{
+			this.values = values;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	private static final class Key
+	{
+		private final int spotId;
+
+		private final int timepoint;
+
+		/**
+		 * Quantized center, followed by the quantized upper triangle of the
+		 * covariance.
+		 */
+		private final long[] shape;
+
+		private final String sourceName;
+
+		private final long settingsDigest;
+
+		private Key( final int spotId, final int timepoint, final long[] shape, final String sourceName, final long settingsDigest )
+		{
+			this.spotId = spotId;
+			this.timepoint = timepoint;
+			this.shape = shape;
+			this.sourceName = sourceName;
+			this.settingsDigest = settingsDigest;
+		}
+
+		Key( final int spotId, final int timepoint, final double[] center, final double[][] covariance, final String sourceName, final long settingsDigest )
+		{
+			this( spotId, timepoint, new long[] {
+					quantize( center[ 0 ] ), quantize( center[ 1 ] ), quantize( center[ 2 ] ),
+					quantize( covariance[ 0 ][ 0 ] ), quantize( covariance[ 0 ][ 1 ] ), quantize( covariance[ 0 ][ 2 ] ),
+					quantize( covariance[ 1 ][ 1 ] ), quantize( covariance[ 1 ][ 2 ] ),
+					quantize( covariance[ 2 ][ 2 ] ) },
+					sourceName, settingsDigest );
+		}
+
+		/**
+		 * Returns the key of the same spot with the given center and upper
+		 * triangle of the covariance.
+		 */
+		Key withShape( final double[] values )
+		{
+			final long[] quantized = new long[ values.length ];
+			for ( int i = 0; i < values.length; i++ )
+				quantized[ i ] = quantize( values[ i ] );
+			return new Key( spotId, timepoint, quantized, sourceName, settingsDigest );
+		}
+
+		private static long quantize( final double value )
+		{
+			return Math.round( value / QUANTUM );
+		}
+
+		void write( final DataOutputStream out ) throws IOException
+		{
+			out.writeInt( spotId );
+			out.writeInt( timepoint );
+			for ( final long value : shape )
+				out.writeLong( value );
+			out.writeUTF( sourceName );
+			out.writeLong( settingsDigest );
+		}
+
+		static Key read( final DataInputStream in ) throws IOException
+		{
+			final int spotId = in.readInt();
+			final int timepoint = in.readInt();
+			final long[] shape = new long[ 9 ];
+			for ( int i = 0; i < shape.length; i++ )
+				shape[ i ] = in.readLong();
+			return new Key( spotId, timepoint, shape, in.readUTF(), in.readLong() );
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( this == o )
+				return true;
+			if ( !( o instanceof Key ) )
+				return false;
+			final Key key = ( Key ) o;
+			return spotId == key.spotId
+					&& timepoint == key.timepoint
+					&& settingsDigest == key.settingsDigest
+					&& Arrays.equals( shape, key.shape )
+					&& sourceName.equals( key.sourceName );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = spotId;
+			result = 31 * result + timepoint;
+			result = 31 * result + Arrays.hashCode( shape );
+			result = 31 * result + sourceName.hashCode();
+			result = 31 * result + Long.hashCode( settingsDigest );
+			return result;
+		}
+	}
+}
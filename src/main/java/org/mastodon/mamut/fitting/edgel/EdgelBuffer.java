@@ -0,0 +1,205 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.edgel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.algorithm.edge.Edgel;
+
+/**
+ * Compact list of edgels, stored in flat primitive arrays: positions and
+ * normals (unit gradients) as interleaved {@code x, y, z} triples, and
+ * gradient magnitudes.
+ * <p>
+ * Filters and cost functions run on the arrays directly, without an object
+ * per edgel.
+ */
+public class EdgelBuffer
+{
+	private double[] positions;
+
+	private double[] normals;
+
+	private double[] magnitudes;
+
+	private int size;
+
+	public EdgelBuffer()
+	{
+		this( 64 );
+	}
+
+	public EdgelBuffer( final int capacity )
+	{
+		final int c = Math.max( 1, capacity );
+		positions = new double[ 3 * c ];
+		normals = new double[ 3 * c ];
+		magnitudes = new double[ c ];
+		size = 0;
+	}
+
+	/**
+	 * Returns a buffer with copies of the given {@code edgels}.
+	 */
+	public static EdgelBuffer of( final List< ? extends Edgel > edgels )
+	{
+		final EdgelBuffer buffer = new EdgelBuffer( edgels.size() );
+		for ( final Edgel edgel : edgels )
+			buffer.add( edgel );
+		return buffer;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+
+	public void add( final double x, final double y, final double z, final double nx, final double ny, final double nz, final double magnitude )
+	{
+		if ( size == magnitudes.length )
+			grow();
+		final int o = 3 * size;
+		positions[ o ] = x;
+		positions[ o + 1 ] = y;
+		positions[ o + 2 ] = z;
+		normals[ o ] = nx;
+		normals[ o + 1 ] = ny;
+		normals[ o + 2 ] = nz;
+		magnitudes[ size ] = magnitude;
+		++size;
+	}
+
+	public void add( final double[] position, final double[] normal, final double magnitude )
+	{
+		add( position[ 0 ], position[ 1 ], position[ 2 ], normal[ 0 ], normal[ 1 ], normal[ 2 ], magnitude );
+	}
+
+	public void add( final Edgel edgel )
+	{
+		final double[] normal = edgel.getGradient();
+		add( edgel.getDoublePosition( 0 ), edgel.getDoublePosition( 1 ), edgel.getDoublePosition( 2 ),
+				normal[ 0 ], normal[ 1 ], normal[ 2 ], edgel.getMagnitude() );
+	}
+
+	/**
+	 * Appends edgel {@code i} of the {@code other} buffer.
+	 */
+	public void add( final EdgelBuffer other, final int i )
+	{
+		final int o = 3 * i;
+		add( other.positions[ o ], other.positions[ o + 1 ], other.positions[ o + 2 ],
+				other.normals[ o ], other.normals[ o + 1 ], other.normals[ o + 2 ], other.magnitudes[ i ] );
+	}
+
+	public double getPosition( final int i, final int d )
+	{
+		return positions[ 3 * i + d ];
+	}
+
+	public double getNormal( final int i, final int d )
+	{
+		return normals[ 3 * i + d ];
+	}
+
+	public double getMagnitude( final int i )
+	{
+		return magnitudes[ i ];
+	}
+
+	public void localize( final int i, final double[] position )
+	{
+		System.arraycopy( positions, 3 * i, position, 0, 3 );
+	}
+
+	public void getNormal( final int i, final double[] normal )
+	{
+		System.arraycopy( normals, 3 * i, normal, 0, 3 );
+	}
+
+	/**
+	 * Returns edgel {@code i} as a new {@link Edgel}.
+	 */
+	public Edgel get( final int i )
+	{
+		return new Edgel( Arrays.copyOfRange( positions, 3 * i, 3 * i + 3 ), Arrays.copyOfRange( normals, 3 * i, 3 * i + 3 ), magnitudes[ i ] );
+	}
+
+	/**
+	 * Returns all edgels as new {@link Edgel} objects.
+	 */
+	public ArrayList< Edgel > toList()
+	{
+		final ArrayList< Edgel > list = new ArrayList<>( size );
+		for ( int i = 0; i < size; ++i )
+			list.add( get( i ) );
+		return list;
+	}
+
+	/**
+	 * Removes the edgels whose {@code keep} flag is false, preserving the
+	 * order of the others.
+	 */
+	void retain( final boolean[] keep )
+	{
+		int j = 0;
+		for ( int i = 0; i < size; ++i )
+		{
+			if ( !keep[ i ] )
+				continue;
+			if ( i != j )
+			{
+				System.arraycopy( positions, 3 * i, positions, 3 * j, 3 );
+				System.arraycopy( normals, 3 * i, normals, 3 * j, 3 );
+				magnitudes[ j ] = magnitudes[ i ];
+			}
+			++j;
+		}
+		size = j;
+	}
+
+	private void grow()
+	{
+		final int capacity = 2 * magnitudes.length;
+		positions = Arrays.copyOf( positions, 3 * capacity );
+		normals = Arrays.copyOf( normals, 3 * capacity );
+		magnitudes = Arrays.copyOf( magnitudes, capacity );
+	}
+}
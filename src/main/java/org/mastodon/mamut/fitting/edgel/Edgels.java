@@ -32,7 +32,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import gnu.trove.list.array.TIntArrayList;
 import net.imglib2.algorithm.edge.Edgel;
+import net.imglib2.parallel.Parallelization;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.util.LinAlgHelpers;
 
@@ -138,17 +140,403 @@ public class Edgels
 		return result;
 	}
 
+	/**
+	 * Same as {@link #filterEdgelsByOcclusion(List, double[], double, double)},
+	 * returning exactly the same edgels, but without comparing every pair of
+	 * edgels.
+	 * <p>
+	 * The directions from {@code expectedCenter} to the edgels are binned in a
+	 * grid over the unit sphere, with cells as wide as the chord of
+	 * {@code maxAngle}. Only edgels in neighbouring cells are compared. These
+	 * comparisons run in parallel, using the {@link Parallelization} task
+	 * executor. Discarding occluded edgels then visits the comparisons in the
+	 * same order as the exhaustive filter.
+	 */
+	public static ArrayList< Edgel > filterEdgelsByOcclusionBinned(
+			final List< Edgel > edgels,
+			final double[] expectedCenter,
+			final double maxAngle,
+			final double maxFactor )
+	{
+		final int n = edgels.size();
+		final double[] p = new double[ 3 * n ];
+		final double[] position = new double[ 3 ];
+		for ( int i = 0; i < n; ++i )
+		{
+			edgels.get( i ).localize( position );
+			System.arraycopy( position, 0, p, 3 * i, 3 );
+		}
+		final boolean[] valid = occlusionMask( p, n, edgels, expectedCenter, maxAngle, maxFactor );
+
+		final ArrayList< Edgel > result = new ArrayList<>();
+		for ( int i = 0; i < n; ++i )
+			if ( valid[ i ] )
+				result.add( edgels.get( i ) );
+		return result;
+	}
+
+	/**
+	 * Removes the edgels that are occluded by other edgels closer to the
+	 * {@code expectedCenter} from the buffer. Same as
+	 * {@link #filterEdgelsByOcclusionBinned(List, double[], double, double)},
+	 * but in place.
+	 */
+	public static void filterEdgelsByOcclusionBinned(
+			final EdgelBuffer edgels,
+			final double[] expectedCenter,
+			final double maxAngle,
+			final double maxFactor )
+	{
+		final int n = edgels.size();
+		final double[] p = new double[ 3 * n ];
+		for ( int i = 0; i < n; ++i )
+			for ( int d = 0; d < 3; ++d )
+				p[ 3 * i + d ] = edgels.getPosition( i, d );
+		edgels.retain( occlusionMask( p, n, null, expectedCenter, maxAngle, maxFactor ) );
+	}
+
+	/**
+	 * Computes which of the {@code n} edgels at positions {@code p} (flat
+	 * {@code x, y, z} triples) survive the occlusion filter. The array
+	 * {@code p} is overwritten. If {@code edgels} is given, pairs of identical
+	 * {@link Edgel} objects are not compared, as in the exhaustive filter.
+	 */
+	private static boolean[] occlusionMask(
+			final double[] p,
+			final int n,
+			final List< Edgel > edgels,
+			final double[] expectedCenter,
+			final double maxAngle,
+			final double maxFactor )
+	{
+		final double cos = Math.cos( maxAngle );
+
+		final double[] l = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			final int o = 3 * i;
+			p[ o ] -= expectedCenter[ 0 ];
+			p[ o + 1 ] -= expectedCenter[ 1 ];
+			p[ o + 2 ] -= expectedCenter[ 2 ];
+			l[ i ] = Math.sqrt( dot( p, o, o ) );
+		}
+
+		final DirectionGrid grid = new DirectionGrid( p, l, maxAngle );
+
+		// For each edgel i, the edgels j within maxAngle that occlude it
+		// (encoded as ~j) or that it occludes (encoded as j), ordered by j.
+		final int[][] occlusions = new int[ n ][];
+		final int numChunks = Math.max( 1, Math.min( n / 256, Parallelization.getTaskExecutor().suggestNumberOfTasks() ) );
+		final List< int[] > chunks = new ArrayList<>();
+		for ( int c = 0; c < numChunks; ++c )
+			chunks.add( new int[] { ( int ) ( ( long ) n * c / numChunks ), ( int ) ( ( long ) n * ( c + 1 ) / numChunks ) } );
+		Parallelization.getTaskExecutor().forEach( chunks, chunk -> {
+			final TIntArrayList candidates = new TIntArrayList();
+			final TIntArrayList found = new TIntArrayList();
+			for ( int i = chunk[ 0 ]; i < chunk[ 1 ]; ++i )
+			{
+				grid.candidates( i, candidates );
+				candidates.sort();
+				found.resetQuick();
+				for ( int k = 0; k < candidates.size(); ++k )
+				{
+					final int j = candidates.getQuick( k );
+					if ( j == i || ( edgels != null && edgels.get( j ) == edgels.get( i ) ) )
+						continue;
+					if ( dot( p, 3 * i, 3 * j ) / ( l[ i ] * l[ j ] ) > cos )
+					{
+						if ( l[ j ] > maxFactor * l[ i ] )
+							found.add( j );
+						else if ( l[ i ] > maxFactor * l[ j ] )
+							found.add( ~j );
+					}
+				}
+				occlusions[ i ] = found.toArray();
+			}
+		} );
+
+		final boolean[] valid = new boolean[ n ];
+		Arrays.fill( valid, true );
+		for ( int i = 0; i < n; ++i )
+		{
+			if ( !valid[ i ] )
+				continue;
+			for ( final int o : occlusions[ i ] )
+			{
+				final int j = o < 0 ? ~o : o;
+				if ( !valid[ j ] )
+					continue;
+				if ( o >= 0 )
+					valid[ j ] = false;
+				else
+				{
+					valid[ i ] = false;
+					break;
+				}
+			}
+		}
+		return valid;
+	}
+
+	/**
+	 * Dot product of the triples at offsets {@code a} and {@code b} in
+	 * {@code p}, summed in the same order as {@link LinAlgHelpers#dot}.
+	 */
+	private static double dot( final double[] p, final int a, final int b )
+	{
+		double sum = 0;
+		sum += p[ a ] * p[ b ];
+		sum += p[ a + 1 ] * p[ b + 1 ];
+		sum += p[ a + 2 ] * p[ b + 2 ];
+		return sum;
+	}
+
+	/**
+	 * Average number of edgels per angular cell in
+	 * {@link #limitEdgels(EdgelBuffer, double[], int)}.
+	 */
+	private static final int EDGELS_PER_CELL = 4;
+
+	/**
+	 * Reduces the buffer to at most {@code maxEdgels} edgels, in place,
+	 * keeping their order.
+	 * <p>
+	 * The directions from {@code expectedCenter} to the edgels are binned
+	 * into angular cells, with about {@value #EDGELS_PER_CELL} of the kept
+	 * edgels per cell. The cells take turns to contribute their edgel with
+	 * the largest gradient magnitude, so that the kept edgels cover the whole
+	 * surface, and weak edgels are dropped first.
+	 *
+	 * @param maxEdgels
+	 *            the budget, must be positive.
+	 */
+	public static void limitEdgels( final EdgelBuffer edgels, final double[] expectedCenter, final int maxEdgels )
+	{
+		if ( maxEdgels < 1 )
+			throw new IllegalArgumentException( "maxEdgels must be positive." );
+		final int n = edgels.size();
+		if ( n <= maxEdgels )
+			return;
+
+		// a grid of s^3 cells over the unit cube meets about 1.5 * pi * s^2
+		// cells on the unit sphere
+		final int s = Math.max( 1, ( int ) Math.round( Math.sqrt( maxEdgels / ( EDGELS_PER_CELL * 1.5 * Math.PI ) ) ) );
+		final int[] cell = new int[ n ];
+		final long[] order = new long[ n ];
+		final double[] x = new double[ 3 ];
+		for ( int i = 0; i < n; ++i )
+		{
+			edgels.localize( i, x );
+			LinAlgHelpers.subtract( x, expectedCenter, x );
+			final double l = LinAlgHelpers.length( x );
+			int c = 0;
+			for ( int d = 2; d >= 0; --d )
+			{
+				final double u = l > 0 ? x[ d ] / l : 0;
+				c = c * s + Math.max( 0, Math.min( s - 1, ( int ) ( ( u + 1 ) / 2 * s ) ) );
+			}
+			cell[ i ] = c;
+			// magnitudes are non-negative, so their float bits sort like the values
+			order[ i ] = ( ( long ) Float.floatToIntBits( ( float ) edgels.getMagnitude( i ) ) << 32 ) | i;
+		}
+		Arrays.sort( order );
+
+		// rank of each edgel within its cell, strongest first
+		final int[] rank = new int[ n ];
+		final int[] cellCount = new int[ s * s * s ];
+		final int[] rankCount = new int[ n ];
+		for ( int k = n - 1; k >= 0; --k )
+		{
+			final int i = ( int ) order[ k ];
+			rank[ i ] = cellCount[ cell[ i ] ]++;
+			++rankCount[ rank[ i ] ];
+		}
+
+		// keep all edgels of the full rounds, and the strongest of the last
+		// partial round
+		int rounds = 0;
+		int kept = 0;
+		while ( kept + rankCount[ rounds ] <= maxEdgels )
+			kept += rankCount[ rounds++ ];
+		final boolean[] keep = new boolean[ n ];
+		for ( int k = n - 1; k >= 0; --k )
+		{
+			final int i = ( int ) order[ k ];
+			if ( rank[ i ] < rounds )
+				keep[ i ] = true;
+			else if ( rank[ i ] == rounds && kept < maxEdgels )
+			{
+				keep[ i ] = true;
+				++kept;
+			}
+		}
+		edgels.retain( keep );
+	}
+
+	/**
+	 * Uniform grid over the unit direction vectors of edgels. Directions with
+	 * an angle less than {@code maxAngle} lie in the same or in neighbouring
+	 * cells. Directions of length zero are not binned, they never pass the
+	 * angle test.
+	 */
+	private static class DirectionGrid
+	{
+		private static final int MAX_CELLS_PER_DIMENSION = 128;
+
+		private final int size;
+
+		private final double cellSize;
+
+		private final int[] cellOf;
+
+		private final int[] cellStart;
+
+		private final int[] cellItems;
+
+		DirectionGrid( final double[] p, final double[] l, final double maxAngle )
+		{
+			// chord length of maxAngle, with a margin for rounding errors
+			final double chord = Math.sqrt( Math.max( 0, 2 - 2 * Math.cos( Math.min( maxAngle, Math.PI ) ) ) );
+			size = Math.max( 1, Math.min( MAX_CELLS_PER_DIMENSION, ( int ) ( 2 / ( chord * 1.001 + 1e-9 ) ) ) );
+			cellSize = 2.0 / size;
+
+			final int n = l.length;
+			cellOf = new int[ n ];
+			cellStart = new int[ size * size * size + 1 ];
+			for ( int i = 0; i < n; ++i )
+			{
+				if ( !( l[ i ] > 0 ) )
+				{
+					cellOf[ i ] = -1;
+					continue;
+				}
+				final int x = coordinate( p[ 3 * i ] / l[ i ] );
+				final int y = coordinate( p[ 3 * i + 1 ] / l[ i ] );
+				final int z = coordinate( p[ 3 * i + 2 ] / l[ i ] );
+				cellOf[ i ] = x + size * ( y + size * z );
+				++cellStart[ cellOf[ i ] + 1 ];
+			}
+			for ( int c = 0; c < size * size * size; ++c )
+				cellStart[ c + 1 ] += cellStart[ c ];
+			cellItems = new int[ cellStart[ size * size * size ] ];
+			final int[] fill = Arrays.copyOf( cellStart, size * size * size );
+			for ( int i = 0; i < n; ++i )
+				if ( cellOf[ i ] >= 0 )
+					cellItems[ fill[ cellOf[ i ] ]++ ] = i;
+		}
+
+		private int coordinate( final double u )
+		{
+			return Math.max( 0, Math.min( size - 1, ( int ) ( ( u + 1 ) / cellSize ) ) );
+		}
+
+		/**
+		 * Puts the indices of all directions in the cell of direction
+		 * {@code i} and its neighbours into {@code candidates}.
+		 */
+		void candidates( final int i, final TIntArrayList candidates )
+		{
+			candidates.resetQuick();
+			final int cell = cellOf[ i ];
+			if ( cell < 0 )
+				return;
+			final int x = cell % size;
+			final int y = ( cell / size ) % size;
+			final int z = cell / ( size * size );
+			for ( int cz = Math.max( 0, z - 1 ); cz <= Math.min( size - 1, z + 1 ); ++cz )
+				for ( int cy = Math.max( 0, y - 1 ); cy <= Math.min( size - 1, y + 1 ); ++cy )
+					for ( int cx = Math.max( 0, x - 1 ); cx <= Math.min( size - 1, x + 1 ); ++cx )
+					{
+						final int c = cx + size * ( cy + size * cz );
+						candidates.add( cellItems, cellStart[ c ], cellStart[ c + 1 ] - cellStart[ c ] );
+					}
+		}
+	}
+
+	/**
+	 * Transforms the {@code edgels} as {@link #transformEdgels(List, AffineTransform3D)}
+	 * does and appends those that pass
+	 * {@link #filterEdgelsByDirection(List, double[])} to the {@code result}
+	 * buffer, in a single pass and without creating intermediate
+	 * {@link Edgel} objects.
+	 *
+	 * @param expectedCenter
+	 *            expected ellipsoid center, in transformed coordinates.
+	 */
+	public static void transformAndFilterByDirection(
+			final List< Edgel > edgels,
+			final AffineTransform3D transform,
+			final double[] expectedCenter,
+			final EdgelBuffer result )
+	{
+		final AffineTransform3D normalTransform = normalTransform( transform );
+
+		final double[] p = new double[ 3 ];
+		final double[] tp = new double[ 3 ];
+		final double[] x = new double[ 3 ];
+
+		final double[] n = new double[ 3 ];
+		final double[] tn = new double[ 3 ];
+
+		for ( final Edgel edgel : edgels )
+		{
+			LinAlgHelpers.scale( edgel.getGradient(), edgel.getMagnitude(), n );
+			normalTransform.apply( n, tn );
+			final double mag = LinAlgHelpers.length( tn );
+			LinAlgHelpers.scale( tn, 1.0 / mag, tn );
+
+			edgel.localize( p );
+			transform.apply( p, tp );
+
+			LinAlgHelpers.subtract( expectedCenter, tp, x );
+			if ( LinAlgHelpers.dot( x, tn ) > 0 )
+				result.add( tp, tn, mag );
+		}
+	}
+
+	/**
+	 * Same as
+	 * {@link #transformAndFilterByDirection(List, AffineTransform3D, double[], EdgelBuffer)},
+	 * but transforms and filters the edgels of the buffer in place.
+	 */
+	public static void transformAndFilterByDirection(
+			final EdgelBuffer edgels,
+			final AffineTransform3D transform,
+			final double[] expectedCenter )
+	{
+		final AffineTransform3D normalTransform = normalTransform( transform );
+
+		final double[] p = new double[ 3 ];
+		final double[] tp = new double[ 3 ];
+		final double[] x = new double[ 3 ];
+
+		final double[] n = new double[ 3 ];
+		final double[] tn = new double[ 3 ];
+
+		// compact in place: edgel i is read before the kept ones are
+		// appended at positions <= i
+		final int size = edgels.size();
+		edgels.clear();
+		for ( int i = 0; i < size; ++i )
+		{
+			edgels.getNormal( i, n );
+			LinAlgHelpers.scale( n, edgels.getMagnitude( i ), n );
+			normalTransform.apply( n, tn );
+			final double mag = LinAlgHelpers.length( tn );
+			LinAlgHelpers.scale( tn, 1.0 / mag, tn );
+
+			edgels.localize( i, p );
+			transform.apply( p, tp );
+
+			LinAlgHelpers.subtract( expectedCenter, tp, x );
+			if ( LinAlgHelpers.dot( x, tn ) > 0 )
+				edgels.add( tp, tn, mag );
+		}
+	}
+
 	public static ArrayList< Edgel > transformEdgels( final List< Edgel > edgels, final AffineTransform3D transform )
 	{
-		final double[] m = new double[ 3 * 3 ];
-		for ( int r = 0; r < 3; ++r )
-			for ( int c = 0; c < 3; ++c )
-				m[ 3 * r + c ] = transform.get( r, c );
-		LinAlgHelpers.invert3x3( m );
-		final AffineTransform3D normalTransform = new AffineTransform3D();
-		for ( int r = 0; r < 3; ++r )
-			for ( int c = 0; c < 3; ++c )
-				normalTransform.set( m[ 3 * r + c ], r, c );
+		final AffineTransform3D normalTransform = normalTransform( transform );
 
 		final ArrayList< Edgel > result = new ArrayList<>();
 
@@ -173,4 +561,22 @@ public class Edgels
 
 		return result;
 	}
+
+	/**
+	 * Returns the transform of normals (gradients) for the given
+	 * {@code transform}.
+	 */
+	private static AffineTransform3D normalTransform( final AffineTransform3D transform )
+	{
+		final double[] m = new double[ 3 * 3 ];
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 3; ++c )
+				m[ 3 * r + c ] = transform.get( r, c );
+		LinAlgHelpers.invert3x3( m );
+		final AffineTransform3D normalTransform = new AffineTransform3D();
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 3; ++c )
+				normalTransform.set( m[ 3 * r + c ], r, c );
+		return normalTransform;
+	}
 }
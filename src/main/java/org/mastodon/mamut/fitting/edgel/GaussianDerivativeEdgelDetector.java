@@ -0,0 +1,345 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.edgel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mastodon.mamut.fitting.timing.FitStage;
+import org.mastodon.mamut.fitting.timing.StageTimer;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Detects edgels in a 3D image crop, like
+ * {@code SubpixelEdgelDetection} on a Gaussian blurred copy of the crop, but
+ * in fewer passes and without intermediate images.
+ * <p>
+ * The smoothed gradient is computed directly, with separable
+ * derivative-of-Gaussian kernels. The crop is read once. Non-maximum
+ * suppression along the gradient direction and sub-pixel localisation happen
+ * in a single pass over the gradient, and the edgels are written straight
+ * into an {@link EdgelBuffer}. The image is mirrored at the crop border, as
+ * for the blurred crop.
+ */
+public class GaussianDerivativeEdgelDetector
+{
+	private static final Map< Double, Kernel > KERNELS = new ConcurrentHashMap<>();
+
+	private static final int MAX_CACHED_KERNELS = 64;
+
+	private final Kernel[] kernels = new Kernel[ 3 ];
+
+	/**
+	 * @param sigmas
+	 *            per-axis sigmas of the Gaussian, in voxels. {@code 0} means no
+	 *            smoothing along that axis, the gradient is then a central
+	 *            difference.
+	 */
+	public GaussianDerivativeEdgelDetector( final double[] sigmas )
+	{
+		for ( int d = 0; d < 3; ++d )
+			kernels[ d ] = kernel( sigmas[ d ] );
+	}
+
+	/**
+	 * Detects the edgels in {@code input} and appends them to {@code result},
+	 * in coordinates relative to the min corner of {@code input}. Voxels on
+	 * the border of {@code input} do not yield edgels.
+	 *
+	 * @param minGradientMagnitude
+	 *            edgels with a smaller (smoothed) gradient magnitude are
+	 *            ignored.
+	 */
+	public void detect( final RandomAccessibleInterval< ? extends RealType< ? > > input, final double minGradientMagnitude, final EdgelBuffer result )
+	{
+		detect( input, minGradientMagnitude, null, result );
+	}
+
+	/**
+	 * Same as {@link #detect(RandomAccessibleInterval, double, EdgelBuffer)},
+	 * but only yields edgels within the given {@code shell}, if not
+	 * {@code null}. Gradients are only computed where needed for these
+	 * edgels, which skips most of the crop.
+	 *
+	 * @param shell
+	 *            in coordinates relative to the min corner of {@code input}.
+	 */
+	public void detect( final RandomAccessibleInterval< ? extends RealType< ? > > input, final double minGradientMagnitude,
+			final RadialShell shell, final EdgelBuffer result )
+	{
+		final int[] size = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			size[ d ] = ( int ) input.dimension( d );
+		final int n = size[ 0 ] * size[ 1 ] * size[ 2 ];
+
+		final StageTimer timer = StageTimer.current();
+		final float[] a = new float[ n ];
+		int i = 0;
+		for ( final RealType< ? > t : Views.flatIterable( input ) )
+			a[ i++ ] = t.getRealFloat();
+		timer.lap( FitStage.CONVERT );
+
+		// Margins around the shell, in which each pass must be computed for
+		// the following passes: non-maximum suppression reads the direct
+		// neighbours, each convolution reads the radius of its kernels.
+		final double marginX = shell == null ? 0 : shell.voxelDiagonal();
+		final double marginY = shell == null ? 0 : marginX + shell.length( 0, kernels[ 0 ].radius() );
+		final double marginZ = shell == null ? 0 : marginY + shell.length( 1, kernels[ 1 ].radius() );
+
+		// z: smooth and derive
+		final float[] b = new float[ n ];
+		final float[] c = new float[ n ];
+		convolve( a, b, size, 2, kernels[ 2 ].smooth, shell, marginZ );
+		convolve( a, c, size, 2, kernels[ 2 ].derive, shell, marginZ );
+		// y: smooth(z) -> smooth, derive; derive(z) -> smooth
+		final float[] e = new float[ n ];
+		final float[] f = new float[ n ];
+		convolve( b, a, size, 1, kernels[ 1 ].smooth, shell, marginY );
+		convolve( b, e, size, 1, kernels[ 1 ].derive, shell, marginY );
+		convolve( c, f, size, 1, kernels[ 1 ].smooth, shell, marginY );
+		// x: gx = derive(a), gy = smooth(e), gz = smooth(f)
+		final float[] gx = b;
+		final float[] gy = c;
+		final float[] gz = new float[ n ];
+		convolve( a, gx, size, 0, kernels[ 0 ].derive, shell, marginX );
+		convolve( e, gy, size, 0, kernels[ 0 ].smooth, shell, marginX );
+		convolve( f, gz, size, 0, kernels[ 0 ].smooth, shell, marginX );
+		final float[] magnitude = a;
+		final int[] position = new int[ 3 ];
+		final int[] spans = new int[ 4 ];
+		for ( position[ 2 ] = 0; position[ 2 ] < size[ 2 ]; ++position[ 2 ] )
+			for ( position[ 1 ] = 0; position[ 1 ] < size[ 1 ]; ++position[ 1 ] )
+			{
+				final int offset = size[ 0 ] * ( position[ 1 ] + size[ 1 ] * position[ 2 ] );
+				final int numSpans = spans( shell, 0, position, size[ 0 ], marginX, spans );
+				for ( int s = 0; s < numSpans; ++s )
+					for ( int j = offset + spans[ 2 * s ]; j < offset + spans[ 2 * s + 1 ]; ++j )
+						magnitude[ j ] = ( float ) Math.sqrt( gx[ j ] * gx[ j ] + gy[ j ] * gy[ j ] + gz[ j ] * gz[ j ] );
+			}
+		timer.lap( FitStage.BLUR );
+
+		findEdgels( size, gx, gy, gz, magnitude, minGradientMagnitude, shell, result );
+		timer.lap( FitStage.EDGELS );
+	}
+
+	/**
+	 * Non-maximum suppression along the gradient direction, and sub-pixel
+	 * localisation of the maximum by fitting a parabola to the gradient
+	 * magnitudes at {@code -1, 0, +1} times the normalized gradient.
+	 */
+	private static void findEdgels( final int[] size, final float[] gx, final float[] gy, final float[] gz, final float[] magnitude,
+			final double minGradientMagnitude, final RadialShell shell, final EdgelBuffer result )
+	{
+		final int sx = size[ 0 ];
+		final int sxy = size[ 0 ] * size[ 1 ];
+		final int[] position = new int[ 3 ];
+		final int[] spans = new int[ 4 ];
+		for ( int z = 1; z < size[ 2 ] - 1; ++z )
+			for ( int y = 1; y < size[ 1 ] - 1; ++y )
+			{
+				position[ 1 ] = y;
+				position[ 2 ] = z;
+				final int numSpans = spans( shell, 0, position, size[ 0 ], 0, spans );
+				for ( int s = 0; s < numSpans; ++s )
+					for ( int x = Math.max( 1, spans[ 2 * s ] ); x < Math.min( size[ 0 ] - 1, spans[ 2 * s + 1 ] ); ++x )
+					{
+						final int i = x + sx * y + sxy * z;
+						final double m = magnitude[ i ];
+						if ( m < minGradientMagnitude || m <= 0 )
+							continue;
+						if ( shell != null && !shell.contains( x, y, z ) )
+							continue;
+						final double nx = gx[ i ] / m;
+						final double ny = gy[ i ] / m;
+						final double nz = gz[ i ] / m;
+						final double mPlus = interpolate( magnitude, size, x + nx, y + ny, z + nz );
+						if ( m < mPlus )
+							continue;
+						final double mMinus = interpolate( magnitude, size, x - nx, y - ny, z - nz );
+						if ( m < mMinus )
+							continue;
+						final double curvature = ( mPlus + mMinus ) / 2 - m;
+						final double shift = curvature < 0 ? ( mMinus - mPlus ) / ( 4 * curvature ) : 0;
+						result.add( x + shift * nx, y + shift * ny, z + shift * nz, nx, ny, nz, m );
+					}
+			}
+	}
+
+	/**
+	 * Ranges of the line along {@code d} through {@code position} that lie
+	 * within the {@code shell} widened by {@code margin}. Without a shell, the
+	 * whole line.
+	 */
+	private static int spans( final RadialShell shell, final int d, final int[] position, final int length, final double margin, final int[] spans )
+	{
+		if ( shell == null )
+		{
+			spans[ 0 ] = 0;
+			spans[ 1 ] = length;
+			return 1;
+		}
+		return shell.spans( d, position, length, margin, spans );
+	}
+
+	/**
+	 * Trilinear interpolation of {@code values} at a position within the
+	 * image bounds.
+	 */
+	private static double interpolate( final float[] values, final int[] size, final double x, final double y, final double z )
+	{
+		final int x0 = Math.min( ( int ) x, size[ 0 ] - 2 );
+		final int y0 = Math.min( ( int ) y, size[ 1 ] - 2 );
+		final int z0 = Math.min( ( int ) z, size[ 2 ] - 2 );
+		final double fx = x - x0;
+		final double fy = y - y0;
+		final double fz = z - z0;
+		final int sx = size[ 0 ];
+		final int sxy = size[ 0 ] * size[ 1 ];
+		final int i = x0 + sx * y0 + sxy * z0;
+		final double v00 = values[ i ] + fx * ( values[ i + 1 ] - values[ i ] );
+		final double v10 = values[ i + sx ] + fx * ( values[ i + sx + 1 ] - values[ i + sx ] );
+		final double v01 = values[ i + sxy ] + fx * ( values[ i + sxy + 1 ] - values[ i + sxy ] );
+		final double v11 = values[ i + sxy + sx ] + fx * ( values[ i + sxy + sx + 1 ] - values[ i + sxy + sx ] );
+		final double v0 = v00 + fy * ( v10 - v00 );
+		final double v1 = v01 + fy * ( v11 - v01 );
+		return v0 + fz * ( v1 - v0 );
+	}
+
+	/**
+	 * Correlates each line of {@code src} along dimension {@code d} with the
+	 * {@code kernel} (of odd length, centered), mirroring at the borders. Only
+	 * voxels within the {@code shell} widened by {@code margin} are written,
+	 * if a shell is given.
+	 */
+	private static void convolve( final float[] src, final float[] dst, final int[] size, final int d, final double[] kernel,
+			final RadialShell shell, final double margin )
+	{
+		final int length = size[ d ];
+		final int r = kernel.length / 2;
+		final int[] strides = { 1, size[ 0 ], size[ 0 ] * size[ 1 ] };
+		final int stride = strides[ d ];
+		final int d1 = d == 0 ? 1 : 0;
+		final int d2 = d == 2 ? 1 : 2;
+		final int[] position = new int[ 3 ];
+		final int[] spans = new int[ 4 ];
+		final double[] line = new double[ length + 2 * r ];
+		for ( position[ d2 ] = 0; position[ d2 ] < size[ d2 ]; ++position[ d2 ] )
+			for ( position[ d1 ] = 0; position[ d1 ] < size[ d1 ]; ++position[ d1 ] )
+			{
+				final int numSpans = spans( shell, d, position, length, margin, spans );
+				if ( numSpans == 0 )
+					continue;
+				final int offset = position[ d1 ] * strides[ d1 ] + position[ d2 ] * strides[ d2 ];
+				// line[ k ] holds voxel k - r
+				for ( int k = spans[ 0 ]; k < spans[ 2 * numSpans - 1 ] + 2 * r; ++k )
+					line[ k ] = src[ offset + stride * mirror( k - r, length ) ];
+				for ( int s = 0; s < numSpans; ++s )
+					for ( int x = spans[ 2 * s ]; x < spans[ 2 * s + 1 ]; ++x )
+					{
+						double sum = 0;
+						for ( int k = 0; k < kernel.length; ++k )
+							sum += kernel[ k ] * line[ x + k ];
+						dst[ offset + stride * x ] = ( float ) sum;
+					}
+			}
+	}
+
+	/**
+	 * Mirrors position {@code x} into {@code [0, length)}, without repeating
+	 * the border voxel.
+	 */
+	private static int mirror( final int x, final int length )
+	{
+		if ( length == 1 )
+			return 0;
+		final int period = 2 * length - 2;
+		int m = x % period;
+		if ( m < 0 )
+			m += period;
+		return m < length ? m : period - m;
+	}
+
+	private static Kernel kernel( final double sigma )
+	{
+		final Kernel cached = KERNELS.get( sigma );
+		if ( cached != null )
+			return cached;
+		if ( KERNELS.size() >= MAX_CACHED_KERNELS )
+			KERNELS.clear();
+		final Kernel kernel = new Kernel( sigma );
+		KERNELS.put( sigma, kernel );
+		return kernel;
+	}
+
+	/**
+	 * Sampled Gaussian and derivative-of-Gaussian kernels. The Gaussian is
+	 * normalized to sum 1, the derivative to slope 1 on a linear ramp.
+	 */
+	private static class Kernel
+	{
+		final double[] smooth;
+
+		final double[] derive;
+
+		int radius()
+		{
+			return Math.max( smooth.length, derive.length ) / 2;
+		}
+
+		Kernel( final double sigma )
+		{
+			if ( sigma <= 0 )
+			{
+				smooth = new double[] { 1 };
+				derive = new double[] { -0.5, 0, 0.5 };
+				return;
+			}
+			final int r = Math.max( 1, ( int ) Math.ceil( 3 * sigma ) );
+			final double[] g = new double[ 2 * r + 1 ];
+			double sum = 0;
+			double moment = 0;
+			for ( int k = -r; k <= r; ++k )
+			{
+				g[ k + r ] = Math.exp( -0.5 * k * k / ( sigma * sigma ) );
+				sum += g[ k + r ];
+				moment += k * k * g[ k + r ];
+			}
+			smooth = new double[ 2 * r + 1 ];
+			derive = new double[ 2 * r + 1 ];
+			for ( int k = -r; k <= r; ++k )
+			{
+				smooth[ k + r ] = g[ k + r ] / sum;
+				derive[ k + r ] = k * g[ k + r ] / moment;
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.edgel;
+
+/**
+ * A radial shell around a center point, in voxel coordinates of an image with
+ * the given voxel size. Distances are measured in scaled (global) units.
+ * <p>
+ * Used to restrict edgel detection to the neighbourhood of the expected
+ * surface of a spot.
+ */
+public class RadialShell
+{
+	private final double[] center;
+
+	private final double[] scale;
+
+	private final double innerRadius;
+
+	private final double outerRadius;
+
+	/**
+	 * @param center
+	 *            center of the shell, in voxel coordinates.
+	 * @param scale
+	 *            voxel size along each axis.
+	 * @param innerRadius
+	 *            inner radius, in scaled units.
+	 * @param outerRadius
+	 *            outer radius, in scaled units.
+	 */
+	public RadialShell( final double[] center, final double[] scale, final double innerRadius, final double outerRadius )
+	{
+		this.center = center.clone();
+		this.scale = scale.clone();
+		this.innerRadius = innerRadius;
+		this.outerRadius = outerRadius;
+	}
+
+	/**
+	 * Returns true if the given position, in voxel coordinates, lies within
+	 * the shell.
+	 */
+	public boolean contains( final double x, final double y, final double z )
+	{
+		final double dx = ( x - center[ 0 ] ) * scale[ 0 ];
+		final double dy = ( y - center[ 1 ] ) * scale[ 1 ];
+		final double dz = ( z - center[ 2 ] ) * scale[ 2 ];
+		final double sqr = dx * dx + dy * dy + dz * dz;
+		return sqr >= innerRadius * innerRadius && sqr <= outerRadius * outerRadius;
+	}
+
+	/**
+	 * Returns the distance, in scaled units, between neighbouring voxels along
+	 * all axes, i.e., the length of the voxel diagonal.
+	 */
+	public double voxelDiagonal()
+	{
+		return Math.sqrt( scale[ 0 ] * scale[ 0 ] + scale[ 1 ] * scale[ 1 ] + scale[ 2 ] * scale[ 2 ] );
+	}
+
+	/**
+	 * Returns the scaled length of {@code n} voxels along axis {@code d}.
+	 */
+	public double length( final int d, final int n )
+	{
+		return n * scale[ d ];
+	}
+
+	/**
+	 * Computes the ranges of voxels on a line along axis {@code d} that lie in
+	 * the shell widened by {@code margin} on both sides. The line passes
+	 * through {@code position} (the coordinate along {@code d} is ignored) and
+	 * covers voxels {@code 0} to {@code length - 1}.
+	 *
+	 * @param spans
+	 *            receives up to two half-open ranges
+	 *            {@code [spans[2k], spans[2k+1])}.
+	 * @return the number of ranges.
+	 */
+	public int spans( final int d, final int[] position, final int length, final double margin, final int[] spans )
+	{
+		double sqr = 0;
+		for ( int k = 0; k < 3; ++k )
+			if ( k != d )
+			{
+				final double dk = ( position[ k ] - center[ k ] ) * scale[ k ];
+				sqr += dk * dk;
+			}
+		final double outer = outerRadius + margin;
+		final double outerSqr = outer * outer - sqr;
+		if ( outerSqr < 0 )
+			return 0;
+		final double outerHalf = Math.sqrt( outerSqr ) / scale[ d ];
+		final int from = Math.max( 0, ( int ) Math.floor( center[ d ] - outerHalf ) );
+		final int to = Math.min( length, ( int ) Math.ceil( center[ d ] + outerHalf ) + 1 );
+		if ( from >= to )
+			return 0;
+
+		final double inner = innerRadius - margin;
+		final double innerSqr = inner > 0 ? inner * inner - sqr : -1;
+		if ( innerSqr > 0 )
+		{
+			// voxels strictly inside the hole are skipped
+			final double innerHalf = Math.sqrt( innerSqr ) / scale[ d ];
+			final int holeFrom = Math.max( from, ( int ) Math.floor( center[ d ] - innerHalf ) + 1 );
+			final int holeTo = Math.min( to, ( int ) Math.ceil( center[ d ] + innerHalf ) );
+			if ( holeFrom < holeTo )
+			{
+				int n = 0;
+				if ( from < holeFrom )
+				{
+					spans[ 2 * n ] = from;
+					spans[ 2 * n + 1 ] = holeFrom;
+					++n;
+				}
+				if ( holeTo < to )
+				{
+					spans[ 2 * n ] = holeTo;
+					spans[ 2 * n + 1 ] = to;
+					++n;
+				}
+				return n;
+			}
+		}
+		spans[ 0 ] = from;
+		spans[ 1 ] = to;
+		return 1;
+	}
+}
@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.edgel;
+
+/**
+ * Options of the RANSAC in {@link SampleEllipsoidEdgel}, in addition to the
+ * number of samples and candidates. The defaults give the plain RANSAC.
+ */
+public class RansacOptions
+{
+	private boolean preemptive = false;
+
+	private boolean adaptive = false;
+
+	private double confidence = 0.99;
+
+	private boolean progressive = false;
+
+	/**
+	 * Whether candidates are scored preemptively. All candidates are drawn
+	 * first, then scored together on growing blocks of edgels, and the worse
+	 * half is dropped after each block. Only the last remaining candidate is
+	 * scored on all edgels, so scoring takes about
+	 * {@code log2(numCandidates)} passes over the edgels, however good or
+	 * bad the candidates are.
+	 */
+	public boolean isPreemptive()
+	{
+		return preemptive;
+	}
+
+	public RansacOptions setPreemptive( final boolean preemptive )
+	{
+		this.preemptive = preemptive;
+		return this;
+	}
+
+	/**
+	 * Whether sampling stops as soon as enough samples were drawn to find an
+	 * all-inlier sample with probability {@link #getConfidence()}. That number
+	 * of samples follows from the inlier fraction of the best candidate so
+	 * far, <em>log(1 - confidence) / log(1 - fraction^9)</em>. The number of
+	 * samples and candidates given to the RANSAC remain upper limits. Ignored
+	 * in {@link #isPreemptive() preemptive} mode.
+	 */
+	public boolean isAdaptive()
+	{
+		return adaptive;
+	}
+
+	public RansacOptions setAdaptive( final boolean adaptive )
+	{
+		this.adaptive = adaptive;
+		return this;
+	}
+
+	/**
+	 * Probability of drawing at least one all-inlier sample, at which
+	 * {@link #isAdaptive() adaptive} sampling stops.
+	 */
+	public double getConfidence()
+	{
+		return confidence;
+	}
+
+	public RansacOptions setConfidence( final double confidence )
+	{
+		if ( !( confidence > 0 && confidence < 1 ) )
+			throw new IllegalArgumentException( "confidence must be between 0 and 1." );
+		this.confidence = confidence;
+		return this;
+	}
+
+	/**
+	 * Whether samples are drawn progressively (PROSAC): first from the edgels
+	 * with the largest gradient magnitude, which are more likely to lie on the
+	 * boundary, then from a pool that grows to all edgels by the max number
+	 * of samples.
+	 */
+	public boolean isProgressive()
+	{
+		return progressive;
+	}
+
+	public RansacOptions setProgressive( final boolean progressive )
+	{
+		this.progressive = progressive;
+		return this;
+	}
+}
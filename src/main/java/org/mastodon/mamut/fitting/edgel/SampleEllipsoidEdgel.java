@@ -29,24 +29,29 @@
 package org.mastodon.mamut.fitting.edgel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
 
 import javax.annotation.Nonnull;
 
 import org.mastodon.mamut.fitting.ellipsoid.DistPointHyperEllipsoid;
 import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+import org.mastodon.mamut.fitting.ellipsoid.EllipsoidNormalEquations;
 import org.mastodon.mamut.fitting.ellipsoid.FitEllipsoid;
 import org.mastodon.mamut.fitting.ellipsoid.HyperEllipsoid;
 import org.mastodon.mamut.fitting.ellipsoid.DistPointHyperEllipsoid.Result;
+import org.mastodon.mamut.fitting.timing.FitStage;
+import org.mastodon.mamut.fitting.timing.StageTimer;
 
 import net.imglib2.algorithm.edge.Edgel;
 import net.imglib2.util.LinAlgHelpers;
 
-import gnu.trove.list.array.TIntArrayList;
-
 public class SampleEllipsoidEdgel
 {
 	public static Map< Edgel, Double > getCosts(
@@ -81,86 +86,769 @@ public class SampleEllipsoidEdgel
 			final double angleCutoffDistance,
 			final double maxCenterDistance )
 	{
+		return sample( edgels, expectedCenter, numSamples, numCandidates, outsideCutoffDistance, insideCutoffDistance,
+				angleCutoffDistance, maxCenterDistance, () -> false );
+	}
+
+	/**
+	 * Same as
+	 * {@link #sample(List, double[], int, int, double, double, double, double)},
+	 * but checks {@code isCanceled} before drawing each sample.
+	 *
+	 * @throws NoEllipsoidFoundException if no ellipsoid could be derived from the
+	 * 		   given edgels.
+	 * @throws CancellationException if {@code isCanceled} returns true.
+	 */
+	@Nonnull
+	public static Ellipsoid sample(
+			final List< Edgel > edgels,
+			final double[] expectedCenter,
+			final int numSamples,
+			final int numCandidates,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final double angleCutoffDistance,
+			final double maxCenterDistance,
+			final BooleanSupplier isCanceled )
+	{
+		return sample( edgels, expectedCenter, numSamples, numCandidates, outsideCutoffDistance, insideCutoffDistance,
+				angleCutoffDistance, maxCenterDistance, isCanceled, null );
+	}
+
+	/**
+	 * Same as
+	 * {@link #sample(List, double[], int, int, double, double, double, double, BooleanSupplier)},
+	 * and fills in the given {@code statistics}, if not {@code null}. Counting
+	 * the inliers of the result costs one more pass over the edgels.
+	 *
+	 * @throws NoEllipsoidFoundException if no ellipsoid could be derived from the
+	 * 		   given edgels.
+	 * @throws CancellationException if {@code isCanceled} returns true.
+	 */
+	@Nonnull
+	public static Ellipsoid sample(
+			final List< Edgel > edgels,
+			final double[] expectedCenter,
+			final int numSamples,
+			final int numCandidates,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final double angleCutoffDistance,
+			final double maxCenterDistance,
+			final BooleanSupplier isCanceled,
+			final SamplingStatistics statistics )
+	{
+		return sample( edgels, expectedCenter, numSamples, numCandidates, outsideCutoffDistance, insideCutoffDistance,
+				angleCutoffDistance, maxCenterDistance, isCanceled, statistics, new SplittableRandom() );
+	}
+
+	/**
+	 * Same as
+	 * {@link #sample(List, double[], int, int, double, double, double, double, BooleanSupplier, SamplingStatistics)},
+	 * but draws the samples from the given {@code random} generator. With a
+	 * generator of fixed seed, the result and the number of samples drawn are
+	 * reproducible.
+	 *
+	 * @throws NoEllipsoidFoundException if no ellipsoid could be derived from the
+	 * 		   given edgels.
+	 * @throws CancellationException if {@code isCanceled} returns true.
+	 */
+	@Nonnull
+	public static Ellipsoid sample(
+			final List< Edgel > edgels,
+			final double[] expectedCenter,
+			final int numSamples,
+			final int numCandidates,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final double angleCutoffDistance,
+			final double maxCenterDistance,
+			final BooleanSupplier isCanceled,
+			final SamplingStatistics statistics,
+			final SplittableRandom random )
+	{
+		return sample( EdgelBuffer.of( edgels ), expectedCenter, numSamples, numCandidates, outsideCutoffDistance, insideCutoffDistance,
+				angleCutoffDistance, maxCenterDistance, isCanceled, statistics, random );
+	}
+
+	/**
+	 * Same as
+	 * {@link #sample(List, double[], int, int, double, double, double, double, BooleanSupplier, SamplingStatistics, SplittableRandom)},
+	 * on edgels stored in an {@link EdgelBuffer}.
+	 *
+	 * @throws NoEllipsoidFoundException if no ellipsoid could be derived from the
+	 * 		   given edgels.
+	 * @throws CancellationException if {@code isCanceled} returns true.
+	 */
+	@Nonnull
+	public static Ellipsoid sample(
+			final EdgelBuffer edgels,
+			final double[] expectedCenter,
+			final int numSamples,
+			final int numCandidates,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final double angleCutoffDistance,
+			final double maxCenterDistance,
+			final BooleanSupplier isCanceled,
+			final SamplingStatistics statistics,
+			final SplittableRandom random )
+	{
+		return sample( edgels, expectedCenter, numSamples, numCandidates, outsideCutoffDistance, insideCutoffDistance,
+				angleCutoffDistance, maxCenterDistance, isCanceled, statistics, random, new RansacOptions() );
+	}
+
+	/**
+	 * Same as
+	 * {@link #sample(EdgelBuffer, double[], int, int, double, double, double, double, BooleanSupplier, SamplingStatistics, SplittableRandom)},
+	 * with the given RANSAC {@code options}.
+	 *
+	 * @throws NoEllipsoidFoundException if no ellipsoid could be derived from the
+	 * 		   given edgels.
+	 * @throws CancellationException if {@code isCanceled} returns true.
+	 */
+	@Nonnull
+	public static Ellipsoid sample(
+			final EdgelBuffer edgels,
+			final double[] expectedCenter,
+			final int numSamples,
+			final int numCandidates,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final double angleCutoffDistance,
+			final double maxCenterDistance,
+			final BooleanSupplier isCanceled,
+			final SamplingStatistics statistics,
+			final SplittableRandom random,
+			final RansacOptions options )
+	{
+		if ( statistics != null )
+			statistics.setNumEdgels( edgels.size() );
 		final int numPointsPerSample = 9;
 		if ( edgels.size() < numPointsPerSample )
 			throw new NoEllipsoidFoundException( "Not enough edgels to fit an ellipsoid." );
 
 		final Cost costFunction = new EdgelDistanceCost( outsideCutoffDistance, insideCutoffDistance, angleCutoffDistance );
 
-		final Random rand = new Random( System.currentTimeMillis() );
-		final TIntArrayList indices = new TIntArrayList();
-		final double[][] coordinates = new double[ numPointsPerSample ][ 3 ];
+		final Ellipsoid bestEllipsoid = ransac( edgels, expectedCenter, numSamples, numCandidates, maxCenterDistance, costFunction, null,
+				isCanceled, statistics, random, options );
+		StageTimer.current().lap( FitStage.RANSAC );
 
-		Ellipsoid bestEllipsoid = null;
-		double bestCost = Double.POSITIVE_INFINITY;
+		if ( bestEllipsoid == null ) // no ellipsoid found
+			throw new NoEllipsoidFoundException( "No ellipsoid found, that is near to the expected center." );
+
+		final Ellipsoid result = refine( edgels, bestEllipsoid, expectedCenter, maxCenterDistance, costFunction );
+		if ( statistics != null )
+		{
+			statistics.setRefined( result != bestEllipsoid );
+			statistics.setNumInliers( countInliers( edgels, result, costFunction ) );
+		}
+		StageTimer.current().lap( FitStage.REFINE );
+		return result;
+	}
+
+	/**
+	 * Max number of least-squares fits in {@link #refine}.
+	 */
+	private static final int MAX_REFINE_ITERATIONS = 5;
+
+	/**
+	 * Fits an ellipsoid to the inliers of the {@code best} ellipsoid, and
+	 * again to the inliers of that fit, while the inliers change and the cost
+	 * decreases. The normal equations are updated with the edgels that enter
+	 * or leave the inlier set. Returns {@code best} if the first fit fails or
+	 * yields an invalid ellipsoid.
+	 */
+	private static Ellipsoid refine( final EdgelBuffer edgels, final Ellipsoid best, final double[] expectedCenter,
+			final double maxCenterDistance, final Cost costFunction )
+	{
+		final EllipsoidNormalEquations equations = new EllipsoidNormalEquations();
+		final boolean[] inlier = new boolean[ edgels.size() ];
 		final double[] center = new double[ 3 ];
-		int candidates = 0;
+		final double[][] precision = new double[ 3 ][ 3 ];
+		final double[] tmp = new double[ 3 ];
+		Ellipsoid result = best;
+		double cost = Double.POSITIVE_INFINITY;
+		for ( int iteration = 0; iteration < MAX_REFINE_ITERATIONS; ++iteration )
+		{
+			if ( !updateInliers( edgels, result, costFunction, inlier, equations ) && iteration > 0 )
+				break;
+			if ( !equations.solve( center, precision ) )
+				break;
+			final Ellipsoid refined = new Ellipsoid( center.clone(), null, copy( precision ), null, null );
+			if ( !isEllipsoidValid( refined, expectedCenter, maxCenterDistance, tmp ) )
+				break;
+			final double refinedCost = costFunction.computeBounded( refined, edgels, cost );
+			// the first fit is taken regardless of its cost
+			if ( refinedCost >= cost )
+				break;
+			cost = refinedCost;
+			result = refined;
+		}
+		return result;
+	}
+
+	/**
+	 * Updates {@code inlier} and the normal {@code equations} to the inliers
+	 * of {@code ellipsoid}.
+	 *
+	 * @return whether the inliers changed.
+	 */
+	private static boolean updateInliers( final EdgelBuffer edgels, final Ellipsoid ellipsoid, final Cost costFunction,
+			final boolean[] inlier, final EllipsoidNormalEquations equations )
+	{
+		boolean changed = false;
+		for ( int i = 0; i < edgels.size(); ++i )
+		{
+			final boolean isInlier = costFunction.isInlier( ellipsoid, edgels, i );
+			if ( isInlier == inlier[ i ] )
+				continue;
+			inlier[ i ] = isInlier;
+			changed = true;
+			final double x = edgels.getPosition( i, 0 );
+			final double y = edgels.getPosition( i, 1 );
+			final double z = edgels.getPosition( i, 2 );
+			if ( isInlier )
+				equations.add( x, y, z );
+			else
+				equations.remove( x, y, z );
+		}
+		return changed;
+	}
+
+	/**
+	 * Fits an ellipsoid coarse-to-fine: the full RANSAC of
+	 * {@link #sample(EdgelBuffer, double[], int, int, double, double, double, double, BooleanSupplier, SamplingStatistics, SplittableRandom)}
+	 * runs on the {@code coarseEdgels} (detected on a downsampled resolution
+	 * level). The result is then refined at full resolution, using only the
+	 * {@code fineEdgels} within {@code shellWidth} of the coarse ellipsoid:
+	 * the coarse ellipsoid, its least-squares fit to the shell inliers, and a
+	 * small number of RANSAC candidates drawn from the shell compete by their
+	 * cost on the shell. A winning candidate is in turn replaced by its
+	 * least-squares fit, if that is cheaper. Fills in the given
+	 * {@code statistics}, if not {@code null}, with the samples and candidates
+	 * of both levels, and the best cost and inliers on the shell. Both levels
+	 * draw their samples from {@code random}, and use the given RANSAC
+	 * {@code options}.
+	 *
+	 * @throws NoEllipsoidFoundException if no ellipsoid could be derived from the
+	 * 		   coarse edgels.
+	 * @throws CancellationException if {@code isCanceled} returns true.
+	 */
+	@Nonnull
+	public static Ellipsoid sampleCoarseToFine(
+			final EdgelBuffer coarseEdgels,
+			final EdgelBuffer fineEdgels,
+			final double[] expectedCenter,
+			final int numSamples,
+			final int numCandidates,
+			final int numRefineSamples,
+			final int numRefineCandidates,
+			final double shellWidth,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final double angleCutoffDistance,
+			final double maxCenterDistance,
+			final BooleanSupplier isCanceled,
+			final SamplingStatistics statistics,
+			final SplittableRandom random,
+			final RansacOptions options )
+	{
+		return sampleCoarseToFine( coarseEdgels, coarse -> fineEdgels, expectedCenter, numSamples, numCandidates, numRefineSamples,
+				numRefineCandidates, shellWidth, outsideCutoffDistance, insideCutoffDistance, angleCutoffDistance, maxCenterDistance,
+				isCanceled, statistics, random, options );
+	}
+
+	/**
+	 * Same as
+	 * {@link #sampleCoarseToFine(EdgelBuffer, EdgelBuffer, double[], int, int, int, int, double, double, double, double, double, BooleanSupplier, SamplingStatistics, SplittableRandom, RansacOptions)},
+	 * but the full resolution edgels are only detected once the coarse
+	 * ellipsoid is known: {@code fineEdgels} is called with the coarse
+	 * ellipsoid, and needs to return at least the edgels within
+	 * {@code shellWidth} of it.
+	 */
+	@Nonnull
+	public static Ellipsoid sampleCoarseToFine(
+			final EdgelBuffer coarseEdgels,
+			final Function< Ellipsoid, EdgelBuffer > fineEdgels,
+			final double[] expectedCenter,
+			final int numSamples,
+			final int numCandidates,
+			final int numRefineSamples,
+			final int numRefineCandidates,
+			final double shellWidth,
+			final double outsideCutoffDistance,
+			final double insideCutoffDistance,
+			final double angleCutoffDistance,
+			final double maxCenterDistance,
+			final BooleanSupplier isCanceled,
+			final SamplingStatistics statistics,
+			final SplittableRandom random,
+			final RansacOptions options )
+	{
+		final Ellipsoid coarse = sample( coarseEdgels, expectedCenter, numSamples, numCandidates, outsideCutoffDistance,
+				insideCutoffDistance, angleCutoffDistance, maxCenterDistance, isCanceled, statistics, random, options );
+
+		final EdgelBuffer shell = selectNearEllipsoid( fineEdgels.apply( coarse ), coarse, shellWidth );
+		if ( shell.size() < 9 )
+		{
+			StageTimer.current().lap( FitStage.REFINE );
+			return coarse;
+		}
+
+		final Cost costFunction = new EdgelDistanceCost( outsideCutoffDistance, insideCutoffDistance, angleCutoffDistance );
+		final Ellipsoid best = fitToInliersIfCheaper( shell, coarse, expectedCenter, maxCenterDistance, costFunction );
+		// NB: the samples of both levels add up in the statistics
+		final Ellipsoid sampled = ransac( shell, expectedCenter, numRefineSamples, numRefineCandidates, maxCenterDistance, costFunction, best,
+				isCanceled, statistics, random, options );
+		final Ellipsoid result = sampled == null || sampled == best
+				? best
+				: fitToInliersIfCheaper( shell, sampled, expectedCenter, maxCenterDistance, costFunction );
+		if ( statistics != null )
+		{
+			statistics.setRefined( statistics.isRefined() || result != coarse );
+			statistics.setNumInliers( countInliers( shell, result, costFunction ) );
+		}
+		StageTimer.current().lap( FitStage.REFINE );
+		return result;
+	}
+
+	/**
+	 * Returns the least-squares fit to the inliers of {@code guess}, if it is
+	 * valid and has a lower cost on the {@code edgels} than {@code guess}.
+	 * Otherwise returns {@code guess}.
+	 */
+	private static Ellipsoid fitToInliersIfCheaper( final EdgelBuffer edgels, final Ellipsoid guess, final double[] expectedCenter,
+			final double maxCenterDistance, final Cost costFunction )
+	{
+		final Ellipsoid fitted;
+		try
+		{
+			fitted = fitToInliers( edgels, guess, costFunction );
+		}
+		catch ( final RuntimeException e )
+		{
+			// the inliers don't determine an ellipsoid, keep the guess
+			return guess;
+		}
+		if ( !isEllipsoidValid( fitted, expectedCenter, maxCenterDistance, new double[ 3 ] ) )
+			return guess;
+		final double guessCost = costFunction.compute( guess, edgels );
+		return costFunction.computeBounded( fitted, edgels, guessCost ) < guessCost ? fitted : guess;
+	}
+
+	/**
+	 * Returns the edgels with a distance less than {@code maxDistance} to the
+	 * surface of the given {@code ellipsoid}.
+	 */
+	static EdgelBuffer selectNearEllipsoid( final EdgelBuffer edgels, final Ellipsoid ellipsoid, final double maxDistance )
+	{
+		final EdgelBuffer selected = new EdgelBuffer();
+		final double[] p = new double[ 3 ];
+		for ( int i = 0; i < edgels.size(); ++i )
+		{
+			edgels.localize( i, p );
+			if ( DistPointHyperEllipsoid.distPointHyperEllipsoid( p, ellipsoid ).distance < maxDistance )
+				selected.add( edgels, i );
+		}
+		return selected;
+	}
+
+	/**
+	 * Draws up to {@code numSamples} random 9-point samples from the
+	 * {@code edgels} and returns the valid ellipsoid with the lowest cost,
+	 * stopping after {@code numCandidates} valid ellipsoids. If {@code initial}
+	 * is not {@code null}, candidates compete against it. With
+	 * {@link RansacOptions#isAdaptive() adaptive} options, sampling stops
+	 * earlier once the best inlier fraction seen so far shows that enough
+	 * samples were drawn. Inliers are counted while scoring, so for
+	 * candidates whose scoring stopped at the bound, the count is a lower
+	 * bound.
+	 *
+	 * @return the best ellipsoid, or {@code null} if no valid ellipsoid was
+	 *         found and {@code initial} is {@code null}.
+	 */
+	private static Ellipsoid ransac(
+			final EdgelBuffer edgels,
+			final double[] expectedCenter,
+			final int numSamples,
+			final int numCandidates,
+			final double maxCenterDistance,
+			final Cost costFunction,
+			final Ellipsoid initial,
+			final BooleanSupplier isCanceled,
+			final SamplingStatistics statistics,
+			final SplittableRandom rand,
+			final RansacOptions options )
+	{
+		if ( options.isPreemptive() )
+			return preemptiveRansac( edgels, expectedCenter, numSamples, numCandidates, maxCenterDistance, costFunction, initial,
+					isCanceled, statistics, rand, options );
+
+		final CandidateSampler sampler = new CandidateSampler( edgels, expectedCenter, maxCenterDistance, numSamples, rand, options.isProgressive() );
+		final EdgelBuffer scoringOrder = shuffle( edgels );
 
-		for ( int sample = 0; sample < numSamples; ++sample )
+		final int[] numInliers = new int[ 1 ];
+		Ellipsoid bestEllipsoid = initial;
+		double bestCost = Double.POSITIVE_INFINITY;
+		int bestInliers = 0;
+		int maxSamples = numSamples;
+		if ( initial != null )
 		{
-			sampleCoordinatesFromEdgels( edgels, coordinates, rand, indices );
+			bestCost = costFunction.computeBounded( initial, scoringOrder, Double.POSITIVE_INFINITY, numInliers );
+			bestInliers = numInliers[ 0 ];
+			if ( options.isAdaptive() )
+				maxSamples = requiredSamples( bestInliers, edgels.size(), options.getConfidence(), numSamples );
+		}
+		int candidates = 0;
+		int sample = 0;
 
-			final Ellipsoid ellipsoid = tryFitEllipsoidYuryPetrov( coordinates );
+		for ( ; sample < maxSamples; ++sample )
+		{
+			if ( isCanceled.getAsBoolean() )
+				throw new CancellationException( "Ellipsoid fitting was canceled." );
 
-			if ( isEllipsoidValid( ellipsoid, expectedCenter, maxCenterDistance, center ) )
+			final Ellipsoid ellipsoid = sampler.next();
+			if ( ellipsoid != null )
 			{
-				final double cost = costFunction.compute( ellipsoid, edgels );
+				final double cost = costFunction.computeBounded( ellipsoid, scoringOrder, bestCost, numInliers );
 				if ( cost < bestCost )
 				{
 					bestCost = cost;
 					bestEllipsoid = ellipsoid;
 				}
+				if ( numInliers[ 0 ] > bestInliers )
+				{
+					bestInliers = numInliers[ 0 ];
+					if ( options.isAdaptive() )
+						maxSamples = Math.min( maxSamples, requiredSamples( bestInliers, edgels.size(), options.getConfidence(), numSamples ) );
+				}
 
 				candidates++;
 				if ( candidates >= numCandidates )
+				{
+					++sample;
 					break;
+				}
 			}
 		}
+		if ( statistics != null )
+		{
+			statistics.addSamples( sample, candidates );
+			if ( bestEllipsoid != null )
+				statistics.setBestCost( bestCost );
+		}
+		return bestEllipsoid;
+	}
 
-		if ( bestEllipsoid == null ) // no ellipsoid found
-			throw new NoEllipsoidFoundException( "No ellipsoid found, that is near to the expected center." );
+	/**
+	 * Returns the number of 9-point samples needed to draw at least one sample
+	 * of inliers with probability {@code confidence}, if {@code numInliers}
+	 * of the {@code numEdgels} edgels are inliers, at most
+	 * {@code maxSamples}.
+	 */
+	static int requiredSamples( final int numInliers, final int numEdgels, final double confidence, final int maxSamples )
+	{
+		final double inlierFraction = ( double ) numInliers / numEdgels;
+		final double allInliers = Math.pow( inlierFraction, 9 );
+		if ( allInliers >= 1 )
+			return 1;
+		final double required = Math.ceil( Math.log( 1 - confidence ) / Math.log1p( -allInliers ) );
+		return required < maxSamples ? ( int ) required : maxSamples;
+	}
 
-		try
+	/**
+	 * Min number of edgels candidates are scored on before the worse half is
+	 * dropped in
+	 * {@link #preemptiveRansac(EdgelBuffer, double[], int, int, double, Cost, Ellipsoid, BooleanSupplier, SamplingStatistics, SplittableRandom, RansacOptions)}.
+	 */
+	private static final int MIN_PREEMPTION_BLOCK = 16;
+
+	/**
+	 * Preemptive variant of
+	 * {@link #ransac(EdgelBuffer, double[], int, int, double, Cost, Ellipsoid, BooleanSupplier, SamplingStatistics, SplittableRandom, RansacOptions)}.
+	 * Draws the candidates first, then scores them on growing blocks of the
+	 * shuffled edgels. After each block, the half of the candidates with the
+	 * higher partial cost is dropped. Block sizes double, so that the
+	 * candidates still alive in the last round are scored on all edgels, and
+	 * the cheapest of them is returned. Ties go to the earlier candidate.
+	 * {@code initial}, if not {@code null}, is the first candidate.
+	 */
+	static Ellipsoid preemptiveRansac(
+			final EdgelBuffer edgels,
+			final double[] expectedCenter,
+			final int numSamples,
+			final int numCandidates,
+			final double maxCenterDistance,
+			final Cost costFunction,
+			final Ellipsoid initial,
+			final BooleanSupplier isCanceled,
+			final SamplingStatistics statistics,
+			final SplittableRandom rand,
+			final RansacOptions options )
+	{
+		final CandidateSampler sampler = new CandidateSampler( edgels, expectedCenter, maxCenterDistance, numSamples, rand, options.isProgressive() );
+		final List< Ellipsoid > candidates = new ArrayList<>();
+		if ( initial != null )
+			candidates.add( initial );
+		int sample = 0;
+		for ( ; sample < numSamples && candidates.size() < numCandidates + ( initial == null ? 0 : 1 ); ++sample )
 		{
-			// refine ellipsoid
-			Ellipsoid refinedEllipsoid = fitToInliers( edgels, bestEllipsoid, costFunction );
-			if ( isEllipsoidValid( refinedEllipsoid, expectedCenter, maxCenterDistance, center ) )
-				return refinedEllipsoid;
-			else
-				return bestEllipsoid; // return best ellipsoid without refinement, if refined ellipsoid is not valid
+			if ( isCanceled.getAsBoolean() )
+				throw new CancellationException( "Ellipsoid fitting was canceled." );
+
+			final Ellipsoid ellipsoid = sampler.next();
+			if ( ellipsoid != null )
+				candidates.add( ellipsoid );
 		}
-		catch ( final RuntimeException e )
+		if ( statistics != null )
+			statistics.addSamples( sample, candidates.size() - ( initial == null ? 0 : 1 ) );
+		if ( candidates.isEmpty() )
+			return null;
+
+		final EdgelBuffer scoringOrder = shuffle( edgels );
+		final int n = scoringOrder.size();
+		int numAlive = candidates.size();
+		final int numRounds = 32 - Integer.numberOfLeadingZeros( numAlive - 1 );
+		final double[] costs = new double[ numAlive ];
+		final Integer[] order = new Integer[ numAlive ];
+		for ( int c = 0; c < numAlive; ++c )
+			order[ c ] = c;
+		int start = 0;
+		for ( int round = 0; round < numRounds || start < n; ++round )
 		{
-			// refinement failed
-			return bestEllipsoid;
+			if ( isCanceled.getAsBoolean() )
+				throw new CancellationException( "Ellipsoid fitting was canceled." );
+
+			// block ends at n * 2^(round+1) / 2^numRounds
+			final int end = round + 1 >= numRounds
+					? n
+					: Math.min( n, Math.max( start + MIN_PREEMPTION_BLOCK, ( int ) ( ( long ) n << ( round + 1 ) >> numRounds ) ) );
+			for ( int a = 0; a < numAlive; ++a )
+			{
+				final Ellipsoid candidate = candidates.get( order[ a ] );
+				double cost = costs[ order[ a ] ];
+				for ( int i = start; i < end; ++i )
+					cost += costFunction.compute( candidate, scoringOrder, i );
+				costs[ order[ a ] ] = cost;
+			}
+			start = end;
+
+			// keep the better half, ties go to the earlier candidate
+			Arrays.sort( order, 0, numAlive, ( c1, c2 ) -> {
+				final int c = Double.compare( costs[ c1 ], costs[ c2 ] );
+				return c != 0 ? c : Integer.compare( c1, c2 );
+			} );
+			numAlive = ( numAlive + 1 ) / 2;
 		}
+
+		final int best = order[ 0 ];
+		if ( statistics != null )
+			statistics.setBestCost( costs[ best ] );
+		return candidates.get( best );
 	}
 
-	private static void sampleCoordinatesFromEdgels( List< Edgel > edgels, double[][] coordinates, Random rand, TIntArrayList indices )
+	/**
+	 * Draws random 9-point samples from the edgels and fits ellipsoids to
+	 * them, reusing its buffers for all samples.
+	 * <p>
+	 * In progressive mode (PROSAC), samples are drawn from a pool of the
+	 * edgels with the largest gradient magnitude. The pool grows with the
+	 * number of samples drawn, so that it contains all edgels by
+	 * {@code numSamples} samples. Each sample is the weakest edgel of the pool
+	 * and 8 random edgels of the rest of the pool.
+	 */
+	static class CandidateSampler
 	{
-		indices.clear();
-		for ( int s = 0; s < coordinates.length; ++s )
+		/** Number of points per sample, <em>m</em> in the PROSAC paper. */
+		private static final int SAMPLE_SIZE = 9;
+
+		private final EdgelBuffer edgels;
+
+		private final double[] expectedCenter;
+
+		private final double maxCenterDistance;
+
+		private final SplittableRandom rand;
+
+		/**
+		 * Edgel indices by decreasing magnitude in progressive mode, otherwise
+		 * {@code null}.
+		 */
+		private final int[] order;
+
+		/** Size of the sampling pool. */
+		private int n;
+
+		/** Expected number of samples drawn from the first {@code n} edgels. */
+		private double tn;
+
+		/** Number of samples after which the pool grows. */
+		private long tnPrime;
+
+		private int t;
+
+		private final int[] indices = new int[ SAMPLE_SIZE ];
+
+		private final double[] coordinates = new double[ SAMPLE_SIZE * 3 ];
+
+		private final double[] scratch = new double[ FitEllipsoid.SCRATCH_LENGTH ];
+
+		private final double[] center = new double[ 3 ];
+
+		private final double[][] precision = new double[ 3 ][ 3 ];
+
+		CandidateSampler( final EdgelBuffer edgels, final double[] expectedCenter, final double maxCenterDistance,
+				final int numSamples, final SplittableRandom rand, final boolean progressive )
 		{
-			int i = rand.nextInt( edgels.size() );
-			while ( indices.contains( i ) )
-				i = rand.nextInt( edgels.size() );
-			indices.add( i );
-			edgels.get( i ).localize( coordinates[ s ] );
+			this.edgels = edgels;
+			this.expectedCenter = expectedCenter;
+			this.maxCenterDistance = maxCenterDistance;
+			this.rand = rand;
+			final int size = edgels.size();
+			if ( progressive )
+			{
+				order = byDecreasingMagnitude( edgels );
+				// T_m = T_N * prod_{i<m} ( m - i ) / ( N - i ), with T_N = numSamples
+				n = SAMPLE_SIZE;
+				tn = numSamples;
+				for ( int i = 0; i < SAMPLE_SIZE; ++i )
+					tn *= ( double ) ( SAMPLE_SIZE - i ) / ( size - i );
+				tnPrime = 1;
+			}
+			else
+			{
+				order = null;
+				n = size;
+			}
 		}
-	}
 
-	private static Ellipsoid tryFitEllipsoidYuryPetrov( double[][] coordinates )
-	{
-		try
+		/**
+		 * Draws one sample.
+		 *
+		 * @return the fitted ellipsoid, or {@code null} if the sample yields
+		 *         no valid ellipsoid.
+		 */
+		Ellipsoid next()
 		{
-			return FitEllipsoid.yuryPetrov( coordinates );
+			sampleIndices();
+			for ( int s = 0; s < SAMPLE_SIZE; ++s )
+			{
+				final int i = order == null ? indices[ s ] : order[ indices[ s ] ];
+				for ( int d = 0; d < 3; ++d )
+					coordinates[ 3 * s + d ] = edgels.getPosition( i, d );
+			}
+
+			// check the center before creating the ellipsoid, which most samples fail
+			if ( !FitEllipsoid.yuryPetrov( coordinates, SAMPLE_SIZE, scratch, center, precision )
+					|| !( LinAlgHelpers.distance( expectedCenter, center ) <= maxCenterDistance ) )
+				return null;
+
+			final Ellipsoid ellipsoid = new Ellipsoid( center.clone(), null, copy( precision ), null, null );
+			return ellipsoid.isLegitimate() ? ellipsoid : null;
 		}
-		catch ( final RuntimeException e )
+
+		/**
+		 * Draws {@link #SAMPLE_SIZE} distinct indices, into the edgels or, in progressive
+		 * mode, into {@link #order}.
+		 */
+		private void sampleIndices()
 		{
-			return null;
+			final int size = edgels.size();
+			int first = 0;
+			if ( order != null )
+			{
+				// grow the pool until T'_n >= t, where T'_{n+1} = T'_n + ceil( T_{n+1} - T_n )
+				++t;
+				while ( t > tnPrime && n < size )
+				{
+					final double tnNext = tn * ( n + 1 ) / ( n + 1 - SAMPLE_SIZE );
+					tnPrime += ( long ) Math.ceil( tnNext - tn );
+					tn = tnNext;
+					++n;
+				}
+				if ( n < size )
+				{
+					// the weakest edgel of the pool is in every sample
+					indices[ 0 ] = n - 1;
+					first = 1;
+				}
+			}
+			final int poolSize = first == 0 ? n : n - 1;
+			for ( int s = first; s < SAMPLE_SIZE; ++s )
+			{
+				int i = rand.nextInt( poolSize );
+				while ( contains( indices, first, s, i ) )
+					i = rand.nextInt( poolSize );
+				indices[ s ] = i;
+			}
+		}
+
+		private static boolean contains( final int[] values, final int from, final int to, final int value )
+		{
+			for ( int k = from; k < to; ++k )
+				if ( values[ k ] == value )
+					return true;
+			return false;
+		}
+
+		private static int[] byDecreasingMagnitude( final EdgelBuffer edgels )
+		{
+			final int size = edgels.size();
+			// magnitudes are non-negative, so their float bits sort like the values
+			final long[] keys = new long[ size ];
+			for ( int i = 0; i < size; ++i )
+				keys[ i ] = ( ( long ) Float.floatToIntBits( ( float ) edgels.getMagnitude( i ) ) << 32 ) | i;
+			Arrays.sort( keys );
+			final int[] order = new int[ size ];
+			for ( int i = 0; i < size; ++i )
+				order[ i ] = ( int ) keys[ size - 1 - i ];
+			return order;
 		}
 	}
 
+	/**
+	 * Seed of the permutation in {@link #shuffle(EdgelBuffer)}. It is fixed,
+	 * so that shuffling doesn't draw from the sampling generator.
+	 */
+	private static final long SCORING_ORDER_SEED = 0x5eed;
+
+	/**
+	 * Returns a copy of the {@code edgels} in pseudo-random order. Edgels are
+	 * detected in raster order, so neighboring edgels tend to have similar
+	 * costs. Scoring a shuffled copy makes every partial sum of
+	 * {@link Cost#computeBounded(Ellipsoid, EdgelBuffer, double)} a sample of the
+	 * whole surface, while still reading memory sequentially.
+	 */
+	static EdgelBuffer shuffle( final EdgelBuffer edgels )
+	{
+		final int n = edgels.size();
+		final int[] order = new int[ n ];
+		for ( int i = 0; i < n; ++i )
+			order[ i ] = i;
+		final SplittableRandom random = new SplittableRandom( SCORING_ORDER_SEED );
+		for ( int i = n - 1; i > 0; --i )
+		{
+			final int j = random.nextInt( i + 1 );
+			final int tmp = order[ i ];
+			order[ i ] = order[ j ];
+			order[ j ] = tmp;
+		}
+		final EdgelBuffer shuffled = new EdgelBuffer( n );
+		for ( int i = 0; i < n; ++i )
+			shuffled.add( edgels, order[ i ] );
+		return shuffled;
+	}
+
+	private static int countInliers( final EdgelBuffer edgels, final Ellipsoid ellipsoid, final Cost costFunction )
+	{
+		int count = 0;
+		for ( int i = 0; i < edgels.size(); ++i )
+			if ( costFunction.isInlier( ellipsoid, edgels, i ) )
+				count++;
+		return count;
+	}
+
 	private static boolean isEllipsoidValid( Ellipsoid ellipsoid, double[] expectedCenter, double maxCenterDistance, double[] center )
 	{
 		if ( ellipsoid == null )
@@ -173,6 +861,14 @@ public class SampleEllipsoidEdgel
 		return LinAlgHelpers.distance( expectedCenter, center ) <= maxCenterDistance;
 	}
 
+	private static double[][] copy( final double[][] m )
+	{
+		final double[][] copy = new double[ m.length ][];
+		for ( int i = 0; i < m.length; ++i )
+			copy[ i ] = m[ i ].clone();
+		return copy;
+	}
+
 	/**
 	 * Fits an ellipsoid to all the edgels that are considered to be inliers of
 	 * the given "{@code guess}" ellipsoid.
@@ -202,6 +898,29 @@ public class SampleEllipsoidEdgel
 		return FitEllipsoid.yuryPetrov( coordinates );
 	}
 
+	/**
+	 * Same as {@link #fitToInliers(List, Ellipsoid, Cost)}, on edgels stored
+	 * in an {@link EdgelBuffer}.
+	 *
+	 * @throws RuntimeException if the fitting fails.
+	 */
+	public static Ellipsoid fitToInliers(
+			final EdgelBuffer edgels,
+			final Ellipsoid guess,
+			final Cost costFunction )
+	{
+		final EllipsoidNormalEquations equations = new EllipsoidNormalEquations();
+		for ( int i = 0; i < edgels.size(); ++i )
+			if ( costFunction.isInlier( guess, edgels, i ) )
+				equations.add( edgels.getPosition( i, 0 ), edgels.getPosition( i, 1 ), edgels.getPosition( i, 2 ) );
+
+		final double[] center = new double[ 3 ];
+		final double[][] precision = new double[ 3 ][ 3 ];
+		if ( !equations.solve( center, precision ) )
+			throw new RuntimeException( "The inliers don't form a unique ellipsoid." );
+		return new Ellipsoid( center, null, precision, null, null );
+	}
+
 	interface Cost
 	{
 		double compute( final Ellipsoid ellipsoid, final List< Edgel > points );
@@ -209,6 +928,26 @@ public class SampleEllipsoidEdgel
 		double compute( final Ellipsoid ellipsoid, final Edgel point );
 
 		boolean isInlier( final Ellipsoid ellipsoid, final Edgel point );
+
+		double compute( final Ellipsoid ellipsoid, final EdgelBuffer points );
+
+		/**
+		 * Same as {@link #compute(Ellipsoid, EdgelBuffer)}, but stops as soon
+		 * as the sum exceeds {@code bound}, and returns the partial sum. A
+		 * result {@code < bound} is the full cost.
+		 */
+		double computeBounded( final Ellipsoid ellipsoid, final EdgelBuffer points, final double bound );
+
+		/**
+		 * Same as {@link #computeBounded(Ellipsoid, EdgelBuffer, double)}, and
+		 * stores the number of inliers among the edgels that were scored in
+		 * {@code numInliers[0]}.
+		 */
+		double computeBounded( final Ellipsoid ellipsoid, final EdgelBuffer points, final double bound, final int[] numInliers );
+
+		double compute( final Ellipsoid ellipsoid, final EdgelBuffer points, final int i );
+
+		boolean isInlier( final Ellipsoid ellipsoid, final EdgelBuffer points, final int i );
 	}
 
 	static class EdgelDistanceCost implements Cost
@@ -223,6 +962,14 @@ public class SampleEllipsoidEdgel
 
 		private final double[] n = new double[ 3 ];
 
+		private final double[] g = new double[ 3 ];
+
+		/**
+		 * Whether the edgel last scored by
+		 * {@link #compute(Ellipsoid, EdgelBuffer, int)} is an inlier.
+		 */
+		private boolean lastInlier;
+
 		public EdgelDistanceCost(
 				final double outsideCutoffDistance,
 				final double insideCutoffDistance,
@@ -250,7 +997,7 @@ public class SampleEllipsoidEdgel
 
 			edgel.localize( p );
 			HyperEllipsoid.normal( ellipsoid, p, n );
-			final double dAngle = Math.acos( -LinAlgHelpers.dot( n, edgel.getGradient() ) );
+			final double dAngle = angle( n, edgel.getGradient() );
 
 			if ( ellipsoid.contains( edgel ) )
 				return Math.min( dAngle, angleCutoff ) / angleCutoff + Math.min( dDist, insideCutoff ) / insideCutoff;
@@ -266,12 +1013,86 @@ public class SampleEllipsoidEdgel
 
 			edgel.localize( p );
 			HyperEllipsoid.normal( ellipsoid, p, n );
-			final double dAngle = Math.acos( -LinAlgHelpers.dot( n, edgel.getGradient() ) );
+			final double dAngle = angle( n, edgel.getGradient() );
 
 			if ( ellipsoid.contains( edgel ) )
 				return dAngle < angleCutoff && dDist < insideCutoff;
 			else
 				return dAngle < angleCutoff && dDist < outsideCutoff;
 		}
+
+		@Override
+		public double compute( final Ellipsoid ellipsoid, final EdgelBuffer edgels )
+		{
+			double cost = 0;
+			for ( int i = 0; i < edgels.size(); ++i )
+				cost += compute( ellipsoid, edgels, i );
+			return cost;
+		}
+
+		@Override
+		public double computeBounded( final Ellipsoid ellipsoid, final EdgelBuffer edgels, final double bound )
+		{
+			double cost = 0;
+			for ( int i = 0; i < edgels.size() && !( cost > bound ); ++i )
+				cost += compute( ellipsoid, edgels, i );
+			return cost;
+		}
+
+		@Override
+		public double computeBounded( final Ellipsoid ellipsoid, final EdgelBuffer edgels, final double bound, final int[] numInliers )
+		{
+			double cost = 0;
+			int inliers = 0;
+			for ( int i = 0; i < edgels.size() && !( cost > bound ); ++i )
+			{
+				cost += compute( ellipsoid, edgels, i );
+				if ( lastInlier )
+					++inliers;
+			}
+			numInliers[ 0 ] = inliers;
+			return cost;
+		}
+
+		@Override
+		public double compute( final Ellipsoid ellipsoid, final EdgelBuffer edgels, final int i )
+		{
+			edgels.localize( i, p );
+			edgels.getNormal( i, g );
+			final double dDist = DistPointHyperEllipsoid.distPointHyperEllipsoid( p, ellipsoid ).distance;
+
+			HyperEllipsoid.normal( ellipsoid, p, n );
+			final double dAngle = angle( n, g );
+
+			final double cutoff = ellipsoid.contains( p ) ? insideCutoff : outsideCutoff;
+			lastInlier = dAngle < angleCutoff && dDist < cutoff;
+			return Math.min( dAngle, angleCutoff ) / angleCutoff + Math.min( dDist, cutoff ) / cutoff;
+		}
+
+		@Override
+		public boolean isInlier( final Ellipsoid ellipsoid, final EdgelBuffer edgels, final int i )
+		{
+			edgels.localize( i, p );
+			edgels.getNormal( i, g );
+			final double dDist = DistPointHyperEllipsoid.distPointHyperEllipsoid( p, ellipsoid ).distance;
+
+			HyperEllipsoid.normal( ellipsoid, p, n );
+			final double dAngle = angle( n, g );
+
+			if ( ellipsoid.contains( p ) )
+				return dAngle < angleCutoff && dDist < insideCutoff;
+			else
+				return dAngle < angleCutoff && dDist < outsideCutoff;
+		}
+
+		/**
+		 * Returns the angle between the surface {@code normal} and the
+		 * inverted {@code gradient}. The dot product of unit vectors can
+		 * exceed 1 by rounding, which would make the angle NaN.
+		 */
+		private static double angle( final double[] normal, final double[] gradient )
+		{
+			return Math.acos( Math.max( -1, Math.min( 1, -LinAlgHelpers.dot( normal, gradient ) ) ) );
+		}
 	}
 }
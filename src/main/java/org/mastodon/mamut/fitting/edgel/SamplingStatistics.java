@@ -0,0 +1,126 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.edgel;
+
+/**
+ * Statistics of fitting an ellipsoid to the edgels of one spot, filled in by
+ * {@link SampleEllipsoidEdgel}.
+ */
+public class SamplingStatistics
+{
+	private int numEdgels;
+
+	private int numSamples;
+
+	private int numCandidates;
+
+	private double bestCost = Double.NaN;
+
+	private int numInliers;
+
+	private boolean refined;
+
+	/**
+	 * @return the number of edgels the ellipsoid was sampled from.
+	 */
+	public int getNumEdgels()
+	{
+		return numEdgels;
+	}
+
+	/**
+	 * @return the number of random samples drawn, on all resolution levels.
+	 */
+	public int getNumSamples()
+	{
+		return numSamples;
+	}
+
+	/**
+	 * @return the number of valid candidate ellipsoids whose cost was
+	 *         evaluated, on all resolution levels.
+	 */
+	public int getNumCandidates()
+	{
+		return numCandidates;
+	}
+
+	/**
+	 * @return the cost of the best candidate of the last sampling pass, or
+	 *         {@code NaN} if there was none.
+	 */
+	public double getBestCost()
+	{
+		return bestCost;
+	}
+
+	/**
+	 * @return the number of edgels that are inliers of the resulting
+	 *         ellipsoid.
+	 */
+	public int getNumInliers()
+	{
+		return numInliers;
+	}
+
+	/**
+	 * @return true if the resulting ellipsoid was refined, false if it is the
+	 *         best RANSAC candidate.
+	 */
+	public boolean isRefined()
+	{
+		return refined;
+	}
+
+	void setNumEdgels( final int numEdgels )
+	{
+		this.numEdgels = numEdgels;
+	}
+
+	void addSamples( final int numSamples, final int numCandidates )
+	{
+		this.numSamples += numSamples;
+		this.numCandidates += numCandidates;
+	}
+
+	void setBestCost( final double bestCost )
+	{
+		this.bestCost = bestCost;
+	}
+
+	void setNumInliers( final int numInliers )
+	{
+		this.numInliers = numInliers;
+	}
+
+	void setRefined( final boolean refined )
+	{
+		this.refined = refined;
+	}
+}
@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.ellipsoid;
+
+import java.util.Arrays;
+
+/**
+ * Normal equations of the least-squares ellipsoid fit of
+ * {@link FitEllipsoid#yuryPetrov(double[][])}, accumulated point by point.
+ * Points are added and removed in constant time, so a fit can follow a
+ * changing set of points without summing over all of them again. The
+ * equations of disjoint sets of points, for example accumulated by
+ * different threads, can be merged with {@link #add(EllipsoidNormalEquations)}.
+ * <p>
+ * Not thread-safe.
+ */
+public class EllipsoidNormalEquations
+{
+	private final double[] sums = new double[ FitEllipsoid.SCRATCH_LENGTH ];
+
+	private final double[] scratch = new double[ FitEllipsoid.SCRATCH_LENGTH ];
+
+	private int numPoints = 0;
+
+	public int getNumPoints()
+	{
+		return numPoints;
+	}
+
+	public void add( final double x, final double y, final double z )
+	{
+		FitEllipsoid.accumulate( sums, x, y, z, 1 );
+		++numPoints;
+	}
+
+	/**
+	 * Removes a point that was added before. The sums are then equal to those
+	 * without the point, up to rounding errors.
+	 */
+	public void remove( final double x, final double y, final double z )
+	{
+		FitEllipsoid.accumulate( sums, x, y, z, -1 );
+		--numPoints;
+	}
+
+	/**
+	 * Adds the points of {@code other}.
+	 */
+	public void add( final EllipsoidNormalEquations other )
+	{
+		for ( int k = 0; k < FitEllipsoid.NUM_SUMS; ++k )
+			sums[ k ] += other.sums[ k ];
+		numPoints += other.numPoints;
+	}
+
+	public void clear()
+	{
+		Arrays.fill( sums, 0, FitEllipsoid.NUM_SUMS, 0 );
+		numPoints = 0;
+	}
+
+	/**
+	 * Fits an ellipsoid to the points, without allocating.
+	 *
+	 * @param center
+	 *            receives the center of the ellipsoid.
+	 * @param precision
+	 *            receives the 3x3 precision matrix of the ellipsoid.
+	 * @return {@code false} if there are less than 9 points or they don't
+	 *         form a unique ellipsoid, in which case {@code center} and
+	 *         {@code precision} are undefined.
+	 */
+	public boolean solve( final double[] center, final double[][] precision )
+	{
+		if ( numPoints < 9 )
+			return false;
+		System.arraycopy( sums, 0, scratch, 0, FitEllipsoid.NUM_SUMS );
+		return FitEllipsoid.solve( scratch, center, precision );
+	}
+}
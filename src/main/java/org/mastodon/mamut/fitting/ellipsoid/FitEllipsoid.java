@@ -28,6 +28,8 @@
  */
 package org.mastodon.mamut.fitting.ellipsoid;
 
+import java.util.Arrays;
+
 import Jama.CholeskyDecomposition;
 import Jama.Matrix;
 import net.imglib2.util.LinAlgHelpers;
@@ -92,6 +94,173 @@ public class FitEllipsoid
 		return ellipsoidFromEquation( V );
 	}
 
+	/**
+	 * Number of sums of the normal equations, at the start of the scratch
+	 * buffer: the lower triangle of <em>D^T * D</em>, packed by rows, followed
+	 * by <em>D^T * 1</em>. The remaining 9 elements hold a row of the design
+	 * matrix <em>D</em>.
+	 */
+	static final int NUM_SUMS = 45 + 9;
+
+	/**
+	 * Length of the scratch buffer of
+	 * {@link #yuryPetrov(double[], int, double[], double[], double[][])}.
+	 */
+	public static final int SCRATCH_LENGTH = NUM_SUMS + 9;
+
+	/**
+	 * Same fit as {@link #yuryPetrov(double[][])}, without allocating. The 45
+	 * unique entries of the normal equations are accumulated directly from the
+	 * points and solved with a Cholesky decomposition in {@code scratch}. The
+	 * center is solved in closed form.
+	 *
+	 * @param points
+	 *            coordinates of the points, {@code x, y, z} of each point in
+	 *            turn.
+	 * @param nPoints
+	 *            number of points to fit.
+	 * @param scratch
+	 *            scratch buffer of at least {@link #SCRATCH_LENGTH} elements.
+	 * @param center
+	 *            receives the center of the ellipsoid.
+	 * @param precision
+	 *            receives the 3x3 precision matrix of the ellipsoid.
+	 * @return {@code false} if the points don't form a unique ellipsoid, in
+	 *         which case {@code center} and {@code precision} are undefined.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if there are less than 9 points.
+	 */
+	public static boolean yuryPetrov( final double[] points, final int nPoints, final double[] scratch, final double[] center, final double[][] precision )
+	{
+		if ( nPoints < 9 )
+			throw new IllegalArgumentException( "Too few points; need at least 9 to calculate a unique ellipsoid" );
+
+		Arrays.fill( scratch, 0, NUM_SUMS, 0 );
+		for ( int p = 0; p < nPoints; ++p )
+			accumulate( scratch, points[ 3 * p ], points[ 3 * p + 1 ], points[ 3 * p + 2 ], 1 );
+		return solve( scratch, center, precision );
+	}
+
+	/**
+	 * Adds {@code weight} times the normal equations of point {@code (x,y,z)}
+	 * to the sums in {@code system}, see {@link #NUM_SUMS}.
+	 */
+	static void accumulate( final double[] system, final double x, final double y, final double z, final double weight )
+	{
+		final int row = NUM_SUMS;
+		system[ row ] = x * x;
+		system[ row + 1 ] = y * y;
+		system[ row + 2 ] = z * z;
+		system[ row + 3 ] = 2 * x * y;
+		system[ row + 4 ] = 2 * x * z;
+		system[ row + 5 ] = 2 * y * z;
+		system[ row + 6 ] = 2 * x;
+		system[ row + 7 ] = 2 * y;
+		system[ row + 8 ] = 2 * z;
+		for ( int i = 0, k = 0; i < 9; ++i )
+		{
+			final double di = weight * system[ row + i ];
+			for ( int j = 0; j <= i; ++j )
+				system[ k++ ] += di * system[ row + j ];
+			system[ 45 + i ] += di;
+		}
+	}
+
+	/**
+	 * Solves the normal equations in {@code system} in place, see
+	 * {@link #NUM_SUMS}.
+	 *
+	 * @return {@code false} if there is no unique solution.
+	 */
+	static boolean solve( final double[] system, final double[] center, final double[][] precision )
+	{
+		final int b = 45;
+
+		// in-place Cholesky decomposition D^T * D = L * L^T
+		for ( int i = 0, ii = 0; i < 9; ii += ++i )
+		{
+			for ( int j = 0, jj = 0; j <= i; jj += ++j )
+			{
+				double s = system[ ii + j ];
+				for ( int k = 0; k < j; ++k )
+					s -= system[ ii + k ] * system[ jj + k ];
+				if ( j < i )
+					system[ ii + j ] = s / system[ jj + j ];
+				else if ( s > 0 )
+					system[ ii + i ] = Math.sqrt( s );
+				else
+					return false;
+			}
+		}
+
+		// solve L * y = b, then L^T * v = y, in place of b
+		for ( int i = 0, ii = 0; i < 9; ii += ++i )
+		{
+			double s = system[ b + i ];
+			for ( int k = 0; k < i; ++k )
+				s -= system[ ii + k ] * system[ b + k ];
+			system[ b + i ] = s / system[ ii + i ];
+		}
+		for ( int i = 8; i >= 0; --i )
+		{
+			double s = system[ b + i ];
+			for ( int k = i + 1; k < 9; ++k )
+				s -= system[ k * ( k + 1 ) / 2 + i ] * system[ b + k ];
+			system[ b + i ] = s / system[ i * ( i + 1 ) / 2 + i ];
+		}
+
+		return ellipsoidFromEquation( system, b, center, precision );
+	}
+
+	/**
+	 * Same as {@link #ellipsoidFromEquation(Matrix)}, solving for the center
+	 * with the inverse of the 3x3 matrix in closed form.
+	 *
+	 * @param v
+	 *            contains (a,b,c,d,e,f,g,h,i) starting at {@code offset}.
+	 * @return {@code false} if the 3x3 matrix is singular.
+	 */
+	private static boolean ellipsoidFromEquation( final double[] v, final int offset, final double[] center, final double[][] precision )
+	{
+		final double a = v[ offset ];
+		final double b = v[ offset + 1 ];
+		final double c = v[ offset + 2 ];
+		final double d = v[ offset + 3 ];
+		final double e = v[ offset + 4 ];
+		final double f = v[ offset + 5 ];
+		final double g = v[ offset + 6 ];
+		final double h = v[ offset + 7 ];
+		final double i = v[ offset + 8 ];
+
+		// cofactors of the symmetric matrix { { a, d, e }, { d, b, f }, { e, f, c } }
+		final double c00 = b * c - f * f;
+		final double c01 = e * f - d * c;
+		final double c02 = d * f - b * e;
+		final double c11 = a * c - e * e;
+		final double c12 = d * e - a * f;
+		final double c22 = a * b - d * d;
+		final double det = a * c00 + d * c01 + e * c02;
+		if ( det == 0 )
+			return false;
+
+		center[ 0 ] = -( c00 * g + c01 * h + c02 * i ) / det;
+		center[ 1 ] = -( c01 * g + c11 * h + c12 * i ) / det;
+		center[ 2 ] = -( c02 * g + c12 * h + c22 * i ) / det;
+
+		// with A * center = -(g,h,i), center^T * A * center + 2 * (g,h,i)^T * center - 1
+		// simplifies to (g,h,i)^T * center - 1
+		final double r33 = g * center[ 0 ] + h * center[ 1 ] + i * center[ 2 ] - 1;
+		final double s = -1 / r33;
+		precision[ 0 ][ 0 ] = s * a;
+		precision[ 1 ][ 1 ] = s * b;
+		precision[ 2 ][ 2 ] = s * c;
+		precision[ 0 ][ 1 ] = precision[ 1 ][ 0 ] = s * d;
+		precision[ 0 ][ 2 ] = precision[ 2 ][ 0 ] = s * e;
+		precision[ 1 ][ 2 ] = precision[ 2 ][ 1 ] = s * f;
+		return true;
+	}
+
 	/**
 	 * Calculate the matrix representation of the ellipsoid from the equation variables
 	 * <i>ax</i><sup>2</sup> + <i>by</i><sup>2</sup> + <i>cz</i><sup>2</sup> +
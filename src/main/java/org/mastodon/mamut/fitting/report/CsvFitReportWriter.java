@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.report;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+import org.mastodon.mamut.fitting.edgel.SamplingStatistics;
+import org.mastodon.mamut.fitting.timing.FitStage;
+
+/**
+ * Writes the fit report as CSV with a header line. Stage times are given in
+ * milliseconds.
+ */
+public class CsvFitReportWriter implements FitReportWriter
+{
+	private final Writer writer;
+
+	public CsvFitReportWriter( final File file ) throws IOException
+	{
+		this( Files.newBufferedWriter( file.toPath(), StandardCharsets.UTF_8 ) );
+	}
+
+	CsvFitReportWriter( final Writer writer ) throws IOException
+	{
+		this.writer = writer instanceof BufferedWriter ? writer : new BufferedWriter( writer );
+		final StringBuilder header = new StringBuilder( "spot_id,label,timepoint,level,outcome,edgels_detected,edgels_filtered,"
+				+ "samples,candidates,best_cost,inliers,refined" );
+		for ( final FitStage stage : FitStage.values() )
+			header.append( ',' ).append( stage.name().toLowerCase() ).append( "_ms" );
+		header.append( ",total_ms,reason\n" );
+		this.writer.write( header.toString() );
+	}
+
+	@Override
+	public synchronized void write( final SpotFitRecord record )
+	{
+		final SamplingStatistics sampling = record.getSampling();
+		final StringBuilder row = new StringBuilder();
+		row.append( record.getSpotId() ).append( ',' )
+				.append( quote( record.getLabel() ) ).append( ',' )
+				.append( record.getTimepoint() ).append( ',' )
+				.append( record.getLevel() ).append( ',' )
+				.append( record.getOutcome() ).append( ',' )
+				.append( record.getNumDetectedEdgels() ).append( ',' )
+				.append( record.getNumFilteredEdgels() ).append( ',' )
+				.append( sampling.getNumSamples() ).append( ',' )
+				.append( sampling.getNumCandidates() ).append( ',' )
+				.append( Double.isNaN( sampling.getBestCost() ) ? "" : String.format( Locale.ROOT, "%.4f", sampling.getBestCost() ) ).append( ',' )
+				.append( sampling.getNumInliers() ).append( ',' )
+				.append( sampling.isRefined() );
+		for ( final FitStage stage : FitStage.values() )
+			row.append( ',' ).append( millis( record.getStageNanos( stage ) ) );
+		row.append( ',' ).append( millis( record.getTotalNanos() ) )
+				.append( ',' ).append( quote( record.getReason() ) )
+				.append( '\n' );
+		try
+		{
+			writer.write( row.toString() );
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		writer.close();
+	}
+
+	private static String millis( final long nanos )
+	{
+		return String.format( Locale.ROOT, "%.3f", nanos / 1e6 );
+	}
+
+	private static String quote( final String value )
+	{
+		if ( value == null )
+			return "";
+		return '"' + value.replace( "\"", "\"\"" ) + '"';
+	}
+}
@@ -0,0 +1,150 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.report;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+import org.mastodon.mamut.fitting.edgel.SamplingStatistics;
+import org.mastodon.mamut.fitting.timing.FitStage;
+
+/**
+ * Writes the fit report as a JSON array with one object per spot. Stage times
+ * are given in milliseconds.
+ */
+public class JsonFitReportWriter implements FitReportWriter
+{
+	private final Writer writer;
+
+	private boolean first = true;
+
+	public JsonFitReportWriter( final File file ) throws IOException
+	{
+		this( Files.newBufferedWriter( file.toPath(), StandardCharsets.UTF_8 ) );
+	}
+
+	JsonFitReportWriter( final Writer writer ) throws IOException
+	{
+		this.writer = writer instanceof BufferedWriter ? writer : new BufferedWriter( writer );
+		this.writer.write( "[" );
+	}
+
+	@Override
+	public synchronized void write( final SpotFitRecord record )
+	{
+		final SamplingStatistics sampling = record.getSampling();
+		final StringBuilder row = new StringBuilder( first ? "\n" : ",\n" );
+		row.append( "{\"spotId\":" ).append( record.getSpotId() )
+				.append( ",\"label\":" ).append( string( record.getLabel() ) )
+				.append( ",\"timepoint\":" ).append( record.getTimepoint() )
+				.append( ",\"level\":" ).append( record.getLevel() )
+				.append( ",\"outcome\":\"" ).append( record.getOutcome() ).append( '"' )
+				.append( ",\"edgelsDetected\":" ).append( record.getNumDetectedEdgels() )
+				.append( ",\"edgelsFiltered\":" ).append( record.getNumFilteredEdgels() )
+				.append( ",\"samples\":" ).append( sampling.getNumSamples() )
+				.append( ",\"candidates\":" ).append( sampling.getNumCandidates() )
+				.append( ",\"bestCost\":" ).append( Double.isNaN( sampling.getBestCost() ) ? "null" : String.format( Locale.ROOT, "%.4f", sampling.getBestCost() ) )
+				.append( ",\"inliers\":" ).append( sampling.getNumInliers() )
+				.append( ",\"refined\":" ).append( sampling.isRefined() )
+				.append( ",\"timesMs\":{" );
+		for ( final FitStage stage : FitStage.values() )
+			row.append( '"' ).append( stage.name().toLowerCase() ).append( "\":" ).append( millis( record.getStageNanos( stage ) ) ).append( ',' );
+		row.append( "\"total\":" ).append( millis( record.getTotalNanos() ) ).append( '}' )
+				.append( ",\"reason\":" ).append( string( record.getReason() ) )
+				.append( '}' );
+		try
+		{
+			writer.write( row.toString() );
+			first = false;
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			writer.write( "\n]\n" );
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	private static String millis( final long nanos )
+	{
+		return String.format( Locale.ROOT, "%.3f", nanos / 1e6 );
+	}
+
+	private static String string( final String value )
+	{
+		if ( value == null )
+			return "null";
+		final StringBuilder sb = new StringBuilder( "\"" );
+		for ( int i = 0; i < value.length(); i++ )
+		{
+			final char c = value.charAt( i );
+			switch ( c )
+			{
+			case '"':
+				sb.append( "\\\"" );
+				break;
+			case '\\':
+				sb.append( "\\\\" );
+				break;
+			case '\n':
+				sb.append( "\\n" );
+				break;
+			case '\r':
+				sb.append( "\\r" );
+				break;
+			case '\t':
+				sb.append( "\\t" );
+				break;
+			default:
+				if ( c < 0x20 )
+					sb.append( String.format( "\\u%04x", ( int ) c ) );
+				else
+					sb.append( c );
+			}
+		}
+		return sb.append( '"' ).toString();
+	}
+}
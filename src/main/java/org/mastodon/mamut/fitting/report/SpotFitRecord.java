@@ -0,0 +1,180 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.report;
+
+import org.mastodon.mamut.fitting.edgel.SamplingStatistics;
+import org.mastodon.mamut.fitting.timing.FitStage;
+import org.mastodon.mamut.fitting.timing.StageTimer;
+
+/**
+ * Outcome of fitting one spot, written as one row of a fit report.
+ */
+public class SpotFitRecord
+{
+	public enum Outcome
+	{
+		/** An ellipsoid was fitted. */
+		FITTED,
+		/** The ellipsoid was taken from the result cache. */
+		CACHED,
+		/** No ellipsoid was found. */
+		NOT_FOUND,
+		/** The run was canceled while fitting the spot. */
+		CANCELED,
+		/** Fitting failed with an unexpected exception. */
+		ERROR
+	}
+
+	private static final FitStage[] STAGES = FitStage.values();
+
+	private final int spotId;
+
+	private final String label;
+
+	private final int timepoint;
+
+	private int level;
+
+	private int numDetectedEdgels;
+
+	private int numFilteredEdgels;
+
+	private final SamplingStatistics sampling = new SamplingStatistics();
+
+	private Outcome outcome;
+
+	private String reason;
+
+	private final long[] stageNanos = new long[ STAGES.length ];
+
+	private long totalNanos;
+
+	public SpotFitRecord( final int spotId, final String label, final int timepoint )
+	{
+		this.spotId = spotId;
+		this.label = label;
+		this.timepoint = timepoint;
+	}
+
+	/**
+	 * Sets the resolution level the edgels were detected on.
+	 */
+	public void setLevel( final int level )
+	{
+		this.level = level;
+	}
+
+	/**
+	 * Adds the number of edgels before and after filtering. With coarse-to-fine
+	 * fitting, the counts are summed over both levels.
+	 */
+	public void addEdgels( final int detected, final int filtered )
+	{
+		numDetectedEdgels += detected;
+		numFilteredEdgels += filtered;
+	}
+
+	public void setOutcome( final Outcome outcome, final String reason )
+	{
+		this.outcome = outcome;
+		this.reason = reason;
+	}
+
+	/**
+	 * Copies the stage times of the spot that was last timed by the given
+	 * {@code timer}.
+	 */
+	public void setTimes( final StageTimer timer )
+	{
+		for ( final FitStage stage : STAGES )
+			stageNanos[ stage.ordinal() ] = timer.getSpotNanos( stage );
+		totalNanos = timer.getSpotTotalNanos();
+	}
+
+	public int getSpotId()
+	{
+		return spotId;
+	}
+
+	public String getLabel()
+	{
+		return label;
+	}
+
+	public int getTimepoint()
+	{
+		return timepoint;
+	}
+
+	public int getLevel()
+	{
+		return level;
+	}
+
+	public int getNumDetectedEdgels()
+	{
+		return numDetectedEdgels;
+	}
+
+	public int getNumFilteredEdgels()
+	{
+		return numFilteredEdgels;
+	}
+
+	/**
+	 * Returns the statistics of sampling, to be filled in while fitting.
+	 */
+	public SamplingStatistics getSampling()
+	{
+		return sampling;
+	}
+
+	public Outcome getOutcome()
+	{
+		return outcome;
+	}
+
+	/**
+	 * @return why no ellipsoid was found, or {@code null}.
+	 */
+	public String getReason()
+	{
+		return reason;
+	}
+
+	public long getStageNanos( final FitStage stage )
+	{
+		return stageNanos[ stage.ordinal() ];
+	}
+
+	public long getTotalNanos()
+	{
+		return totalNanos;
+	}
+}
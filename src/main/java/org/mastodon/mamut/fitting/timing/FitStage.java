@@ -0,0 +1,57 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.timing;
+
+/**
+ * The stages of fitting an ellipsoid to a spot, in the order they run.
+ */
+public enum FitStage
+{
+	/** Computing the bounding box of the spot and cropping the image. */
+	CROP,
+	/** Loading the cropped voxels and converting them to float. */
+	CONVERT,
+	/**
+	 * Gaussian smoothing. With a block cache, this includes loading and
+	 * converting the blocks.
+	 */
+	BLUR,
+	/** Sub-pixel edgel detection. */
+	EDGELS,
+	/** Filtering edgels by their direction towards the center. */
+	FILTER_DIRECTION,
+	/** Filtering edgels occluded by other edgels. */
+	FILTER_OCCLUSION,
+	/** Limiting the number of edgels to the budget. */
+	BUDGET,
+	/** RANSAC sampling of ellipsoid candidates. */
+	RANSAC,
+	/** Refinement of the best candidate. */
+	REFINE
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.timing;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Summary of the time spent per {@link FitStage} in a fitting run, with
+ * percentiles over the spots.
+ */
+public class FitTimings
+{
+	private final long wallNanos;
+
+	private final Map< FitStage, StageHistogram > stages = new EnumMap<>( FitStage.class );
+
+	private final StageHistogram totals = new StageHistogram();
+
+	FitTimings( final long wallNanos )
+	{
+		this.wallNanos = wallNanos;
+		for ( final FitStage stage : FitStage.values() )
+			stages.put( stage, new StageHistogram() );
+	}
+
+	void add( final StageTimer timer )
+	{
+		for ( final FitStage stage : FitStage.values() )
+			stages.get( stage ).add( timer.histogram( stage ) );
+		totals.add( timer.totals() );
+	}
+
+	/**
+	 * Returns the durations of the given {@code stage}, one value per spot
+	 * that reached it.
+	 */
+	public StageHistogram getStage( final FitStage stage )
+	{
+		return stages.get( stage );
+	}
+
+	/**
+	 * Returns the total fitting durations, one value per spot.
+	 */
+	public StageHistogram getTotals()
+	{
+		return totals;
+	}
+
+	/**
+	 * Returns the wall clock duration of the run.
+	 */
+	public long getWallNanos()
+	{
+		return wallNanos;
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append( String.format( "%-16s %8s %10s %9s %9s %9s %9s%n", "stage", "spots", "total ms", "p50 ms", "p90 ms", "p99 ms", "max ms" ) );
+		for ( final FitStage stage : FitStage.values() )
+			append( sb, stage.name().toLowerCase(), stages.get( stage ) );
+		append( sb, "per spot", totals );
+		sb.append( String.format( "wall time: %.1f ms", wallNanos / 1e6 ) );
+		return sb.toString();
+	}
+
+	private static void append( final StringBuilder sb, final String name, final StageHistogram histogram )
+	{
+		sb.append( String.format( "%-16s %8d %10.1f %9.3f %9.3f %9.3f %9.3f%n",
+				name,
+				histogram.getCount(),
+				histogram.getTotalNanos() / 1e6,
+				histogram.percentileNanos( 0.5 ) / 1e6,
+				histogram.percentileNanos( 0.9 ) / 1e6,
+				histogram.percentileNanos( 0.99 ) / 1e6,
+				histogram.getMaxNanos() / 1e6 ) );
+	}
+}
@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.timing;
+
+/**
+ * Histogram of durations in nanoseconds with logarithmic buckets.
+ * <p>
+ * Each power of two is divided into 8 linear buckets, so percentiles are
+ * accurate to within 12.5%. Recording is allocation-free. Histograms are not
+ * thread-safe, but can be merged.
+ */
+public class StageHistogram
+{
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+	private static final int NUM_BUCKETS = LINEAR_LIMIT + ( 63 - SUB_BUCKET_BITS - 1 ) * SUB_BUCKETS;
+
+	private final long[] counts = new long[ NUM_BUCKETS ];
+
+	private long count = 0;
+
+	private long total = 0;
+
+	private long max = 0;
+
+	public void record( final long nanos )
+	{
+		final long value = Math.max( 0, nanos );
+		counts[ bucket( value ) ]++;
+		count++;
+		total += value;
+		max = Math.max( max, value );
+	}
+
+	/**
+	 * Adds the recorded values of {@code other} to this histogram.
+	 */
+	public void add( final StageHistogram other )
+	{
+		for ( int i = 0; i < NUM_BUCKETS; i++ )
+			counts[ i ] += other.counts[ i ];
+		count += other.count;
+		total += other.total;
+		max = Math.max( max, other.max );
+	}
+
+	public long getCount()
+	{
+		return count;
+	}
+
+	public long getTotalNanos()
+	{
+		return total;
+	}
+
+	public long getMaxNanos()
+	{
+		return max;
+	}
+
+	public double getMeanNanos()
+	{
+		return count == 0 ? 0 : ( double ) total / count;
+	}
+
+	/**
+	 * Returns the duration below which the given fraction of the recorded
+	 * values lies, e.g. {@code percentile( 0.9 )} for the 90th percentile.
+	 * Returns 0 if no value was recorded.
+	 */
+	public long percentileNanos( final double fraction )
+	{
+		if ( count == 0 )
+			return 0;
+		final long rank = Math.max( 1, ( long ) Math.ceil( fraction * count ) );
+		long cumulative = 0;
+		for ( int i = 0; i < NUM_BUCKETS; i++ )
+		{
+			cumulative += counts[ i ];
+			if ( cumulative >= rank )
+				return Math.min( upperBound( i ), max );
+		}
+		return max;
+	}
+
+	static int bucket( final long value )
+	{
+		if ( value < LINEAR_LIMIT )
+			return ( int ) value;
+		final int exponent = 63 - Long.numberOfLeadingZeros( value );
+		final int shift = exponent - SUB_BUCKET_BITS;
+		final int sub = ( int ) ( value >>> shift ) & ( SUB_BUCKETS - 1 );
+		return LINEAR_LIMIT + ( shift - 1 ) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound( final int bucket )
+	{
+		if ( bucket < LINEAR_LIMIT )
+			return bucket;
+		final int shift = ( bucket - LINEAR_LIMIT ) / SUB_BUCKETS + 1;
+		final int sub = ( bucket - LINEAR_LIMIT ) % SUB_BUCKETS;
+		final long lower = ( long ) ( SUB_BUCKETS + sub ) << shift;
+		return lower + ( 1L << shift ) - 1;
+	}
+}
@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.timing;
+
+import java.util.Arrays;
+
+/**
+ * Measures the time spent in each {@link FitStage} while fitting one spot
+ * after another on a single thread.
+ * <p>
+ * Code that runs between {@link #beginSpot()} and {@link #endSpot()} calls
+ * {@code StageTimer.current().lap( stage )} at the end of each stage. The
+ * time since the previous lap is attributed to that stage. If no spot is being
+ * timed on the calling thread, {@link #current()} returns a timer that
+ * ignores laps.
+ * <p>
+ * Per-spot stage durations are accumulated in per-thread histograms, see
+ * {@link StageTimers}.
+ */
+public final class StageTimer
+{
+	private static final FitStage[] STAGES = FitStage.values();
+
+	private static final StageTimer NONE = new StageTimer( false );
+
+	private static final ThreadLocal< StageTimer > CURRENT = ThreadLocal.withInitial( () -> NONE );
+
+	private final boolean enabled;
+
+	private final long[] spotNanos = new long[ STAGES.length ];
+
+	private final boolean[] visited = new boolean[ STAGES.length ];
+
+	private final StageHistogram[] histograms = new StageHistogram[ STAGES.length ];
+
+	private final StageHistogram totals = new StageHistogram();
+
+	private long spotStart;
+
+	private long last;
+
+	private long spotTotal;
+
+	StageTimer()
+	{
+		this( true );
+	}
+
+	private StageTimer( final boolean enabled )
+	{
+		this.enabled = enabled;
+		for ( int i = 0; i < STAGES.length; i++ )
+			histograms[ i ] = new StageHistogram();
+	}
+
+	/**
+	 * Returns the timer of the spot that is being fitted on the calling
+	 * thread.
+	 */
+	public static StageTimer current()
+	{
+		return CURRENT.get();
+	}
+
+	/**
+	 * Starts timing a spot on the calling thread.
+	 */
+	public void beginSpot()
+	{
+		CURRENT.set( this );
+		Arrays.fill( spotNanos, 0 );
+		Arrays.fill( visited, false );
+		spotStart = System.nanoTime();
+		last = spotStart;
+	}
+
+	/**
+	 * Attributes the time since the previous lap to the given {@code stage}.
+	 */
+	public void lap( final FitStage stage )
+	{
+		if ( !enabled )
+			return;
+		final long now = System.nanoTime();
+		final int i = stage.ordinal();
+		spotNanos[ i ] += now - last;
+		visited[ i ] = true;
+		last = now;
+	}
+
+	/**
+	 * Stops timing the current spot and records its stage durations. Stages
+	 * that the spot did not reach are not recorded.
+	 */
+	public void endSpot()
+	{
+		CURRENT.remove();
+		for ( int i = 0; i < STAGES.length; i++ )
+			if ( visited[ i ] )
+				histograms[ i ].record( spotNanos[ i ] );
+		spotTotal = System.nanoTime() - spotStart;
+		totals.record( spotTotal );
+	}
+
+	/**
+	 * Returns the time the last timed spot spent in the given {@code stage}.
+	 */
+	public long getSpotNanos( final FitStage stage )
+	{
+		return spotNanos[ stage.ordinal() ];
+	}
+
+	/**
+	 * Returns the total time of the last timed spot.
+	 */
+	public long getSpotTotalNanos()
+	{
+		return spotTotal;
+	}
+
+	StageHistogram histogram( final FitStage stage )
+	{
+		return histograms[ stage.ordinal() ];
+	}
+
+	StageHistogram totals()
+	{
+		return totals;
+	}
+}
@@ -0,0 +1,72 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.timing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out one {@link StageTimer} per thread for a fitting run and merges
+ * them into {@link FitTimings} when the run is done.
+ */
+public class StageTimers
+{
+	private final List< StageTimer > timers = new ArrayList<>();
+
+	private final ThreadLocal< StageTimer > local = ThreadLocal.withInitial( this::newTimer );
+
+	private final long start = System.nanoTime();
+
+	/**
+	 * Returns the timer of the calling thread.
+	 */
+	public StageTimer get()
+	{
+		return local.get();
+	}
+
+	/**
+	 * Merges the timers of all threads. Must only be called after the threads
+	 * that used the timers have been joined.
+	 */
+	public synchronized FitTimings summarize()
+	{
+		final FitTimings timings = new FitTimings( System.nanoTime() - start );
+		for ( final StageTimer timer : timers )
+			timings.add( timer );
+		return timings;
+	}
+
+	private synchronized StageTimer newTimer()
+	{
+		final StageTimer timer = new StageTimer();
+		timers.add( timer );
+		return timer;
+	}
+}
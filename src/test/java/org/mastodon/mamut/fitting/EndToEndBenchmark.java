@@ -0,0 +1,237 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.mastodon.collection.RefObjectMap;
+import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+import org.mastodon.mamut.fitting.timing.FitStage;
+import org.mastodon.mamut.fitting.timing.FitTimings;
+import org.mastodon.mamut.fitting.util.EllipsoidComparison;
+import org.mastodon.mamut.fitting.util.ScalableArtificialData;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * End-to-end benchmark of the ellipsoid fitting on generated data, see
+ * {@link ScalableArtificialData}. Reports throughput, peak heap usage and
+ * accuracy as JSON, so that runs on different commits can be compared.
+ * <p>
+ * Arguments are {@code key=value} pairs, all optional:
+ * <ul>
+ * <li>{@code spots} number of spots, default 1000</li>
+ * <li>{@code spotsPerFrame} spots per timepoint, default 512</li>
+ * <li>{@code noise} noise relative to the peak intensity, default 0</li>
+ * <li>{@code voxelSize} voxel size as {@code x,y,z}, default {@code 1,1,1}</li>
+ * <li>{@code spacing} spot distance relative to the max diameter, default 2.5</li>
+ * <li>{@code radius} radius range as {@code min,max}, default {@code 8,16}</li>
+ * <li>{@code seed} random seed, default 1</li>
+ * <li>{@code label} free text copied into the output, e.g. a commit id</li>
+ * <li>{@code out} output file, default standard output</li>
+ * </ul>
+ * The log output of the plugin goes to standard error, so that standard
+ * output only contains the JSON.
+ */
+public class EndToEndBenchmark
+{
+	public static void main( final String... args ) throws IOException
+	{
+		final Map< String, String > options = parseOptions( args );
+		final ScalableArtificialData.Parameters parameters = new ScalableArtificialData.Parameters();
+		parameters.numSpots = Integer.parseInt( options.getOrDefault( "spots", "1000" ) );
+		parameters.spotsPerFrame = Integer.parseInt( options.getOrDefault( "spotsPerFrame", "512" ) );
+		parameters.noise = Double.parseDouble( options.getOrDefault( "noise", "0" ) );
+		parameters.voxelSize = parseDoubles( options.getOrDefault( "voxelSize", "1,1,1" ), 3 );
+		parameters.spacing = Double.parseDouble( options.getOrDefault( "spacing", "2.5" ) );
+		final double[] radius = parseDoubles( options.getOrDefault( "radius", "8,16" ), 2 );
+		parameters.minRadius = radius[ 0 ];
+		parameters.maxRadius = radius[ 1 ];
+		parameters.seed = Long.parseLong( options.getOrDefault( "seed", "1" ) );
+
+		final ScalableArtificialData data = new ScalableArtificialData( parameters );
+		final FitEllipsoidPlugin plugin = new FitEllipsoidPlugin();
+		plugin.setMinimalProjectModel( data.getMinimalProjectModel() );
+		plugin.setProgressListener( progress -> {} );
+
+		System.gc();
+		final PrintStream stdout = System.out;
+		final FitTimings timings;
+		final long peakHeap;
+		try (HeapSampler heap = new HeapSampler())
+		{
+			System.setOut( System.err );
+			timings = plugin.fitSelectedVertices();
+			peakHeap = heap.getPeak();
+		}
+		finally
+		{
+			System.setOut( stdout );
+		}
+
+		final int correct = countCorrectEllipsoids( data );
+		final double seconds = timings.getWallNanos() / 1e9;
+
+		final StringBuilder json = new StringBuilder( "{\n" );
+		json.append( "  \"label\": \"" ).append( options.getOrDefault( "label", "" ).replace( "\"", "\\\"" ) ).append( "\",\n" );
+		json.append( "  \"spots\": " ).append( parameters.numSpots ).append( ",\n" );
+		json.append( "  \"spotsPerFrame\": " ).append( parameters.spotsPerFrame ).append( ",\n" );
+		json.append( "  \"noise\": " ).append( parameters.noise ).append( ",\n" );
+		json.append( "  \"voxelSize\": " ).append( Arrays.toString( parameters.voxelSize ) ).append( ",\n" );
+		json.append( "  \"spacing\": " ).append( parameters.spacing ).append( ",\n" );
+		json.append( "  \"radius\": " ).append( Arrays.toString( radius ) ).append( ",\n" );
+		json.append( "  \"seed\": " ).append( parameters.seed ).append( ",\n" );
+		json.append( "  \"threads\": " ).append( Runtime.getRuntime().availableProcessors() ).append( ",\n" );
+		json.append( "  \"seconds\": " ).append( format( seconds ) ).append( ",\n" );
+		json.append( "  \"spotsPerSecond\": " ).append( format( parameters.numSpots / seconds ) ).append( ",\n" );
+		json.append( "  \"peakHeapBytes\": " ).append( peakHeap ).append( ",\n" );
+		json.append( "  \"correct\": " ).append( correct ).append( ",\n" );
+		json.append( "  \"accuracy\": " ).append( format( ( double ) correct / parameters.numSpots ) ).append( ",\n" );
+		json.append( "  \"stageTotalMs\": {" );
+		json.append( Arrays.stream( FitStage.values() )
+				.map( stage -> "\"" + stage.name().toLowerCase() + "\": " + format( timings.getStage( stage ).getTotalNanos() / 1e6 ) )
+				.collect( Collectors.joining( ", " ) ) );
+		json.append( "}\n}\n" );
+
+		final String out = options.get( "out" );
+		if ( out == null )
+			System.out.print( json );
+		else
+			try (PrintStream stream = new PrintStream( Files.newOutputStream( Paths.get( out ) ), false, "UTF-8" ))
+			{
+				stream.print( json );
+			}
+		System.exit( 0 );
+	}
+
+	private static int countCorrectEllipsoids( final ScalableArtificialData data )
+	{
+		int correct = 0;
+		final RefObjectMap< Spot, Ellipsoid > expectedEllipsoids = data.getExpectedEllipsoids();
+		for ( final Spot spot : data.getMinimalProjectModel().getModel().getGraph().vertices() )
+			if ( EllipsoidComparison.isEllipsoidEqual( expectedEllipsoids.get( spot ), EllipsoidComparison.asEllipsoid( spot ) ) )
+				correct++;
+		return correct;
+	}
+
+	/**
+	 * Samples the total heap usage in the background, to report its peak. The
+	 * peak usages of the heap pools can't be added up instead, because the
+	 * pools peak at different times.
+	 */
+	private static class HeapSampler implements AutoCloseable
+	{
+		private static final long SAMPLE_MILLIS = 5;
+
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+		private final Thread thread;
+
+		private volatile boolean running = true;
+
+		private volatile long peak;
+
+		HeapSampler()
+		{
+			sample();
+			thread = new Thread( () -> {
+				while ( running )
+				{
+					sample();
+					try
+					{
+						Thread.sleep( SAMPLE_MILLIS );
+					}
+					catch ( final InterruptedException e )
+					{
+						return;
+					}
+				}
+			}, "heap sampler" );
+			thread.setDaemon( true );
+			thread.start();
+		}
+
+		private synchronized void sample()
+		{
+			peak = Math.max( peak, memory.getHeapMemoryUsage().getUsed() );
+		}
+
+		/**
+		 * Returns the peak total heap usage sampled so far.
+		 */
+		long getPeak()
+		{
+			sample();
+			return peak;
+		}
+
+		@Override
+		public void close()
+		{
+			running = false;
+			thread.interrupt();
+		}
+	}
+
+	private static Map< String, String > parseOptions( final String[] args )
+	{
+		final Map< String, String > options = new HashMap<>();
+		for ( final String arg : args )
+		{
+			final int i = arg.indexOf( '=' );
+			if ( i < 0 )
+				throw new IllegalArgumentException( "Expected key=value, but got: " + arg );
+			options.put( arg.substring( 0, i ), arg.substring( i + 1 ) );
+		}
+		return options;
+	}
+
+	private static double[] parseDoubles( final String value, final int n )
+	{
+		final double[] values = Arrays.stream( value.split( "," ) ).mapToDouble( Double::parseDouble ).toArray();
+		if ( values.length != n )
+			throw new IllegalArgumentException( "Expected " + n + " comma separated values, but got: " + value );
+		return values;
+	}
+
+	private static String format( final double value )
+	{
+		return String.format( Locale.ROOT, "%.4f", value );
+	}
+}
@@ -29,18 +29,37 @@
 package org.mastodon.mamut.fitting;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.junit.Test;
 import org.mastodon.collection.RefObjectMap;
 import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+import org.mastodon.mamut.fitting.report.FitReportWriter;
+import org.mastodon.mamut.fitting.report.SpotFitRecord;
+import org.mastodon.mamut.fitting.timing.FitStage;
+import org.mastodon.mamut.fitting.timing.FitTimings;
 import org.mastodon.mamut.fitting.util.ArtificialData;
+import org.mastodon.mamut.fitting.util.EllipsoidComparison;
+import org.mastodon.mamut.fitting.util.ScalableArtificialData;
+import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
 import org.scijava.Context;
 
-import net.imglib2.util.LinAlgHelpers;
 import net.imglib2.util.StopWatch;
 
 /**
@@ -49,18 +68,266 @@ import net.imglib2.util.StopWatch;
 public class FitEllipsoidPluginTest
 {
 
-	private static final double ACCEPTED_RELATIVE_AXES_DIFFERENCE = 0.2;
-
-	private static final int ACCEPTED_CENTER_DISTANCE = 2;
-
 	@Test
 	public void testFitEllipsoidPlugin() {
 		final ArtificialData data = new ArtificialData( new Context() );
 		final StopWatch watch = StopWatch.createAndStart();
 		final FitEllipsoidPlugin plugin = new FitEllipsoidPlugin();
 		plugin.setMinimalProjectModel( data.getMinimalProjectModel() );
-		plugin.fitSelectedVertices();
+		final FitTimings timings = plugin.fitSelectedVertices();
 		System.out.println( watch );
+		assertAllEllipsoidsCorrect( data );
+		final int numSpots = data.getMinimalProjectModel().getModel().getGraph().vertices().size();
+		assertEquals( numSpots, timings.getTotals().getCount() );
+		assertEquals( numSpots, timings.getStage( FitStage.EDGELS ).getCount() );
+	}
+
+	@Test
+	public void testFitEllipsoidPluginWithBlockCache()
+	{
+		final ArtificialData data = new ArtificialData( new Context() );
+		final FitEllipsoidPlugin plugin = new FitEllipsoidPlugin();
+		plugin.setMinimalProjectModel( data.getMinimalProjectModel() );
+		plugin.getSettings().setBlockCacheBytes( 64 << 20 );
+		plugin.fitSelectedVertices();
+		assertAllEllipsoidsCorrect( data );
+	}
+
+	@Test
+	public void testFitEllipsoidPluginWithGaussianDerivatives()
+	{
+		final ArtificialData data = new ArtificialData( new Context() );
+		final FitEllipsoidPlugin plugin = new FitEllipsoidPlugin();
+		plugin.setMinimalProjectModel( data.getMinimalProjectModel() );
+		plugin.getSettings().setGaussianDerivatives( true );
+		plugin.fitSelectedVertices();
+		assertAllEllipsoidsCorrect( data );
+	}
+
+	@Test
+	public void testFitEllipsoidPluginRestrictedToShell()
+	{
+		final ArtificialData data = new ArtificialData( new Context() );
+		final FitEllipsoidPlugin plugin = new FitEllipsoidPlugin();
+		plugin.setMinimalProjectModel( data.getMinimalProjectModel() );
+		// spot centers are off by up to 5 per axis, and axes range from 8 to 16
+		plugin.getSettings()
+				.setGaussianDerivatives( true )
+				.setRestrictToShell( true )
+				.setShellInnerFraction( 0.3 )
+				.setShellOuterFraction( 2.5 );
+		plugin.fitSelectedVertices();
+		assertAllEllipsoidsCorrect( data );
+	}
+
+	@Test
+	public void testFitEllipsoidPluginPreemptive() throws IOException
+	{
+		final ArtificialData data = new ArtificialData( new Context() );
+		final FitEllipsoidPlugin plugin = new FitEllipsoidPlugin();
+		plugin.setMinimalProjectModel( data.getMinimalProjectModel() );
+		plugin.getSettings().setPreemptive( true );
+		final List< Map< String, String > > report = fitWithReport( plugin );
+		assertAllEllipsoidsCorrect( data );
+		// candidates are drawn up front, and only the winner is scored on all edgels
+		for ( final Map< String, String > row : report )
+		{
+			assertTrue( Integer.parseInt( row.get( "samples" ) ) <= plugin.getSettings().getNumSamples() );
+			assertTrue( Integer.parseInt( row.get( "candidates" ) ) <= plugin.getSettings().getNumCandidates() );
+			assertFalse( row.get( "best_cost" ).isEmpty() );
+		}
+	}
+
+	@Test
+	public void testFitEllipsoidPluginAdaptiveSampling() throws IOException
+	{
+		final ArtificialData data = new ArtificialData( new Context() );
+		final FitEllipsoidPlugin plugin = new FitEllipsoidPlugin();
+		plugin.setMinimalProjectModel( data.getMinimalProjectModel() );
+		plugin.getSettings().setAdaptiveSampling( true );
+		final List< Map< String, String > > report = fitWithReport( plugin );
+		assertAllEllipsoidsCorrect( data );
+		// sampling stops before the cap once the inlier fraction is known
+		final int maxSamples = plugin.getSettings().getNumSamples();
+		int stoppedEarly = 0;
+		for ( final Map< String, String > row : report )
+		{
+			final int samples = Integer.parseInt( row.get( "samples" ) );
+			assertTrue( samples <= maxSamples );
+			if ( samples < maxSamples )
+				stoppedEarly++;
+		}
+		assertTrue( stoppedEarly > report.size() / 2 );
+	}
+
+	@Test
+	public void testFitEllipsoidPluginProgressiveSampling()
+	{
+		final ArtificialData data = new ArtificialData( new Context() );
+		final FitEllipsoidPlugin plugin = new FitEllipsoidPlugin();
+		plugin.setMinimalProjectModel( data.getMinimalProjectModel() );
+		plugin.getSettings().setProgressiveSampling( true );
+		plugin.fitSelectedVertices();
+		assertAllEllipsoidsCorrect( data );
+	}
+
+	@Test
+	public void testRefitChangedVertices()
+	{
+		final ArtificialData data = new ArtificialData( new Context() );
+		final FitEllipsoidPlugin plugin = new FitEllipsoidPlugin();
+		plugin.setMinimalProjectModel( data.getMinimalProjectModel() );
+		plugin.fitSelectedVertices();
+		final int numSpots = data.getMinimalProjectModel().getModel().getGraph().vertices().size();
+
+		final AtomicInteger total = new AtomicInteger( -1 );
+		plugin.setProgressListener( new FitProgressListener()
+		{
+			@Override
+			public void started( final int numTotal )
+			{
+				total.set( numTotal );
+			}
+
+			@Override
+			public void progress( final FitProgress progress )
+			{}
+		} );
+
+		plugin.refitChangedVertices();
+		assertEquals( 0, total.get() );
+
+		plugin.getSettings().setNumCandidates( 50 );
+		plugin.refitChangedVertices();
+		assertEquals( numSpots, total.get() );
+		assertAllEllipsoidsCorrect( data );
+	}
+
+	@Test
+	public void testCsvReport() throws IOException
+	{
+		final ArtificialData data = new ArtificialData( new Context() );
+		final FitEllipsoidPlugin plugin = new FitEllipsoidPlugin();
+		plugin.setMinimalProjectModel( data.getMinimalProjectModel() );
+		final File reportFile = File.createTempFile( "ellipsoid-fit-report", ".csv" );
+		reportFile.deleteOnExit();
+		plugin.setReportFile( reportFile );
+		plugin.fitSelectedVertices();
+		final List< String > lines = Files.readAllLines( reportFile.toPath() );
+		final int numSpots = data.getMinimalProjectModel().getModel().getGraph().vertices().size();
+		assertEquals( numSpots + 1, lines.size() );
+		assertTrue( lines.get( 0 ).startsWith( "spot_id,label,timepoint" ) );
+	}
+
+	@Test
+	public void testReportFailureKeepsFits()
+	{
+		final ArtificialData data = new ArtificialData( new Context() );
+		final AtomicInteger writes = new AtomicInteger();
+		final FitEllipsoidPlugin plugin = new FitEllipsoidPlugin()
+		{
+			@Override
+			FitReportWriter openReport()
+			{
+				return new FitReportWriter()
+				{
+					@Override
+					public void write( final SpotFitRecord record )
+					{
+						writes.incrementAndGet();
+						throw new UncheckedIOException( new IOException( "No space left on device" ) );
+					}
+
+					@Override
+					public void close()
+					{}
+				};
+			}
+		};
+		plugin.setMinimalProjectModel( data.getMinimalProjectModel() );
+		plugin.fitSelectedVertices();
+		// all spots are committed, although the report failed on the first row
+		assertTrue( writes.get() >= 1 );
+		assertAllEllipsoidsCorrect( data );
+	}
+
+	@Test
+	public void testDeterministicFitting() throws IOException
+	{
+		// timepoints are fitted concurrently in the first run, one by one in the second
+		final List< String > first = fitDeterministic( settings -> settings.setTimepointWindow( 4 ) );
+		final List< String > second = fitDeterministic( settings -> settings.setTimepointWindow( 1 ) );
+		assertEquals( 4, first.stream().map( fit -> fit.split( " " )[ 0 ] ).distinct().count() );
+		assertEquals( first, second );
+	}
+
+	@Test
+	public void testGaussianDerivativesIgnoreBlockCache() throws IOException
+	{
+		// equal settings must yield equal fits, and the block cache is not compared
+		final FitEllipsoidSettings withCache = new FitEllipsoidSettings().setGaussianDerivatives( true ).setBlockCacheBytes( 64 << 20 );
+		assertEquals( withCache, withCache.copy().setBlockCacheBytes( 0 ) );
+		final List< String > first = fitDeterministic( settings -> settings.setGaussianDerivatives( true ).setBlockCacheBytes( 64 << 20 ) );
+		final List< String > second = fitDeterministic( settings -> settings.setGaussianDerivatives( true ) );
+		assertEquals( first, second );
+	}
+
+	/**
+	 * Fits all spots with a CSV report, and returns its rows by column name.
+	 */
+	private static List< Map< String, String > > fitWithReport( final FitEllipsoidPlugin plugin ) throws IOException
+	{
+		final File reportFile = File.createTempFile( "ellipsoid-fit-report", ".csv" );
+		reportFile.deleteOnExit();
+		plugin.setReportFile( reportFile );
+		plugin.fitSelectedVertices();
+		final List< String > lines = Files.readAllLines( reportFile.toPath() );
+		final String[] header = lines.get( 0 ).split( "," );
+		final List< Map< String, String > > rows = new ArrayList<>();
+		for ( final String line : lines.subList( 1, lines.size() ) )
+		{
+			final String[] values = line.split( ",", -1 );
+			final Map< String, String > row = new HashMap<>();
+			for ( int i = 0; i < header.length; i++ )
+				row.put( header[ i ], values[ i ] );
+			rows.add( row );
+		}
+		return rows;
+	}
+
+	/**
+	 * Fits spots on 4 timepoints with a fixed seed. Returns the covariance
+	 * and the sampling statistics of each spot, ordered by spot id.
+	 */
+	private static List< String > fitDeterministic( final Consumer< FitEllipsoidSettings > configure ) throws IOException
+	{
+		final ScalableArtificialData.Parameters parameters = new ScalableArtificialData.Parameters();
+		parameters.numSpots = 32;
+		parameters.spotsPerFrame = 8;
+		final ScalableArtificialData data = new ScalableArtificialData( parameters );
+		final FitEllipsoidPlugin plugin = new FitEllipsoidPlugin();
+		plugin.setMinimalProjectModel( data.getMinimalProjectModel() );
+		plugin.getSettings().setDeterministic( true ).setSeed( 7 );
+		configure.accept( plugin.getSettings() );
+		final Map< Integer, String > sampling = new TreeMap<>();
+		for ( final Map< String, String > row : fitWithReport( plugin ) )
+			sampling.put( Integer.parseInt( row.get( "spot_id" ) ), String.join( ",", row.get( "samples" ), row.get( "candidates" ),
+					row.get( "best_cost" ), row.get( "inliers" ), row.get( "refined" ) ) );
+		final Model model = data.getMinimalProjectModel().getModel();
+		final double[][] covariance = new double[ 3 ][ 3 ];
+		final List< String > fits = new ArrayList<>();
+		for ( final Map.Entry< Integer, String > entry : sampling.entrySet() )
+		{
+			final Spot spot = model.getGraphIdBimap().getVertex( entry.getKey(), model.getGraph().vertexRef() );
+			spot.getCovariance( covariance );
+			fits.add( spot.getTimepoint() + " " + Arrays.deepToString( covariance ) + " " + entry.getValue() );
+		}
+		assertEquals( parameters.numSpots, fits.size() );
+		return fits;
+	}
+
+	private static void assertAllEllipsoidsCorrect( final ArtificialData data )
+	{
 		final int success = countCorrectEllipsoids( data );
 		final ModelGraph graph = data.getMinimalProjectModel().getModel().getGraph();
 		assertEquals( "Not all ellipsoids were fitted correctly.", graph.vertices().size(), success );
@@ -72,44 +339,12 @@ public class FitEllipsoidPluginTest
 		final RefObjectMap< Spot, Ellipsoid > expectedEllipsoids = data.getExpectedEllipsoids();
 		for ( final Spot spot : data.getMinimalProjectModel().getModel().getGraph().vertices() )
 		{
-			final Ellipsoid actualEllipsoid = asEllipsoid( spot );
+			final Ellipsoid actualEllipsoid = EllipsoidComparison.asEllipsoid( spot );
 			final Ellipsoid expectedEllipsoid = expectedEllipsoids.get( spot );
-			final boolean equal = isEllipsoidEqual( expectedEllipsoid, actualEllipsoid );
+			final boolean equal = EllipsoidComparison.isEllipsoidEqual( expectedEllipsoid, actualEllipsoid );
 			if( equal )
 				success++;
 		}
 		return success;
 	}
-
-	private static Ellipsoid asEllipsoid( final Spot spot )
-	{
-		final double[][] covariance = new double[3][3];
-		spot.getCovariance( covariance );
-		final double[] center = spot.positionAsDoubleArray();
-		return new Ellipsoid( center, covariance, null, null, null );
-	}
-
-	private static boolean isEllipsoidEqual( final Ellipsoid expectedEllipsoid, final Ellipsoid fittedEllipsoid )
-	{
-		final double centerDistance = LinAlgHelpers.distance( expectedEllipsoid.getCenter(), fittedEllipsoid.getCenter() );
-		final double[] expectedAxis = expectedEllipsoid.getRadii().clone();
-		final double[] fittedAxis = fittedEllipsoid.getRadii().clone();
-		Arrays.sort( expectedAxis );
-		Arrays.sort( fittedAxis );
-		final double v = relativeDifference( expectedAxis[ 0 ], fittedAxis[ 0 ] );
-		final double v1 = relativeDifference( expectedAxis[ 1 ], fittedAxis[ 1 ] );
-		final double v2 = relativeDifference( expectedAxis[ 2 ], fittedAxis[ 2 ] );
-		final boolean b = ( centerDistance <= ACCEPTED_CENTER_DISTANCE )
-				&& ( v <= ACCEPTED_RELATIVE_AXES_DIFFERENCE )
-				&& ( v1 <= ACCEPTED_RELATIVE_AXES_DIFFERENCE )
-				&& ( v2 <= ACCEPTED_RELATIVE_AXES_DIFFERENCE );
-		if ( b )
-			return b;
-		return b;
-	}
-
-	private static double relativeDifference( final double expected, final double actual )
-	{
-		return Math.abs( 1 - actual / expected );
-	}
 }
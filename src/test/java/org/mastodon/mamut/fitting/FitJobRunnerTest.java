@@ -0,0 +1,139 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link FitJobRunner}.
+ */
+public class FitJobRunnerTest
+{
+	private static final long TIMEOUT_SECONDS = 10;
+
+	@Test
+	public void testCoalescing() throws InterruptedException
+	{
+		final FitJobRunner runner = new FitJobRunner();
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		assertTrue( runner.submit( isCanceled -> {
+			started.countDown();
+			await( release );
+		} ) );
+		assertTrue( started.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ) );
+		assertTrue( runner.isRunning() );
+
+		// a request while the job runs is ignored
+		final AtomicBoolean coalescedRan = new AtomicBoolean();
+		assertFalse( runner.submit( isCanceled -> coalescedRan.set( true ) ) );
+
+		release.countDown();
+		awaitIdle( runner );
+		assertFalse( coalescedRan.get() );
+
+		// once the job is done, the next request runs
+		final CountDownLatch ran = new CountDownLatch( 1 );
+		assertTrue( runner.submit( isCanceled -> ran.countDown() ) );
+		assertTrue( ran.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ) );
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException
+	{
+		final FitJobRunner runner = new FitJobRunner();
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final AtomicBoolean sawCancel = new AtomicBoolean();
+		assertTrue( runner.submit( isCanceled -> {
+			started.countDown();
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( TIMEOUT_SECONDS );
+			while ( !isCanceled.getAsBoolean() && System.nanoTime() < deadline )
+				Thread.yield();
+			sawCancel.set( isCanceled.getAsBoolean() );
+		} ) );
+		assertTrue( started.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ) );
+		runner.cancel();
+		awaitIdle( runner );
+		assertTrue( sawCancel.get() );
+
+		// cancellation does not carry over to the next job
+		final AtomicBoolean nextCanceled = new AtomicBoolean( true );
+		final CountDownLatch ran = new CountDownLatch( 1 );
+		assertTrue( runner.submit( isCanceled -> {
+			nextCanceled.set( isCanceled.getAsBoolean() );
+			ran.countDown();
+		} ) );
+		assertTrue( ran.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ) );
+		assertFalse( nextCanceled.get() );
+	}
+
+	@Test
+	public void testExceptionInJob() throws InterruptedException
+	{
+		final FitJobRunner runner = new FitJobRunner();
+		assertTrue( runner.submit( isCanceled -> {
+			throw new IllegalStateException( "expected by the test" );
+		} ) );
+		awaitIdle( runner );
+
+		// the runner survives the exception
+		final CountDownLatch ran = new CountDownLatch( 1 );
+		assertTrue( runner.submit( isCanceled -> ran.countDown() ) );
+		assertTrue( ran.await( TIMEOUT_SECONDS, TimeUnit.SECONDS ) );
+	}
+
+	private static void await( final CountDownLatch latch )
+	{
+		try
+		{
+			latch.await( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void awaitIdle( final FitJobRunner runner ) throws InterruptedException
+	{
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( TIMEOUT_SECONDS );
+		while ( runner.isRunning() )
+		{
+			assertTrue( "job did not finish", System.nanoTime() < deadline );
+			Thread.sleep( 1 );
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Tests {@link FitResults}.
+ */
+public class FitResultsTest
+{
+	@Test
+	public void testCommitSkipsEditedSpots()
+	{
+		final Model model = new Model();
+		final ModelGraph graph = model.getGraph();
+		final SpotEditStamps editStamps = new SpotEditStamps( graph );
+		editStamps.install();
+		final List< Spot > spots = new ArrayList<>();
+		for ( int i = 0; i < 3; i++ )
+			spots.add( graph.addVertex( graph.vertexRef() ).init( 0, new double[] { 10 * i, 0, 0 }, 5 ) );
+
+		final FitResults results = new FitResults( spots, editStamps );
+		final double[][] covariance = { { 4, 0, 0 }, { 0, 9, 0 }, { 0, 0, 16 } };
+		for ( int i = 0; i < 3; i++ )
+			results.set( spots.get( i ), new Ellipsoid( new double[] { 10 * i + 1, 1, 1 }, covariance, null, null, null ) );
+
+		// move the second spot, remove the third and reuse its pool index
+		final double[] moved = { 100, 100, 100 };
+		spots.get( 1 ).setPosition( moved );
+		final int removedIndex = spots.get( 2 ).getInternalPoolIndex();
+		graph.remove( spots.get( 2 ) );
+		final Spot added = graph.addVertex( graph.vertexRef() ).init( 0, new double[] { 50, 50, 50 }, 5 );
+		assertEquals( removedIndex, added.getInternalPoolIndex() );
+
+		assertEquals( 1, results.commit( spots, graph.getLock().writeLock() ) );
+		assertArrayEquals( new double[] { 1, 1, 1 }, spots.get( 0 ).positionAsDoubleArray(), 0 );
+		assertTrue( results.isDone( spots.get( 0 ) ) );
+		assertArrayEquals( moved, spots.get( 1 ).positionAsDoubleArray(), 0 );
+		assertFalse( results.isDone( spots.get( 1 ) ) );
+		assertArrayEquals( new double[] { 50, 50, 50 }, added.positionAsDoubleArray(), 0 );
+		assertFalse( results.isDone( added ) );
+		editStamps.uninstall();
+	}
+}
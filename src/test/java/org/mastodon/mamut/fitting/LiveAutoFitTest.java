@@ -0,0 +1,205 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.Test;
+import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Tests {@link LiveAutoFit} with a fitter that shifts the spot by one along
+ * each axis.
+ */
+public class LiveAutoFitTest
+{
+	private static final long DELAY_MILLIS = 10;
+
+	private static final long TIMEOUT_MILLIS = 10000;
+
+	private static final double[][] COVARIANCE = { { 4, 0, 0 }, { 0, 9, 0 }, { 0, 0, 16 } };
+
+	private final Model model = new Model();
+
+	private final ModelGraph graph = model.getGraph();
+
+	private final SpotEditStamps editStamps = new SpotEditStamps( graph );
+
+	private final DirtySpotTracker dirtySpotTracker = new DirtySpotTracker( graph );
+
+	private final FitEllipsoidSettings settings = new FitEllipsoidSettings();
+
+	@Test
+	public void testRefitAddedSpot() throws InterruptedException
+	{
+		final AtomicInteger fits = new AtomicInteger();
+		final LiveAutoFit live = install( ( spot, fitSettings, isCanceled ) -> {
+			fits.incrementAndGet();
+			return shifted( spot );
+		} );
+		final Spot spot = addSpot( 10, 20, 30 );
+		awaitPosition( spot, 11, 21, 31 );
+		assertFalse( dirtySpotTracker.isDirty( spot, settings ) );
+		live.uninstall();
+		// committing the fit does not trigger another refit
+		assertEquals( 1, fits.get() );
+	}
+
+	@Test
+	public void testReplayedEditsAreIgnored() throws InterruptedException
+	{
+		final AtomicInteger fits = new AtomicInteger();
+		final LiveAutoFit live = install( ( spot, fitSettings, isCanceled ) -> {
+			fits.incrementAndGet();
+			return shifted( spot );
+		} );
+		final Spot spot = addSpot( 10, 20, 30 );
+		awaitPosition( spot, 11, 21, 31 );
+
+		live.replay( () -> setPosition( spot, 10, 20, 30 ) );
+		Thread.sleep( 20 * DELAY_MILLIS );
+		live.uninstall();
+		assertEquals( 1, fits.get() );
+		assertArrayEquals( new double[] { 10, 20, 30 }, spot.positionAsDoubleArray(), 0 );
+	}
+
+	@Test
+	public void testEditWhileFittingSupersedesFit() throws InterruptedException
+	{
+		final CountDownLatch started = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final AtomicInteger fits = new AtomicInteger();
+		final LiveAutoFit live = install( ( spot, fitSettings, isCanceled ) -> {
+			final Ellipsoid ellipsoid = shifted( spot );
+			if ( fits.incrementAndGet() == 1 )
+			{
+				started.countDown();
+				try
+				{
+					release.await( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			return ellipsoid;
+		} );
+		final Spot spot = addSpot( 10, 20, 30 );
+		assertTrue( started.await( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) );
+		setPosition( spot, 50, 60, 70 );
+		release.countDown();
+
+		// the first fit, of the old position, is dropped
+		awaitPosition( spot, 51, 61, 71 );
+		live.uninstall();
+		assertEquals( 2, fits.get() );
+	}
+
+	private LiveAutoFit install( final LiveAutoFit.SpotFitter fitter )
+	{
+		editStamps.install();
+		dirtySpotTracker.install();
+		final LiveAutoFit live = new LiveAutoFit( model, editStamps, dirtySpotTracker, settings, fitter, DELAY_MILLIS );
+		live.install();
+		return live;
+	}
+
+	private Spot addSpot( final double... position )
+	{
+		final Lock writeLock = graph.getLock().writeLock();
+		writeLock.lock();
+		try
+		{
+			return graph.addVertex( graph.vertexRef() ).init( 0, position, 5 );
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	private void setPosition( final Spot spot, final double... position )
+	{
+		final Lock writeLock = graph.getLock().writeLock();
+		writeLock.lock();
+		try
+		{
+			spot.setPosition( position );
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	private static Ellipsoid shifted( final Spot spot )
+	{
+		final double[] center = spot.positionAsDoubleArray();
+		for ( int d = 0; d < 3; d++ )
+			center[ d ] += 1;
+		return new Ellipsoid( center, COVARIANCE, null, null, null );
+	}
+
+	private void awaitPosition( final Spot spot, final double... expected ) throws InterruptedException
+	{
+		final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while ( !Arrays.equals( expected, position( spot ) ) )
+		{
+			assertTrue( "spot was not refitted", System.currentTimeMillis() < deadline );
+			Thread.sleep( 1 );
+		}
+	}
+
+	private double[] position( final Spot spot )
+	{
+		final Lock readLock = graph.getLock().readLock();
+		readLock.lock();
+		try
+		{
+			return spot.positionAsDoubleArray();
+		}
+		finally
+		{
+			readLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import bdv.util.RandomAccessibleIntervalMipmapSource;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Tests {@link ResolutionLevels}.
+ */
+public class ResolutionLevelsTest
+{
+	@Test
+	public void testSelectLevel()
+	{
+		final TimepointFrames< FloatType > isotropic = frames( new double[][] { { 1, 1, 1 }, { 2, 2, 2 }, { 4, 4, 4 } } );
+		assertEquals( 2, ResolutionLevels.selectLevel( isotropic, 40, 10 ) );
+		assertEquals( 1, ResolutionLevels.selectLevel( isotropic, 39, 10 ) );
+		assertEquals( 1, ResolutionLevels.selectLevel( isotropic, 20, 10 ) );
+		assertEquals( 0, ResolutionLevels.selectLevel( isotropic, 19, 10 ) );
+
+		// the coarsest axis decides
+		final TimepointFrames< FloatType > anisotropic = frames( new double[][] { { 1, 1, 3 }, { 2, 2, 6 } } );
+		assertEquals( 0, ResolutionLevels.selectLevel( anisotropic, 59, 10 ) );
+		assertEquals( 1, ResolutionLevels.selectLevel( anisotropic, 60, 10 ) );
+
+		final TimepointFrames< FloatType > single = frames( new double[][] { { 1, 1, 1 } } );
+		assertEquals( 0, ResolutionLevels.selectLevel( single, 1000, 10 ) );
+	}
+
+	@Test
+	public void testSmoothingSigmas()
+	{
+		// at full resolution, the sigma is converted to voxels
+		assertArrayEquals( new double[] { 2, 2, 1 }, ResolutionLevels.smoothingSigmas( 2, new double[] { 1, 1, 2 }, new double[] { 1, 1, 2 } ), 1e-12 );
+
+		// downsampling by 2 already smooths with the variance ( 2^2 - 1 ) / 12
+		final double expected = Math.sqrt( 4 - 0.25 ) / 2;
+		assertArrayEquals( new double[] { expected, expected, expected },
+				ResolutionLevels.smoothingSigmas( 2, new double[] { 1, 1, 1 }, new double[] { 2, 2, 2 } ), 1e-12 );
+
+		// no blur is needed if downsampling smooths more than requested
+		assertArrayEquals( new double[] { 0, 0, Math.sqrt( 4 - 0.25 * 4 ) / 4 },
+				ResolutionLevels.smoothingSigmas( 2, new double[] { 1, 1, 2 }, new double[] { 8, 8, 4 } ), 1e-12 );
+	}
+
+	@Test
+	public void testGradientThreshold()
+	{
+		assertEquals( 10, ResolutionLevels.gradientThreshold( 10, new double[] { 1, 1, 2 }, new double[] { 1, 1, 2 } ), 1e-12 );
+		assertEquals( 20, ResolutionLevels.gradientThreshold( 10, new double[] { 1, 1, 2 }, new double[] { 2, 2, 4 } ), 1e-12 );
+		// the mean downsampling factor is used
+		assertEquals( 10 * 5 / 3.0, ResolutionLevels.gradientThreshold( 10, new double[] { 1, 1, 2 }, new double[] { 2, 2, 2 } ), 1e-12 );
+	}
+
+	/**
+	 * Returns the frames of a source with the given voxel sizes per level.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private static TimepointFrames< FloatType > frames( final double[][] scales )
+	{
+		final RandomAccessibleInterval< FloatType >[] images = new RandomAccessibleInterval[ scales.length ];
+		for ( int level = 0; level < scales.length; level++ )
+			images[ level ] = ArrayImgs.floats( 4, 4, 4 );
+		return TimepointFrames.resolve( new RandomAccessibleIntervalMipmapSource<>( images, new FloatType(), scales,
+				new FinalVoxelDimensions( "um", 1, 1, 1 ), "test" ), 0 );
+	}
+}
@@ -0,0 +1,150 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+import org.mastodon.mamut.fitting.FitEllipsoidSettings;
+import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+
+/**
+ * Tests {@link FitResultCache}.
+ */
+public class FitResultCacheTest
+{
+	private static final double[] CENTER = { 10, 20, 30 };
+
+	private static final double[][] COVARIANCE = { { 100, 0, 0 }, { 0, 100, 0 }, { 0, 0, 100 } };
+
+	private static final Ellipsoid FITTED = new Ellipsoid(
+			new double[] { 11, 19, 32 },
+			new double[][] { { 64, 5, 0 }, { 5, 81, 2 }, { 0, 2, 144 } },
+			null, null, null );
+
+	private static final long DIGEST = new FitEllipsoidSettings().digest();
+
+	@Test
+	public void testSaveAndLoad() throws IOException
+	{
+		final File file = tempFile();
+		final FitResultCache cache = FitResultCache.load( file );
+		assertEquals( 0, cache.size() );
+		cache.put( 1, 0, CENTER, COVARIANCE, "source", DIGEST, FITTED );
+		cache.save();
+
+		final FitResultCache loaded = FitResultCache.load( file );
+		assertEquals( cache.size(), loaded.size() );
+		assertEllipsoidEquals( FITTED, loaded.get( 1, 0, CENTER, COVARIANCE, "source", DIGEST ) );
+		// also found under the fitted shape, in case the fit was applied to the spot
+		assertEllipsoidEquals( FITTED, loaded.get( 1, 0, FITTED.getCenter(), FITTED.getCovariance(), "source", DIGEST ) );
+	}
+
+	@Test
+	public void testInvalidation() throws IOException
+	{
+		final FitResultCache cache = FitResultCache.load( tempFile() );
+		cache.put( 1, 0, CENTER, COVARIANCE, "source", DIGEST, FITTED );
+		assertNotNull( cache.get( 1, 0, CENTER, COVARIANCE, "source", DIGEST ) );
+
+		// below the quantum, the shape is the same
+		assertNotNull( cache.get( 1, 0, new double[] { 10.0001, 20, 30 }, COVARIANCE, "source", DIGEST ) );
+
+		assertNull( cache.get( 2, 0, CENTER, COVARIANCE, "source", DIGEST ) );
+		assertNull( cache.get( 1, 1, CENTER, COVARIANCE, "source", DIGEST ) );
+		assertNull( cache.get( 1, 0, new double[] { 10.01, 20, 30 }, COVARIANCE, "source", DIGEST ) );
+		final double[][] resized = { { 150, 0, 0 }, { 0, 100, 0 }, { 0, 0, 100 } };
+		assertNull( cache.get( 1, 0, CENTER, resized, "source", DIGEST ) );
+		assertNull( cache.get( 1, 0, CENTER, COVARIANCE, "other source", DIGEST ) );
+		final long otherDigest = new FitEllipsoidSettings().setNumSamples( 123 ).digest();
+		assertNotEquals( DIGEST, otherDigest );
+		assertNull( cache.get( 1, 0, CENTER, COVARIANCE, "source", otherDigest ) );
+	}
+
+	@Test
+	public void testSettingsDigest()
+	{
+		final FitEllipsoidSettings settings = new FitEllipsoidSettings().setSmoothSigma( 3 );
+		assertEquals( settings.digest(), settings.copy().digest() );
+		// options that only affect performance do not change the digest
+		assertEquals( settings.digest(), settings.copy().setBlockCacheBytes( 1 << 20 ).setTimepointWindow( 5 ).digest() );
+		assertNotEquals( settings.digest(), settings.copy().setSmoothSigma( 2 ).digest() );
+		assertNotEquals( settings.digest(), settings.copy().setDeterministic( true ).digest() );
+	}
+
+	@Test
+	public void testPruning() throws IOException
+	{
+		final File file = tempFile();
+		FitResultCache cache = FitResultCache.load( file );
+		final double[] otherCenter = { 50, 50, 50 };
+		cache.put( 1, 0, CENTER, COVARIANCE, "source", DIGEST, FITTED );
+		cache.put( 2, 0, otherCenter, COVARIANCE, "source", DIGEST, FITTED );
+		cache.save();
+
+		// keep using the second spot, but not the first one
+		for ( int i = 1; i < FitResultCache.MAX_UNUSED_SAVES; i++ )
+		{
+			if ( i == FitResultCache.MAX_UNUSED_SAVES / 2 )
+				cache = FitResultCache.load( file );
+			assertNotNull( cache.get( 2, 0, otherCenter, COVARIANCE, "source", DIGEST ) );
+			cache.save();
+		}
+		assertEquals( 4, cache.size() );
+
+		assertNotNull( cache.get( 2, 0, otherCenter, COVARIANCE, "source", DIGEST ) );
+		cache.save();
+		assertNull( cache.get( 1, 0, CENTER, COVARIANCE, "source", DIGEST ) );
+		assertEquals( 2, FitResultCache.load( file ).size() );
+	}
+
+	private static File tempFile() throws IOException
+	{
+		final File file = File.createTempFile( "ellipsoid-fits", ".cache" );
+		file.deleteOnExit();
+		Files.delete( file.toPath() );
+		return file;
+	}
+
+	private static void assertEllipsoidEquals( final Ellipsoid expected, final Ellipsoid actual )
+	{
+		assertNotNull( actual );
+		assertArrayEquals( expected.getCenter(), actual.getCenter(), 0 );
+		for ( int d = 0; d < 3; d++ )
+			assertArrayEquals( expected.getCovariance()[ d ], actual.getCovariance()[ d ], 0 );
+	}
+}
@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.edgel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.algorithm.edge.Edgel;
+
+/**
+ * Tests {@link Edgels}.
+ */
+public class EdgelsTest
+{
+	@Test
+	public void testFilterEdgelsByOcclusionBinned()
+	{
+		final Random random = new Random( 1 );
+		final double[] center = { 10.3, 20.7, 30.1 };
+		final List< Edgel > edgels = new ArrayList<>();
+		for ( int i = 0; i < 3000; i++ )
+		{
+			// two layers, so that edgels of the outer layer are occluded
+			final double radius = random.nextBoolean() ? 10 : 12 + random.nextDouble();
+			final double[] position = new double[ 3 ];
+			double length = 0;
+			for ( int d = 0; d < 3; d++ )
+			{
+				position[ d ] = random.nextGaussian();
+				length += position[ d ] * position[ d ];
+			}
+			for ( int d = 0; d < 3; d++ )
+				position[ d ] = Math.round( center[ d ] + position[ d ] * radius / Math.sqrt( length ) );
+			edgels.add( new Edgel( position, new double[] { 1, 0, 0 }, 1 ) );
+		}
+		edgels.add( new Edgel( center, new double[] { 1, 0, 0 }, 1 ) );
+
+		for ( final double maxAngle : new double[] { 0, 1 * Math.PI / 180, 5 * Math.PI / 180, 1, Math.PI } )
+		{
+			final List< Edgel > expected = Edgels.filterEdgelsByOcclusion( edgels, center, maxAngle, 1.1 );
+			final List< Edgel > actual = Edgels.filterEdgelsByOcclusionBinned( edgels, center, maxAngle, 1.1 );
+			assertEquals( expected, actual );
+		}
+	}
+
+	@Test
+	public void testLimitEdgels()
+	{
+		final Random random = new Random( 1 );
+		final double[] center = { 10.3, 20.7, 30.1 };
+		final EdgelBuffer edgels = new EdgelBuffer();
+		int strongest = -1;
+		for ( int i = 0; i < 5000; i++ )
+		{
+			// denser on the positive x side
+			final double[] position = new double[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+				position[ d ] = random.nextGaussian();
+			position[ 0 ] = Math.abs( position[ 0 ] ) * ( i % 5 == 0 ? -1 : 1 );
+			for ( int d = 0; d < 3; d++ )
+				position[ d ] = center[ d ] + 10 * position[ d ];
+			final double magnitude = random.nextDouble();
+			if ( strongest < 0 || magnitude > edgels.getMagnitude( strongest ) )
+				strongest = i;
+			edgels.add( position, new double[] { 1, 0, 0 }, magnitude );
+		}
+		final double[] strongestPosition = new double[ 3 ];
+		edgels.localize( strongest, strongestPosition );
+		final List< Edgel > all = edgels.toList();
+
+		Edgels.limitEdgels( edgels, center, 500 );
+		assertEquals( 500, edgels.size() );
+
+		// kept edgels are in their original order
+		int next = 0;
+		boolean strongestKept = false;
+		int negativeX = 0;
+		final double[] position = new double[ 3 ];
+		for ( int i = 0; i < edgels.size(); i++ )
+		{
+			edgels.localize( i, position );
+			while ( !isAt( all.get( next ), position ) )
+				next++;
+			next++;
+			strongestKept |= isAt( edgels.get( i ), strongestPosition );
+			if ( position[ 0 ] < center[ 0 ] )
+				negativeX++;
+		}
+		assertTrue( strongestKept );
+		// the sparse side keeps more than its share of 1/5
+		assertTrue( negativeX > 150 );
+	}
+
+	private static boolean isAt( final Edgel edgel, final double[] position )
+	{
+		for ( int d = 0; d < 3; d++ )
+			if ( edgel.getDoublePosition( d ) != position[ d ] )
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.edgel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.edge.Edgel;
+import net.imglib2.algorithm.edge.SubpixelEdgelDetection;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Tests {@link GaussianDerivativeEdgelDetector} on a synthetic sphere with a
+ * soft boundary.
+ */
+public class GaussianDerivativeEdgelDetectorTest
+{
+	private static final int SIZE = 40;
+
+	private static final double[] CENTER = { 20.3, 19.6, 20.1 };
+
+	private static final double RADIUS = 10;
+
+	private static final double MIN_GRADIENT_MAGNITUDE = 5;
+
+	@Test
+	public void testMatchesSubpixelEdgelDetection() throws IncompatibleTypeException
+	{
+		final double[] sigmas = { 1.5, 1.5, 1.5 };
+		final RandomAccessibleInterval< FloatType > image = sphere();
+		final RandomAccessibleInterval< FloatType > blurred = ArrayImgs.floats( SIZE, SIZE, SIZE );
+		Gauss3.gauss( sigmas, Views.extendMirrorSingle( image ), blurred );
+		final List< Edgel > expected = SubpixelEdgelDetection.getEdgels( blurred, new ArrayImgFactory<>( new FloatType() ), MIN_GRADIENT_MAGNITUDE );
+		final EdgelBuffer actual = new EdgelBuffer();
+		new GaussianDerivativeEdgelDetector( sigmas ).detect( image, MIN_GRADIENT_MAGNITUDE, actual );
+
+		// derivative-of-Gaussian kernels differ slightly from finite differences of the blurred image
+		assertEquals( expected.size(), actual.size(), 0.02 * expected.size() );
+		assertMatching( expected, actual, 0.5, 0.99, 0.1 );
+		assertOnSphere( actual, 0.5 );
+	}
+
+	@Test
+	public void testWithoutSmoothing()
+	{
+		final RandomAccessibleInterval< FloatType > image = sphere();
+		final List< Edgel > expected = SubpixelEdgelDetection.getEdgels( image, new ArrayImgFactory<>( new FloatType() ), MIN_GRADIENT_MAGNITUDE );
+		final EdgelBuffer actual = new EdgelBuffer();
+		new GaussianDerivativeEdgelDetector( new double[ 3 ] ).detect( image, MIN_GRADIENT_MAGNITUDE, actual );
+
+		// both take central differences of the image
+		assertEquals( expected.size(), actual.size() );
+		assertMatching( expected, actual, 1e-3, 1 - 1e-6, 1e-4 );
+		assertOnSphere( actual, 0.5 );
+	}
+
+	@Test
+	public void testShellMatchesUnrestricted()
+	{
+		final RandomAccessibleInterval< FloatType > image = sphere();
+		// shells that cut the sphere, with and without hole, isotropic and not
+		final double[][] scales = { { 1, 1, 1 }, { 1, 1, 2 } };
+		for ( final double[] scale : scales )
+			for ( final double innerRadius : new double[] { 0, 3 } )
+				for ( final double sigma : new double[] { 0, 1.5 } )
+				{
+					final RadialShell shell = new RadialShell( new double[] { 12, 20, 20 / scale[ 2 ] }, scale, innerRadius, 8 );
+					final GaussianDerivativeEdgelDetector detector = new GaussianDerivativeEdgelDetector( new double[] { sigma, sigma, sigma / scale[ 2 ] } );
+					final EdgelBuffer all = new EdgelBuffer();
+					detector.detect( image, MIN_GRADIENT_MAGNITUDE, all );
+					final EdgelBuffer restricted = new EdgelBuffer();
+					detector.detect( image, MIN_GRADIENT_MAGNITUDE, shell, restricted );
+
+					// the sub-pixel shift is less than half a voxel, rounding yields the voxel of the edgel
+					final EdgelBuffer expected = new EdgelBuffer();
+					for ( int i = 0; i < all.size(); i++ )
+						if ( shell.contains( Math.round( all.getPosition( i, 0 ) ), Math.round( all.getPosition( i, 1 ) ), Math.round( all.getPosition( i, 2 ) ) ) )
+							expected.add( all, i );
+					assertTrue( expected.size() > 0 && expected.size() < all.size() );
+					assertEquals( expected.size(), restricted.size() );
+					for ( int i = 0; i < expected.size(); i++ )
+					{
+						for ( int d = 0; d < 3; d++ )
+						{
+							assertEquals( expected.getPosition( i, d ), restricted.getPosition( i, d ), 0 );
+							assertEquals( expected.getNormal( i, d ), restricted.getNormal( i, d ), 0 );
+						}
+						assertEquals( expected.getMagnitude( i ), restricted.getMagnitude( i ), 0 );
+					}
+				}
+	}
+
+	/**
+	 * Intensity falls from 100 inside to 0 outside of the sphere, over about
+	 * one voxel.
+	 */
+	private static RandomAccessibleInterval< FloatType > sphere()
+	{
+		final float[] data = new float[ SIZE * SIZE * SIZE ];
+		int i = 0;
+		for ( int z = 0; z < SIZE; z++ )
+			for ( int y = 0; y < SIZE; y++ )
+				for ( int x = 0; x < SIZE; x++ )
+				{
+					final double dx = x - CENTER[ 0 ];
+					final double dy = y - CENTER[ 1 ];
+					final double dz = z - CENTER[ 2 ];
+					final double r = Math.sqrt( dx * dx + dy * dy + dz * dz );
+					data[ i++ ] = ( float ) ( 100 / ( 1 + Math.exp( r - RADIUS ) ) );
+				}
+		return ArrayImgs.floats( data, SIZE, SIZE, SIZE );
+	}
+
+	/**
+	 * Asserts that each expected edgel has an actual edgel in a neighbouring
+	 * voxel, at most {@code maxOffset} away along the normal, with a similar
+	 * normal and magnitude.
+	 */
+	private static void assertMatching( final List< Edgel > expected, final EdgelBuffer actual,
+			final double maxOffset, final double minNormalDot, final double maxRelativeMagnitudeError )
+	{
+		for ( final Edgel edgel : expected )
+		{
+			int nearest = -1;
+			double nearestSqr = Double.POSITIVE_INFINITY;
+			for ( int i = 0; i < actual.size(); i++ )
+			{
+				double sqr = 0;
+				for ( int d = 0; d < 3; d++ )
+				{
+					final double diff = actual.getPosition( i, d ) - edgel.getDoublePosition( d );
+					sqr += diff * diff;
+				}
+				if ( sqr < nearestSqr )
+				{
+					nearestSqr = sqr;
+					nearest = i;
+				}
+			}
+			assertTrue( "no edgel near " + edgel, nearestSqr <= 1 );
+			final double[] normal = edgel.getGradient();
+			double offset = 0;
+			double dot = 0;
+			for ( int d = 0; d < 3; d++ )
+			{
+				offset += ( actual.getPosition( nearest, d ) - edgel.getDoublePosition( d ) ) * normal[ d ];
+				dot += actual.getNormal( nearest, d ) * normal[ d ];
+			}
+			assertEquals( 0, offset, maxOffset );
+			assertTrue( "normals differ: " + dot, dot >= minNormalDot );
+			assertEquals( edgel.getMagnitude(), actual.getMagnitude( nearest ), maxRelativeMagnitudeError * edgel.getMagnitude() );
+		}
+	}
+
+	/**
+	 * Asserts that the edgels lie on the sphere, with normals pointing to its
+	 * center.
+	 */
+	private static void assertOnSphere( final EdgelBuffer edgels, final double tolerance )
+	{
+		assertTrue( edgels.size() > 0 );
+		for ( int i = 0; i < edgels.size(); i++ )
+		{
+			final double[] v = new double[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+				v[ d ] = edgels.getPosition( i, d ) - CENTER[ d ];
+			final double r = Math.sqrt( v[ 0 ] * v[ 0 ] + v[ 1 ] * v[ 1 ] + v[ 2 ] * v[ 2 ] );
+			assertEquals( RADIUS, r, tolerance );
+			double dot = 0;
+			for ( int d = 0; d < 3; d++ )
+				dot -= v[ d ] / r * edgels.getNormal( i, d );
+			assertTrue( dot > 0.99 );
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.edgel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link RadialShell}.
+ */
+public class RadialShellTest
+{
+	private static final double[] ISOTROPIC = { 1, 1, 1 };
+
+	@Test
+	public void testSpansAroundHole()
+	{
+		final RadialShell shell = new RadialShell( new double[] { 10, 10, 10 }, ISOTROPIC, 3, 6 );
+		// voxels 8 to 12 are closer than 3 to the center
+		assertSpans( new int[] { 4, 8, 13, 17 }, shell, 0, new int[] { 0, 10, 10 }, 20, 0 );
+		// off-center lines do not reach into the hole
+		assertSpans( new int[] { 6, 15 }, shell, 0, new int[] { 0, 15, 10 }, 20, 0 );
+		// and lines further out miss the shell
+		assertSpans( new int[] {}, shell, 0, new int[] { 0, 17, 10 }, 20, 0 );
+	}
+
+	@Test
+	public void testSpansClippedToLine()
+	{
+		assertSpans( new int[] { 4, 8 }, new RadialShell( new double[] { 1, 10, 10 }, ISOTROPIC, 3, 6 ), 0, new int[] { 0, 10, 10 }, 20, 0 );
+		assertSpans( new int[] { 12, 16 }, new RadialShell( new double[] { 18, 10, 10 }, ISOTROPIC, 3, 6 ), 0, new int[] { 0, 10, 10 }, 20, 0 );
+	}
+
+	@Test
+	public void testSpansWithMargin()
+	{
+		final RadialShell shell = new RadialShell( new double[] { 10, 10, 10 }, ISOTROPIC, 3, 6 );
+		assertSpans( new int[] { 3, 9, 12, 18 }, shell, 0, new int[] { 0, 10, 10 }, 20, 1 );
+		// a margin that closes the hole yields a single span, clipped to the line
+		assertSpans( new int[] { 1, 20 }, shell, 0, new int[] { 0, 10, 10 }, 20, 3 );
+	}
+
+	@Test
+	public void testSpansAnisotropic()
+	{
+		// along z, the radii span half as many voxels
+		final RadialShell shell = new RadialShell( new double[] { 10, 10, 5 }, new double[] { 1, 1, 2 }, 3, 6 );
+		assertSpans( new int[] { 2, 4, 7, 9 }, shell, 2, new int[] { 10, 10, 0 }, 20, 0 );
+	}
+
+	@Test
+	public void testSpansCoverShell()
+	{
+		final Random random = new Random( 1 );
+		final int length = 24;
+		final int[] spans = new int[ 4 ];
+		for ( int trial = 0; trial < 20; trial++ )
+		{
+			final double[] center = { 24 * random.nextDouble(), 24 * random.nextDouble(), 24 * random.nextDouble() };
+			final double[] scale = { 0.5 + random.nextDouble(), 0.5 + random.nextDouble(), 0.5 + random.nextDouble() };
+			final double inner = 5 * random.nextDouble();
+			final RadialShell shell = new RadialShell( center, scale, inner, inner + 1 + 5 * random.nextDouble() );
+			final int[] position = new int[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+				for ( position[ ( d + 1 ) % 3 ] = 0; position[ ( d + 1 ) % 3 ] < length; position[ ( d + 1 ) % 3 ]++ )
+					for ( position[ ( d + 2 ) % 3 ] = 0; position[ ( d + 2 ) % 3 ] < length; position[ ( d + 2 ) % 3 ]++ )
+					{
+						final int n = shell.spans( d, position, length, 0, spans );
+						for ( position[ d ] = 0; position[ d ] < length; position[ d ]++ )
+							if ( shell.contains( position[ 0 ], position[ 1 ], position[ 2 ] ) )
+								assertTrue( "voxel " + Arrays.toString( position ) + " not covered", isCovered( position[ d ], spans, n ) );
+					}
+		}
+	}
+
+	private static boolean isCovered( final int x, final int[] spans, final int n )
+	{
+		for ( int s = 0; s < n; s++ )
+			if ( x >= spans[ 2 * s ] && x < spans[ 2 * s + 1 ] )
+				return true;
+		return false;
+	}
+
+	private static void assertSpans( final int[] expected, final RadialShell shell, final int d, final int[] position, final int length, final double margin )
+	{
+		final int[] spans = new int[ 4 ];
+		final int n = shell.spans( d, position, length, margin, spans );
+		assertArrayEquals( expected, Arrays.copyOf( spans, 2 * n ) );
+	}
+}
@@ -0,0 +1,367 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.edgel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+
+import net.imglib2.algorithm.edge.Edgel;
+import net.imglib2.util.LinAlgHelpers;
+
+/**
+ * Tests {@link SampleEllipsoidEdgel}.
+ */
+public class SampleEllipsoidEdgelTest
+{
+	private static final double[] CENTER = { 20.3, 19.6, 20.1 };
+
+	private static final double[] RADII = { 9, 7, 5 };
+
+	private static final double OUTSIDE_CUTOFF_DISTANCE = 3;
+
+	private static final double INSIDE_CUTOFF_DISTANCE = 5;
+
+	private static final double ANGLE_CUTOFF_DISTANCE = 30 * Math.PI / 180;
+
+	private static final double MAX_CENTER_DISTANCE = 10;
+
+	private static final double SHELL_WIDTH = 3;
+
+	private static final RansacOptions[] OPTIONS = {
+			new RansacOptions(),
+			new RansacOptions().setPreemptive( true ),
+			new RansacOptions().setAdaptive( true ) };
+
+	@Test
+	public void testSampleCoarseToFine()
+	{
+		for ( final RansacOptions options : OPTIONS )
+		{
+			final EdgelBuffer coarseEdgels = ellipsoidEdgels( new SplittableRandom( 1 ), 300, 0.7, 100 );
+			final EdgelBuffer fineEdgels = ellipsoidEdgels( new SplittableRandom( 2 ), 2000, 0.1, 500 );
+			final SamplingStatistics coarseStatistics = new SamplingStatistics();
+			final Ellipsoid coarse = SampleEllipsoidEdgel.sample( coarseEdgels, CENTER, 1000, 100, OUTSIDE_CUTOFF_DISTANCE,
+					INSIDE_CUTOFF_DISTANCE, ANGLE_CUTOFF_DISTANCE, MAX_CENTER_DISTANCE, () -> false, coarseStatistics, new SplittableRandom( 3 ), options );
+
+			final Ellipsoid[] detectedNear = new Ellipsoid[ 1 ];
+			final SamplingStatistics statistics = new SamplingStatistics();
+			final Ellipsoid fine = SampleEllipsoidEdgel.sampleCoarseToFine( coarseEdgels, near -> {
+				detectedNear[ 0 ] = near;
+				return fineEdgels;
+			}, CENTER, 1000, 100, 100, 10, SHELL_WIDTH, OUTSIDE_CUTOFF_DISTANCE, INSIDE_CUTOFF_DISTANCE, ANGLE_CUTOFF_DISTANCE,
+					MAX_CENTER_DISTANCE, () -> false, statistics, new SplittableRandom( 3 ), options );
+
+			// the fine edgels are requested near the coarse ellipsoid
+			assertNotNull( detectedNear[ 0 ] );
+			assertArrayEquals( coarse.getCenter(), detectedNear[ 0 ].getCenter(), 0 );
+
+			// the least-squares fit to the full resolution edgels is much closer to the truth
+			assertTrue( error( fine ) < 0.05 );
+			assertTrue( error( fine ) < error( coarse ) / 2 );
+			assertTrue( statistics.isRefined() );
+			assertTrue( statistics.getNumInliers() >= 1900 );
+			// the samples of the full resolution pass are counted, too
+			assertTrue( statistics.getNumSamples() > coarseStatistics.getNumSamples() );
+		}
+	}
+
+	@Test
+	public void testSampleCoarseToFineWithoutFineEdgels()
+	{
+		final EdgelBuffer coarseEdgels = ellipsoidEdgels( new SplittableRandom( 1 ), 300, 0.7, 100 );
+		final Ellipsoid coarse = SampleEllipsoidEdgel.sample( coarseEdgels, CENTER, 1000, 100, OUTSIDE_CUTOFF_DISTANCE,
+				INSIDE_CUTOFF_DISTANCE, ANGLE_CUTOFF_DISTANCE, MAX_CENTER_DISTANCE, () -> false, null, new SplittableRandom( 3 ), new RansacOptions() );
+		final Ellipsoid fine = SampleEllipsoidEdgel.sampleCoarseToFine( coarseEdgels, new EdgelBuffer(), CENTER, 1000, 100, 100, 10,
+				SHELL_WIDTH, OUTSIDE_CUTOFF_DISTANCE, INSIDE_CUTOFF_DISTANCE, ANGLE_CUTOFF_DISTANCE, MAX_CENTER_DISTANCE,
+				() -> false, null, new SplittableRandom( 3 ), new RansacOptions() );
+		assertArrayEquals( coarse.getCenter(), fine.getCenter(), 0 );
+		for ( int d = 0; d < 3; d++ )
+			assertArrayEquals( coarse.getPrecision()[ d ], fine.getPrecision()[ d ], 0 );
+	}
+
+	@Test
+	public void testRequiredSamples()
+	{
+		// all edgels are inliers
+		assertEquals( 1, SampleEllipsoidEdgel.requiredSamples( 1000, 1000, 0.99, 1000 ) );
+
+		// 90% inliers: 1 - ( 1 - 0.9^9 )^k >= 0.99
+		final int expected = ( int ) Math.ceil( Math.log( 0.01 ) / Math.log( 1 - Math.pow( 0.9, 9 ) ) );
+		assertEquals( 10, expected );
+		assertEquals( expected, SampleEllipsoidEdgel.requiredSamples( 900, 1000, 0.99, 1000 ) );
+		assertEquals( 5, SampleEllipsoidEdgel.requiredSamples( 900, 1000, 0.99, 5 ) );
+
+		// 50% inliers need more than the cap
+		assertEquals( 1000, SampleEllipsoidEdgel.requiredSamples( 500, 1000, 0.99, 1000 ) );
+	}
+
+	@Test
+	public void testPreemptiveRansac()
+	{
+		final EdgelBuffer edgels = ellipsoidEdgels( new SplittableRandom( 1 ), 1500, 0.1, 500 );
+		final CountingCost cost = new CountingCost();
+		final SamplingStatistics statistics = new SamplingStatistics();
+		final int numCandidates = 64;
+		final Ellipsoid best = SampleEllipsoidEdgel.preemptiveRansac( edgels, CENTER, 10000, numCandidates, MAX_CENTER_DISTANCE, cost,
+				null, () -> false, statistics, new SplittableRandom( 2 ), new RansacOptions().setPreemptive( true ) );
+
+		// scoring all candidates on all edgels would take numCandidates * edgels.size() evaluations
+		assertTrue( cost.count < numCandidates * edgels.size() / 4 );
+		assertNotNull( best );
+		assertTrue( error( best ) < 0.5 );
+		assertEquals( numCandidates, statistics.getNumCandidates() );
+		// the winner is scored on all edgels
+		assertEquals( cost.compute( best, edgels ), statistics.getBestCost(), 1e-6 );
+
+		// the initial ellipsoid competes with the candidates, and beats fits to 9 noisy edgels
+		final Ellipsoid initial = truth();
+		final EdgelBuffer noisy = ellipsoidEdgels( new SplittableRandom( 1 ), 200, 0.3, 0 );
+		assertSame( initial, SampleEllipsoidEdgel.preemptiveRansac( noisy, CENTER, 100, 8, MAX_CENTER_DISTANCE, cost,
+				initial, () -> false, null, new SplittableRandom( 2 ), new RansacOptions().setPreemptive( true ) ) );
+	}
+
+	@Test
+	public void testCandidateSampler()
+	{
+		// the 100 exact edgels are stronger than the 900 outliers
+		final EdgelBuffer edgels = ellipsoidEdgels( new SplittableRandom( 1 ), 100, 0, 900 );
+
+		final SampleEllipsoidEdgel.CandidateSampler uniform = new SampleEllipsoidEdgel.CandidateSampler( edgels, CENTER, MAX_CENTER_DISTANCE,
+				1000, new SplittableRandom( 2 ), false );
+		final SampleEllipsoidEdgel.CandidateSampler progressive = new SampleEllipsoidEdgel.CandidateSampler( edgels, CENTER, MAX_CENTER_DISTANCE,
+				1000, new SplittableRandom( 2 ), true );
+		int uniformHits = 0;
+		int progressiveHits = 0;
+		for ( int sample = 0; sample < 20; sample++ )
+		{
+			final Ellipsoid u = uniform.next();
+			if ( u != null && error( u ) < 1e-6 )
+				uniformHits++;
+			final Ellipsoid p = progressive.next();
+			if ( p != null && error( p ) < 1e-6 )
+				progressiveHits++;
+			if ( p != null )
+				assertTrue( LinAlgHelpers.distance( CENTER, p.getCenter() ) <= MAX_CENTER_DISTANCE );
+		}
+		// progressive samples start from the strongest edgels, uniform samples are rarely all inliers
+		assertEquals( 20, progressiveHits );
+		assertTrue( uniformHits <= 1 );
+	}
+
+	@Test
+	public void testComputeBounded()
+	{
+		final SampleEllipsoidEdgel.Cost cost = new SampleEllipsoidEdgel.EdgelDistanceCost( OUTSIDE_CUTOFF_DISTANCE,
+				INSIDE_CUTOFF_DISTANCE, ANGLE_CUTOFF_DISTANCE );
+		final EdgelBuffer edgels = ellipsoidEdgels( new SplittableRandom( 1 ), 500, 0.5, 200 );
+		final double[][] precision = truth().getPrecision();
+		precision[ 0 ][ 0 ] *= 1.2;
+		final Ellipsoid ellipsoid = new Ellipsoid( new double[] { 21, 19, 20 }, null, precision, null, null );
+		final double full = cost.compute( ellipsoid, edgels );
+		assertTrue( full > 0 );
+
+		// under the bound, the result is the exact cost
+		assertEquals( full, cost.computeBounded( ellipsoid, edgels, Double.POSITIVE_INFINITY ), 0 );
+		assertEquals( full, cost.computeBounded( ellipsoid, edgels, Math.nextUp( full ) ), 0 );
+
+		// otherwise, it is at least the bound, but doesn't exceed the full cost
+		for ( final double bound : new double[] { 0, 1, full / 2, full } )
+		{
+			final double bounded = cost.computeBounded( ellipsoid, edgels, bound );
+			assertTrue( bounded >= bound );
+			assertTrue( bounded <= full );
+		}
+		// a low bound stops the sum early
+		assertTrue( cost.computeBounded( ellipsoid, edgels, 1 ) < full );
+
+		// inliers are counted among the scored edgels
+		final int[] numInliers = new int[ 1 ];
+		assertEquals( full, cost.computeBounded( ellipsoid, edgels, Double.POSITIVE_INFINITY, numInliers ), 0 );
+		int allInliers = 0;
+		for ( int i = 0; i < edgels.size(); ++i )
+			if ( cost.isInlier( ellipsoid, edgels, i ) )
+				++allInliers;
+		assertTrue( allInliers > 0 );
+		assertEquals( allInliers, numInliers[ 0 ] );
+		cost.computeBounded( ellipsoid, edgels, 1, numInliers );
+		assertTrue( numInliers[ 0 ] <= allInliers );
+	}
+
+	/**
+	 * Returns {@code n} edgels on the surface of the test ellipsoid, with
+	 * Gaussian position noise of the given standard deviation, followed by
+	 * {@code numOutliers} edgels with random normals at least twice as far
+	 * from the center.
+	 */
+	static EdgelBuffer ellipsoidEdgels( final SplittableRandom random, final int n, final double noise, final int numOutliers )
+	{
+		final EdgelBuffer edgels = new EdgelBuffer();
+		final double[] position = new double[ 3 ];
+		final double[] normal = new double[ 3 ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final double[] u = randomDirection( random );
+			for ( int d = 0; d < 3; d++ )
+			{
+				position[ d ] = CENTER[ d ] + RADII[ d ] * u[ d ] + noise * gaussian( random );
+				// the gradient points inwards, against the surface normal
+				normal[ d ] = -u[ d ] / RADII[ d ];
+			}
+			LinAlgHelpers.normalize( normal );
+			edgels.add( position, normal, 1 + random.nextDouble() );
+		}
+		for ( int i = 0; i < numOutliers; i++ )
+		{
+			final double[] u = randomDirection( random );
+			final double scale = 2 + random.nextDouble();
+			for ( int d = 0; d < 3; d++ )
+				position[ d ] = CENTER[ d ] + scale * RADII[ d ] * u[ d ];
+			edgels.add( position, randomDirection( random ), random.nextDouble() );
+		}
+		return edgels;
+	}
+
+	/**
+	 * Returns the max deviation of the center or the radii of the given
+	 * {@code ellipsoid} from the test ellipsoid, assuming that the
+	 * {@code ellipsoid} is nearly axis-aligned.
+	 */
+	static double error( final Ellipsoid ellipsoid )
+	{
+		double error = LinAlgHelpers.distance( CENTER, ellipsoid.getCenter() );
+		final double[][] precision = ellipsoid.getPrecision();
+		for ( int d = 0; d < 3; d++ )
+			error = Math.max( error, Math.abs( 1 / Math.sqrt( precision[ d ][ d ] ) - RADII[ d ] ) );
+		return error;
+	}
+
+	private static Ellipsoid truth()
+	{
+		final double[][] precision = new double[ 3 ][ 3 ];
+		for ( int d = 0; d < 3; d++ )
+			precision[ d ][ d ] = 1 / ( RADII[ d ] * RADII[ d ] );
+		return new Ellipsoid( CENTER.clone(), null, precision, null, null );
+	}
+
+	private static double[] randomDirection( final SplittableRandom random )
+	{
+		final double[] u = { gaussian( random ), gaussian( random ), gaussian( random ) };
+		LinAlgHelpers.normalize( u );
+		return u;
+	}
+
+	private static double gaussian( final SplittableRandom random )
+	{
+		// Box-Muller
+		return Math.sqrt( -2 * Math.log( 1 - random.nextDouble() ) ) * Math.cos( 2 * Math.PI * random.nextDouble() );
+	}
+
+	/**
+	 * Counts the edgels costs are computed for.
+	 */
+	private static class CountingCost implements SampleEllipsoidEdgel.Cost
+	{
+		private final SampleEllipsoidEdgel.Cost cost = new SampleEllipsoidEdgel.EdgelDistanceCost( OUTSIDE_CUTOFF_DISTANCE,
+				INSIDE_CUTOFF_DISTANCE, ANGLE_CUTOFF_DISTANCE );
+
+		private int count;
+
+		@Override
+		public double compute( final Ellipsoid ellipsoid, final List< Edgel > points )
+		{
+			count += points.size();
+			return cost.compute( ellipsoid, points );
+		}
+
+		@Override
+		public double compute( final Ellipsoid ellipsoid, final Edgel point )
+		{
+			count++;
+			return cost.compute( ellipsoid, point );
+		}
+
+		@Override
+		public boolean isInlier( final Ellipsoid ellipsoid, final Edgel point )
+		{
+			return cost.isInlier( ellipsoid, point );
+		}
+
+		@Override
+		public double compute( final Ellipsoid ellipsoid, final EdgelBuffer points )
+		{
+			count += points.size();
+			return cost.compute( ellipsoid, points );
+		}
+
+		@Override
+		public double computeBounded( final Ellipsoid ellipsoid, final EdgelBuffer points, final double bound )
+		{
+			double sum = 0;
+			for ( int i = 0; i < points.size() && !( sum > bound ); ++i )
+				sum += compute( ellipsoid, points, i );
+			return sum;
+		}
+
+		@Override
+		public double computeBounded( final Ellipsoid ellipsoid, final EdgelBuffer points, final double bound, final int[] numInliers )
+		{
+			double sum = 0;
+			numInliers[ 0 ] = 0;
+			for ( int i = 0; i < points.size() && !( sum > bound ); ++i )
+			{
+				sum += compute( ellipsoid, points, i );
+				if ( isInlier( ellipsoid, points, i ) )
+					++numInliers[ 0 ];
+			}
+			return sum;
+		}
+
+		@Override
+		public double compute( final Ellipsoid ellipsoid, final EdgelBuffer points, final int i )
+		{
+			count++;
+			return cost.compute( ellipsoid, points, i );
+		}
+
+		@Override
+		public boolean isInlier( final Ellipsoid ellipsoid, final EdgelBuffer points, final int i )
+		{
+			return cost.isInlier( ellipsoid, points, i );
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.ellipsoid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link EllipsoidNormalEquations}.
+ */
+public class EllipsoidNormalEquationsTest
+{
+	@Test
+	public void testAddRemoveAndMerge()
+	{
+		// points on an ellipsoid, and outliers
+		final Random random = new Random( 1 );
+		final int n = 60;
+		final double[] points = new double[ 3 * n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final double[] u = { random.nextGaussian(), random.nextGaussian(), random.nextGaussian() };
+			final double length = Math.sqrt( u[ 0 ] * u[ 0 ] + u[ 1 ] * u[ 1 ] + u[ 2 ] * u[ 2 ] );
+			final double radius = i < 50 ? 1 : 1.5;
+			points[ 3 * i ] = 10 + 3 * radius * u[ 0 ] / length;
+			points[ 3 * i + 1 ] = 20 + 4 * radius * u[ 1 ] / length;
+			points[ 3 * i + 2 ] = 30 + 5 * radius * u[ 2 ] / length;
+		}
+		final double[] expectedCenter = new double[ 3 ];
+		final double[][] expectedPrecision = new double[ 3 ][ 3 ];
+		assertTrue( FitEllipsoid.yuryPetrov( points, 50, new double[ FitEllipsoid.SCRATCH_LENGTH ], expectedCenter, expectedPrecision ) );
+
+		// all points, then remove the outliers
+		final EllipsoidNormalEquations equations = new EllipsoidNormalEquations();
+		for ( int i = 0; i < n; i++ )
+			equations.add( points[ 3 * i ], points[ 3 * i + 1 ], points[ 3 * i + 2 ] );
+		for ( int i = 50; i < n; i++ )
+			equations.remove( points[ 3 * i ], points[ 3 * i + 1 ], points[ 3 * i + 2 ] );
+		assertEquals( 50, equations.getNumPoints() );
+		assertSolution( equations, expectedCenter, expectedPrecision );
+
+		// two halves, merged
+		final EllipsoidNormalEquations first = new EllipsoidNormalEquations();
+		final EllipsoidNormalEquations second = new EllipsoidNormalEquations();
+		for ( int i = 0; i < 50; i++ )
+			( i < 25 ? first : second ).add( points[ 3 * i ], points[ 3 * i + 1 ], points[ 3 * i + 2 ] );
+		first.add( second );
+		assertEquals( 50, first.getNumPoints() );
+		assertSolution( first, expectedCenter, expectedPrecision );
+	}
+
+	private static void assertSolution( final EllipsoidNormalEquations equations, final double[] expectedCenter, final double[][] expectedPrecision )
+	{
+		final double[] center = new double[ 3 ];
+		final double[][] precision = new double[ 3 ][ 3 ];
+		assertTrue( equations.solve( center, precision ) );
+		assertArrayEquals( expectedCenter, center, 1e-6 );
+		for ( int d = 0; d < 3; d++ )
+			assertArrayEquals( expectedPrecision[ d ], precision[ d ], 1e-6 );
+	}
+}
@@ -0,0 +1,77 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.ellipsoid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link FitEllipsoid}.
+ */
+public class FitEllipsoidTest
+{
+	@Test
+	public void testYuryPetrovFlat()
+	{
+		final Random random = new Random( 1 );
+		final double[] radii = { 3, 4, 5 };
+		final double[] expectedCenter = { 1, 2, 3 };
+		final int n = 50;
+		final double[] points = new double[ 3 * n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final double[] u = { random.nextGaussian(), random.nextGaussian(), random.nextGaussian() };
+			final double length = Math.sqrt( u[ 0 ] * u[ 0 ] + u[ 1 ] * u[ 1 ] + u[ 2 ] * u[ 2 ] );
+			for ( int d = 0; d < 3; d++ )
+				points[ 3 * i + d ] = expectedCenter[ d ] + radii[ d ] * u[ d ] / length;
+		}
+
+		final double[] scratch = new double[ FitEllipsoid.SCRATCH_LENGTH ];
+		final double[] center = new double[ 3 ];
+		final double[][] precision = new double[ 3 ][ 3 ];
+		assertTrue( FitEllipsoid.yuryPetrov( points, n, scratch, center, precision ) );
+		assertArrayEquals( expectedCenter, center, 1e-9 );
+		for ( int d = 0; d < 3; d++ )
+		{
+			final double[] expectedRow = new double[ 3 ];
+			expectedRow[ d ] = 1 / ( radii[ d ] * radii[ d ] );
+			assertArrayEquals( expectedRow, precision[ d ], 1e-9 );
+		}
+
+		// points on a plane don't form a unique ellipsoid
+		for ( int i = 0; i < n; i++ )
+			points[ 3 * i ] = 1;
+		assertFalse( FitEllipsoid.yuryPetrov( points, n, scratch, center, precision ) );
+	}
+}
@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * mastodon-ellipsoid-fitting
+ * %%
+ * Copyright (C) 2015 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut.fitting.util;
+
+import java.util.Random;
+
+import org.mastodon.collection.RefObjectMap;
+import org.mastodon.collection.ref.RefObjectHashMap;
+import org.mastodon.mamut.fitting.MinimalProjectModel;
+import org.mastodon.mamut.fitting.ellipsoid.Ellipsoid;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.DefaultSelectionModel;
+import org.mastodon.model.SelectionModel;
+import org.mastodon.views.bdv.SharedBigDataViewerData;
+
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.Img;
+import net.imglib2.img.display.imagej.ImgToVirtualStack;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Like {@link ArtificialData}, but scalable to many spots and configurable.
+ * <p>
+ * Spots are placed on a cubic grid, {@link Parameters#spotsPerFrame} spots per
+ * timepoint, with as many timepoints as needed. The image is rendered lazily,
+ * cell by cell, into a cache, so that large datasets do not need to fit into
+ * memory. Each spot is the density of a normal distribution with a random
+ * covariance, plus Gaussian noise.
+ */
+public class ScalableArtificialData
+{
+	/**
+	 * Parameters of the generated data. Lengths are in global coordinates.
+	 */
+	public static class Parameters
+	{
+		public int numSpots = 64;
+
+		/** Spots per timepoint, rounded down to a cube. */
+		public int spotsPerFrame = 512;
+
+		/** Standard deviation of the noise, relative to the peak intensity. */
+		public double noise = 0;
+
+		public double[] voxelSize = { 1, 1, 1 };
+
+		/**
+		 * Distance between grid points, relative to twice the max radius.
+		 * Values below 1 make neighboring spots overlap.
+		 */
+		public double spacing = 2.5;
+
+		public double minRadius = 8;
+
+		public double maxRadius = 16;
+
+		/** Max offset of the initial spot position from the true center. */
+		public double maxCenterOffset = 5;
+
+		public long seed = 1;
+	}
+
+	private static final double PEAK = 1000;
+
+	private static final int CELL_SIZE = 64;
+
+	private final Parameters parameters;
+
+	private final int gridSize;
+
+	private final double gridSpacing;
+
+	private final double[][] centers;
+
+	private final double[][][] precisions;
+
+	private final MinimalProjectModel minimalProjectModel;
+
+	private final RefObjectMap< Spot, Ellipsoid > ellipsoids;
+
+	public ScalableArtificialData( final Parameters parameters )
+	{
+		this.parameters = parameters;
+		gridSize = Math.max( 1, ( int ) Math.floor( Math.cbrt( parameters.spotsPerFrame + 0.5 ) ) );
+		gridSpacing = parameters.spacing * 2 * parameters.maxRadius;
+		final int spotsPerFrame = gridSize * gridSize * gridSize;
+		final int numFrames = ( parameters.numSpots + spotsPerFrame - 1 ) / spotsPerFrame;
+
+		final Model model = new Model();
+		ellipsoids = new RefObjectHashMap<>( model.getGraph().vertices().getRefPool(), parameters.numSpots );
+		centers = new double[ parameters.numSpots ][];
+		precisions = new double[ parameters.numSpots ][][];
+		final Random random = new Random( parameters.seed );
+		final Spot ref = model.getGraph().vertexRef();
+		for ( int i = 0; i < parameters.numSpots; i++ )
+		{
+			final int timepoint = i / spotsPerFrame;
+			final int g = i % spotsPerFrame;
+			final double[] gridPoint = {
+					( g % gridSize + 0.5 ) * gridSpacing,
+					( g / gridSize % gridSize + 0.5 ) * gridSpacing,
+					( g / gridSize / gridSize + 0.5 ) * gridSpacing };
+			final Ellipsoid ellipsoid = new Ellipsoid( gridPoint, randomCovariance( random ), null, null, null );
+			centers[ i ] = ellipsoid.getCenter();
+			precisions[ i ] = ellipsoid.getPrecision();
+			final double[] initialPosition = new double[ 3 ];
+			for ( int d = 0; d < 3; d++ )
+				initialPosition[ d ] = gridPoint[ d ] + uniform( random, -parameters.maxCenterOffset, parameters.maxCenterOffset );
+			final Spot spot = model.getGraph().addVertex( ref ).init( timepoint, initialPosition, 0.5 * ( parameters.minRadius + parameters.maxRadius ) );
+			ellipsoids.put( spot, ellipsoid );
+		}
+		model.getGraph().releaseRef( ref );
+
+		final long[] dimensions = new long[ 4 ];
+		for ( int d = 0; d < 3; d++ )
+			dimensions[ d ] = ( long ) Math.ceil( gridSize * gridSpacing / parameters.voxelSize[ d ] );
+		dimensions[ 3 ] = numFrames;
+		final Img< FloatType > image = new ReadOnlyCachedCellImgFactory( ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( CELL_SIZE, CELL_SIZE, CELL_SIZE, 1 ) )
+				.create( dimensions, new FloatType(), this::renderCell );
+
+		final ImagePlus imagePlus = ImgToVirtualStack.wrap( new ImgPlus<>( image, "image", new AxisType[] { Axes.X, Axes.Y, Axes.Z, Axes.TIME } ) );
+		imagePlus.getCalibration().pixelWidth = parameters.voxelSize[ 0 ];
+		imagePlus.getCalibration().pixelHeight = parameters.voxelSize[ 1 ];
+		imagePlus.getCalibration().pixelDepth = parameters.voxelSize[ 2 ];
+		final SharedBigDataViewerData sharedBdvData = SharedBigDataViewerData.fromImagePlus( imagePlus );
+		final SelectionModel< Spot, Link > selectionModel = new DefaultSelectionModel<>( model.getGraph(), model.getGraphIdBimap() );
+		minimalProjectModel = new MinimalProjectModel( model, sharedBdvData, selectionModel );
+		for ( final Spot spot : model.getGraph().vertices() )
+			selectionModel.setSelected( spot, true );
+	}
+
+	public MinimalProjectModel getMinimalProjectModel()
+	{
+		return minimalProjectModel;
+	}
+
+	public RefObjectMap< Spot, Ellipsoid > getExpectedEllipsoids()
+	{
+		return ellipsoids;
+	}
+
+	private double[][] randomCovariance( final Random random )
+	{
+		final AffineTransform3D a = new AffineTransform3D();
+		a.scale( uniform( random, parameters.minRadius, parameters.maxRadius ),
+				uniform( random, parameters.minRadius, parameters.maxRadius ),
+				uniform( random, parameters.minRadius, parameters.maxRadius ) );
+		a.rotate( 0, uniform( random, 0, 2 * Math.PI ) );
+		a.rotate( 1, uniform( random, 0, 2 * Math.PI ) );
+		a.rotate( 2, uniform( random, 0, 2 * Math.PI ) );
+		final double[][] covariance = new double[ 3 ][ 3 ];
+		for ( int i = 0; i < 3; i++ )
+			for ( int j = 0; j < 3; j++ )
+				for ( int k = 0; k < 3; k++ )
+					covariance[ i ][ j ] += a.get( i, k ) * a.get( j, k );
+		return covariance;
+	}
+
+	/**
+	 * Renders the spots of the cell's timepoint that come close to the cell,
+	 * and adds noise.
+	 */
+	private void renderCell( final SingleCellArrayImg< FloatType, ? > cell )
+	{
+		final int timepoint = ( int ) cell.min( 3 );
+		final int spotsPerFrame = gridSize * gridSize * gridSize;
+		final double margin = 3 * parameters.maxRadius;
+		final int[] gridMin = new int[ 3 ];
+		final int[] gridMax = new int[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			final double lower = cell.min( d ) * parameters.voxelSize[ d ] - margin;
+			final double upper = cell.max( d ) * parameters.voxelSize[ d ] + margin;
+			gridMin[ d ] = Math.max( 0, ( int ) Math.floor( lower / gridSpacing - 0.5 ) );
+			gridMax[ d ] = Math.min( gridSize - 1, ( int ) Math.ceil( upper / gridSpacing - 0.5 ) );
+		}
+
+		final long[] min = new long[ 4 ];
+		final long[] max = new long[ 4 ];
+		min[ 3 ] = max[ 3 ] = timepoint;
+		final double[] x = new double[ 3 ];
+		for ( int gz = gridMin[ 2 ]; gz <= gridMax[ 2 ]; gz++ )
+			for ( int gy = gridMin[ 1 ]; gy <= gridMax[ 1 ]; gy++ )
+				for ( int gx = gridMin[ 0 ]; gx <= gridMax[ 0 ]; gx++ )
+				{
+					final int i = timepoint * spotsPerFrame + gx + gridSize * ( gy + gridSize * gz );
+					if ( i >= centers.length )
+						continue;
+					final double[] c = centers[ i ];
+					final double[][] p = precisions[ i ];
+
+					// voxels within the margin around the spot
+					boolean empty = false;
+					for ( int d = 0; d < 3; d++ )
+					{
+						min[ d ] = Math.max( cell.min( d ), ( long ) Math.floor( ( c[ d ] - margin ) / parameters.voxelSize[ d ] ) );
+						max[ d ] = Math.min( cell.max( d ), ( long ) Math.ceil( ( c[ d ] + margin ) / parameters.voxelSize[ d ] ) );
+						empty |= min[ d ] > max[ d ];
+					}
+					if ( empty )
+						continue;
+
+					final Cursor< FloatType > cursor = Views.interval( cell, new FinalInterval( min, max ) ).localizingCursor();
+					while ( cursor.hasNext() )
+					{
+						final FloatType pixel = cursor.next();
+						for ( int d = 0; d < 3; d++ )
+							x[ d ] = cursor.getDoublePosition( d ) * parameters.voxelSize[ d ] - c[ d ];
+						double q = 0;
+						for ( int r = 0; r < 3; r++ )
+							for ( int k = 0; k < 3; k++ )
+								q += x[ r ] * p[ r ][ k ] * x[ k ];
+						pixel.set( pixel.get() + ( float ) ( PEAK * Math.exp( -0.5 * q ) ) );
+					}
+				}
+
+		if ( parameters.noise > 0 )
+		{
+			final long cellSeed = parameters.seed * 31 + ( ( ( timepoint * 1024L + cell.min( 2 ) ) * 1024L + cell.min( 1 ) ) * 1024L + cell.min( 0 ) );
+			final Random random = new Random( cellSeed );
+			for ( final FloatType pixel : cell )
+				pixel.set( pixel.get() + ( float ) ( parameters.noise * PEAK * random.nextGaussian() ) );
+		}
+	}
+
+	private static double uniform( final Random random, final double min, final double max )
+	{
+		return min + random.nextDouble() * ( max - min );
+	}
+}